@@ -13,15 +13,22 @@ import psp.chat.cliente.modelo.ConversacionLocal;
 import psp.chat.cliente.modelo.UsuarioLocal;
 import psp.chat.cliente.net.ConexionCliente;
 import psp.chat.cliente.persistencia.AjustesRepositorioLocal;
+import psp.chat.general.modelo.CambioPresencia;
 import psp.chat.general.modelo.Contacto;
 import psp.chat.general.modelo.Conversacion;
 import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+import psp.chat.general.modelo.PeticionHistorial;
 import psp.chat.general.modelo.ResumenConversacion;
 
 import java.io.IOException;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +45,9 @@ public class MainControladorCliente {
 
     private static final Logger LOG = Logger.getLogger(MainControladorCliente.class.getName());
 
+    /** Mensajes que se piden por página de historial */
+    private static final int MENSAJES_POR_PAGINA = 50;
+
     @FXML
     private BorderPane root;
 
@@ -181,6 +191,39 @@ public class MainControladorCliente {
                 listViewConversaciones.getSelectionModel().selectedItemProperty().isNull()
                         .or(txtMensaje.textProperty().isEmpty()));
 
+        // Al llegar arriba del todo se pide la página anterior
+        scrollMensajes.vvalueProperty().addListener((obs, viejoValor, nuevoValor) -> {
+
+            if (nuevoValor.doubleValue() <= scrollMensajes.getVmin()) {
+
+                solicitarPaginaAnterior();
+
+            }
+
+        });
+
+    }
+
+    /**
+     * Pide al servidor los mensajes anteriores al primero que tenemos
+     * de la conversación abierta, si los hay y no se están pidiendo ya.
+     */
+    private void solicitarPaginaAnterior() {
+
+        ConversacionLocal conversacion = conversacionSeleccionada;
+
+        if (conversacion == null || !conversacion.hayAnteriores() || conversacion.isCargandoAnteriores()) {
+
+            return;
+
+        }
+
+        conversacion.setCargandoAnteriores(true);
+
+        conexionCliente.solicitarPaginaHistorial(PeticionHistorial.anterioresA(
+                conversacion.getIdConversacion(),
+                conversacion.getPrimeraPosicion(),
+                MENSAJES_POR_PAGINA));
     }
 
     /**
@@ -224,11 +267,15 @@ public class MainControladorCliente {
 
         contenedorMensajes.getChildren().clear();
 
-        if (conversacion.getMensajes().isEmpty()) {
+        if (conversacion.getPrimeraPosicion() < 0) {
 
-            conexionCliente.solicitarHistorialConversacion(conversacion.getIdConversacion());
+            // Nunca se ha cargado: solo la última página, no todo el historial
+            conexionCliente.solicitarPaginaHistorial(
+                    PeticionHistorial.ultimos(conversacion.getIdConversacion(), MENSAJES_POR_PAGINA));
 
-        } else {
+        }
+
+        if (!conversacion.getMensajes().isEmpty()) {
 
             for (Mensaje m : conversacion.getMensajes()) {
 
@@ -288,23 +335,104 @@ public class MainControladorCliente {
 
         Platform.runLater(() -> {
 
-            conversaciones.clear();
+            // Se reutilizan las conversaciones que ya teníamos para no perder
+            // los mensajes cargados (tras reconectar solo se sincroniza)
+            Map<String, ConversacionLocal> existentes = new LinkedHashMap<>();
+
+            for (ConversacionLocal c : conversaciones) {
+
+                existentes.put(c.getIdConversacion(), c);
+
+            }
+
+            List<ConversacionLocal> nuevas = new ArrayList<>();
 
             for (ResumenConversacion resumen : resumenes) {
 
-                ConversacionLocal local = new ConversacionLocal(
-                        resumen.getIdConversacion(),
-                        resumen.getIpRemota(),
-                        resumen.getAliasVisible()
-                );
+                ConversacionLocal local = existentes.get(resumen.getIdConversacion());
+
+                if (local == null) {
+
+                    local = new ConversacionLocal(
+                            resumen.getIdConversacion(),
+                            resumen.getIpRemota(),
+                            resumen.getAliasVisible()
+                    );
+
+                }
 
                 local.actualizarResumen(resumen);
-                conversaciones.add(local);
+                nuevas.add(local);
 
             }
+
+            conversaciones.setAll(nuevas);
         });
     }
 
+    /**
+     * Cursores para SINCRONIZAR: por cada conversación ya cargada, la
+     * última posición que tenemos. {@link ConexionCliente} los pide ANTES
+     * de reconectar, porque tras el LOGIN el servidor empuja el buzón y los
+     * mensajes en directo, que moverían esa posición por encima del hueco.
+     *
+     * Se calculan en el hilo de JavaFX; como sus tareas se ejecutan en
+     * orden, ya se han aplicado los mensajes que dejó la conexión anterior.
+     *
+     * @return cursores (vacía si no hay conversaciones cargadas)
+     */
+    public List<PeticionHistorial> capturarCursoresSincronizacion() {
+
+        if (Platform.isFxApplicationThread()) {
+
+            return crearCursores();
+
+        }
+
+        CompletableFuture<List<PeticionHistorial>> cursores = new CompletableFuture<>();
+
+        Platform.runLater(() -> cursores.complete(crearCursores()));
+
+        return cursores.join();
+    }
+
+    private List<PeticionHistorial> crearCursores() {
+
+        List<PeticionHistorial> cursores = new ArrayList<>();
+
+        for (ConversacionLocal c : conversaciones) {
+
+            if (c.getPrimeraPosicion() >= 0) {
+
+                cursores.add(new PeticionHistorial(c.getIdConversacion(), null, c.getUltimaPosicion(), 0));
+
+            }
+
+        }
+
+        return cursores;
+    }
+
+    /**
+     * Callback llamado tras reconectar con el servidor (la sincronización
+     * ya está pedida con los cursores capturados antes de conectar).
+     */
+    public void onReconectado() {
+
+        mostrarMensajeSistema("Reconectado con el servidor");
+    }
+
+    /**
+     * Callback llamado cuando el servidor termina de enviar la sincronización.
+     *
+     * @param mensajesNuevos nº de mensajes que faltaban
+     */
+    public void onSincronizacionCompletada(long mensajesNuevos) {
+
+        LOG.info("Sincronización completada: " + mensajesNuevos + " mensajes nuevos");
+
+    }
+
     /**
      * Callback llamado cuando el servidor envía el historial completo de una conversación
      * @param conversacion conversación con todos sus mensajes.
@@ -347,6 +475,96 @@ public class MainControladorCliente {
         });
     }
 
+    /**
+     * Callback llamado cuando el servidor envía una página del historial.
+     *
+     * Si es justo la anterior a lo que ya tenemos se añade por arriba
+     * manteniendo la posición del scroll; si no, sustituye al historial.
+     *
+     * @param pagina mensajes de la página y su posición en la conversación
+     */
+    public void onPaginaHistorialRecibida(PaginaHistorial pagina) {
+
+        if (pagina == null) {
+
+            return;
+
+        }
+
+        Platform.runLater(() -> {
+
+            Optional<ConversacionLocal> localOpt = conversaciones.stream()
+                    .filter(c -> c.getIdConversacion().equals(pagina.getIdConversacion()))
+                    .findFirst();
+
+            if (localOpt.isEmpty()) {
+
+                return;
+
+            }
+
+            ConversacionLocal local = localOpt.get();
+            long finPagina = pagina.getPrimeraPosicion() + pagina.getMensajes().size();
+
+            boolean anterior = local.getPrimeraPosicion() > 0 && finPagina == local.getPrimeraPosicion();
+
+            // Continuación de lo que ya tenemos (SINCRONIZAR): se añade por el final
+            boolean posterior = local.getPrimeraPosicion() >= 0
+                    && pagina.getPrimeraPosicion() > local.getPrimeraPosicion()
+                    && pagina.getPrimeraPosicion() <= local.getUltimaPosicion() + 1;
+
+            if (posterior) {
+
+                local.fusionarPosteriores(pagina.getMensajes());
+
+                if (local.equals(conversacionSeleccionada)) {
+
+                    contenedorMensajes.getChildren().clear();
+
+                    for (Mensaje mensaje : local.getMensajes()) {
+
+                        pintarMensaje(mensaje);
+
+                    }
+
+                }
+
+                listViewConversaciones.refresh();
+                return;
+
+            }
+
+            if (!anterior) {
+
+                local.setPagina(pagina.getMensajes(), pagina.getPrimeraPosicion());
+
+                if (local.equals(conversacionSeleccionada)) {
+
+                    contenedorMensajes.getChildren().clear();
+
+                    for (Mensaje mensaje : local.getMensajes()) {
+
+                        pintarMensaje(mensaje);
+
+                    }
+
+                }
+
+                return;
+
+            }
+
+            local.anadirAnteriores(pagina.getMensajes(), pagina.getPrimeraPosicion());
+
+            if (local.equals(conversacionSeleccionada)) {
+
+                pintarMensajesAnteriores(pagina.getMensajes());
+
+            }
+
+        });
+    }
+
     /**
      * Callback llamado cuando llega un mensaje nuevo (entrante o enviado por nosotros,
      * según cómo lo usemos desde {@link ConexionCliente})
@@ -363,33 +581,37 @@ public class MainControladorCliente {
 
         Platform.runLater(() -> {
 
-            Optional<ConversacionLocal> localOpt = conversaciones.stream()
-                    .filter(c -> c.getIdConversacion().equals(mensaje.getIdConversacion()))
-                    .findFirst();
+            anadirMensajeEntrante(mensaje);
+
+            listViewConversaciones.refresh();
 
-            ConversacionLocal local;
+        });
+    }
 
-            if (localOpt.isPresent()) {
+    /**
+     * Callback llamado tras el LOGIN con los mensajes que llegaron mientras
+     * estábamos desconectados. Se aplican todos en una sola pasada por el
+     * hilo de JavaFX.
+     *
+     * @param mensajes mensajes pendientes, en orden de llegada
+     */
+    public void onMensajesPendientes(List<Mensaje> mensajes) {
 
-                local = localOpt.get();
+        if (mensajes == null || mensajes.isEmpty()) {
 
-            } else {
+            return;
 
-                local = new ConversacionLocal(
-                        mensaje.getIdConversacion(),
-                        mensaje.getRemitente(),
-                        mensaje.getRemitente()
-                );
+        }
 
-                conversaciones.add(0, local);
+        Platform.runLater(() -> {
 
-            }
+            for (Mensaje mensaje : mensajes) {
 
-            local.anadirMensaje(mensaje);
+                if (mensaje != null) {
 
-            if (local == conversacionSeleccionada) {
+                    anadirMensajeEntrante(mensaje);
 
-                pintarMensaje(mensaje);
+                }
 
             }
 
@@ -398,20 +620,122 @@ public class MainControladorCliente {
         });
     }
 
+    /**
+     * Añade el mensaje a su conversación (creándola si no existe) y lo
+     * pinta si es la que está abierta. Solo desde el hilo de JavaFX.
+     */
+    private void anadirMensajeEntrante(Mensaje mensaje) {
+
+        Optional<ConversacionLocal> localOpt = conversaciones.stream()
+                .filter(c -> c.getIdConversacion().equals(mensaje.getIdConversacion()))
+                .findFirst();
+
+        ConversacionLocal local;
+
+        if (localOpt.isPresent()) {
+
+            local = localOpt.get();
+
+        } else {
+
+            local = new ConversacionLocal(
+                    mensaje.getIdConversacion(),
+                    mensaje.getRemitente(),
+                    mensaje.getRemitente()
+            );
+
+            conversaciones.add(0, local);
+
+        }
+
+        if (!local.anadirMensaje(mensaje)) {
+
+            return;
+
+        }
+
+        if (local == conversacionSeleccionada) {
+
+            pintarMensaje(mensaje);
+
+        }
+    }
+
 
     /**
-     * Pinta una burbuja de mensaje en la conversación actual,
-     * eligiendo la plantilla adecuada (emisor o receptor).
+     * Pinta una burbuja de mensaje al final de la conversación actual
+     * y baja el scroll hasta ella.
      *
      * @param mensaje mensaje a representar.
      */
     private void pintarMensaje(Mensaje mensaje) {
 
+        HBox burbuja = crearBurbuja(mensaje);
+
+        if (burbuja == null) {
+
+            return;
+
+        }
+
+        contenedorMensajes.getChildren().add(burbuja);
+
+        // Forzamos a que el scroll baje al último mensaje.
+        scrollMensajes.layout();
+        scrollMensajes.setVvalue(1.0);
+    }
+
+    /**
+     * Pinta por arriba una página de mensajes más antiguos sin mover
+     * lo que el usuario está viendo.
+     *
+     * @param mensajes mensajes en orden cronológico
+     */
+    private void pintarMensajesAnteriores(List<Mensaje> mensajes) {
+
+        List<HBox> burbujas = new ArrayList<>();
+
+        for (Mensaje mensaje : mensajes) {
+
+            HBox burbuja = crearBurbuja(mensaje);
+
+            if (burbuja != null) {
+
+                burbujas.add(burbuja);
+
+            }
+
+        }
+
+        double altoAntes = contenedorMensajes.getHeight();
+
+        contenedorMensajes.getChildren().addAll(0, burbujas);
+
+        scrollMensajes.layout();
+
+        double altoDespues = contenedorMensajes.getHeight();
+        double desplazable = altoDespues - scrollMensajes.getViewportBounds().getHeight();
+
+        if (desplazable > 0) {
+
+            scrollMensajes.setVvalue((altoDespues - altoAntes) / desplazable);
+
+        }
+    }
+
+    /**
+     * Crea la burbuja de un mensaje eligiendo la plantilla adecuada
+     * (emisor o receptor).
+     *
+     * @return la burbuja o null si el mensaje no es válido
+     */
+    private HBox crearBurbuja(Mensaje mensaje) {
+
         if (mensaje == null || mensaje.getRemitente() == null) {
 
             LOG.warning("Mensaje inválido recibido.");
 
-            return;
+            return null;
 
         }
 
@@ -451,16 +775,14 @@ public class MainControladorCliente {
 
             ctrl.configurar(mensaje.getRemitente(), mensaje.getContenido(), hora);
 
-            contenedorMensajes.getChildren().add(burbuja);
-
-            // Forzamos a que el scroll baje al último mensaje.
-            scrollMensajes.layout();
-            scrollMensajes.setVvalue(1.0);
+            return burbuja;
 
         } catch (IOException e) {
 
             LOG.log(Level.SEVERE, "No se pudo cargar burbuja de mensaje", e);
 
+            return null;
+
         }
     }
 
@@ -542,7 +864,10 @@ public class MainControladorCliente {
     }
 
     /**
-     * Callback llamado cuando el servidor envía la lista de contactos conectados.
+     * Callback llamado cuando el servidor envía la lista de contactos conectados
+     * (LISTA_CONTACTOS_CONECTADOS o PRESENCIA_SNAPSHOT).
+     *
+     * No vacía la lista: solo quita, cambia o añade las filas que difieren.
      *
      * @param lista lista de contactos conectados actualmente
      */
@@ -552,11 +877,92 @@ public class MainControladorCliente {
             return;
         }
 
+        Platform.runLater(() -> sincronizarConectados(lista));
+    }
+
+    /**
+     * Callback llamado con los cambios de un PRESENCIA_DELTA ya validado
+     * (en orden de versión) por el handler de protocolo.
+     *
+     * @param cambios entradas, salidas y cambios de alias a aplicar
+     */
+    public void onCambiosPresencia(List<CambioPresencia> cambios) {
+
+        if (cambios == null || cambios.isEmpty()) {
+            return;
+        }
+
         Platform.runLater(() -> {
-            conectados.clear();
-            conectados.addAll(lista);
+            for (CambioPresencia cambio : cambios) {
+                aplicarCambioPresencia(cambio);
+            }
         });
     }
 
+    private void aplicarCambioPresencia(CambioPresencia cambio) {
+
+        Contacto contacto = cambio.getContacto();
+        int indice = indiceConectado(contacto.getIdContacto());
+
+        switch (cambio.getTipo()) {
+
+            case ENTRA:
+            case ALIAS:
+
+                if (indice >= 0) {
+                    conectados.set(indice, contacto);
+                } else {
+                    conectados.add(contacto);
+                }
+                break;
+
+            case SALE:
+
+                if (indice >= 0) {
+                    conectados.remove(indice);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Deja en "conectados" el contenido de la lista tocando solo lo que cambia.
+     */
+    private void sincronizarConectados(List<Contacto> lista) {
+
+        Map<String, Contacto> nuevos = new LinkedHashMap<>();
+
+        for (Contacto c : lista) {
+            nuevos.put(c.getIdContacto(), c);
+        }
+
+        conectados.removeIf(c -> !nuevos.containsKey(c.getIdContacto()));
+
+        for (int i = 0; i < conectados.size(); i++) {
+
+            Contacto actual = conectados.get(i);
+            Contacto nuevo = nuevos.remove(actual.getIdContacto());
+
+            if (!actual.getAliasVisible().equals(nuevo.getAliasVisible())
+                    || !actual.getIpRemota().equals(nuevo.getIpRemota())) {
+                conectados.set(i, nuevo);
+            }
+        }
+
+        conectados.addAll(nuevos.values());
+    }
+
+    private int indiceConectado(String idContacto) {
+
+        for (int i = 0; i < conectados.size(); i++) {
+
+            if (conectados.get(i).getIdContacto().equals(idContacto)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
 
 }
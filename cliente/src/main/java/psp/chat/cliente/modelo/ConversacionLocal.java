@@ -6,6 +6,7 @@ import psp.chat.general.modelo.ResumenConversacion;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Representa una conversación en el cliente, con:
@@ -14,6 +15,10 @@ import java.util.List;
  * - Alias visible
  * - Lista de mensajes
  * - Datos de resumen (último mensaje y fecha)
+ *
+ * El historial se carga por páginas: {@code primeraPosicion} es la posición
+ * en el servidor del primer mensaje de la lista (-1 si aún no se ha cargado
+ * ninguna página) y marca dónde empieza la siguiente página más antigua.
  */
 public class ConversacionLocal {
 
@@ -23,6 +28,9 @@ public class ConversacionLocal {
 
     private final List<Mensaje> mensajes;
 
+    private long primeraPosicion;
+    private boolean cargandoAnteriores;
+
     private String ultimoMensajeTexto;
     private LocalDateTime fechaUltimoMensaje;
 
@@ -52,6 +60,8 @@ public class ConversacionLocal {
         this.aliasVisible = aliasVisible;
 
         this.mensajes = new ArrayList<>();
+        this.primeraPosicion = -1;
+        this.cargandoAnteriores = false;
 
         this.ultimoMensajeTexto = "";
         this.fechaUltimoMensaje = null;
@@ -100,13 +110,126 @@ public class ConversacionLocal {
         recalcularResumen();
     }
 
+    /**
+     * Sustituye el historial por la página más reciente recibida.
+     */
+    public void setPagina(List<Mensaje> pagina, long primeraPosicion) {
+
+        setMensajes(pagina);
+
+        this.primeraPosicion = primeraPosicion;
+        this.cargandoAnteriores = false;
+    }
+
+    /**
+     * Inserta al principio una página de mensajes más antiguos.
+     */
+    public void anadirAnteriores(List<Mensaje> pagina, long primeraPosicion) {
+
+        List<Mensaje> validos = new ArrayList<>();
+
+        if (pagina != null) {
+
+            for (Mensaje m : pagina) {
+
+                if (m != null) {
+                    validos.add(m);
+                }
+
+            }
+        }
+
+        mensajes.addAll(0, validos);
+
+        this.primeraPosicion = primeraPosicion;
+        this.cargandoAnteriores = false;
+    }
+
+    /**
+     * Añade por el final mensajes más nuevos recibidos del servidor
+     * (sincronización). Se quitan antes los que ya tuviéramos a partir de
+     * esa posición y los propios aún sin confirmar que vengan en la página,
+     * para no duplicarlos.
+     *
+     * @param pagina mensajes en orden, con su posición asignada por el servidor
+     */
+    public void fusionarPosteriores(List<Mensaje> pagina) {
+
+        if (pagina == null || pagina.isEmpty()) {
+            return;
+        }
+
+        long desde = pagina.get(0).getPosicion();
+
+        mensajes.removeIf(m -> m.getPosicion() >= desde
+                || (m.getPosicion() < 0 && contieneIgual(pagina, m)));
+
+        for (Mensaje m : pagina) {
+
+            if (m != null) {
+                mensajes.add(m);
+            }
+
+        }
+
+        recalcularResumen();
+    }
+
+    /**
+     * @return posición del mensaje más nuevo confirmado por el servidor, o -1
+     */
+    public long getUltimaPosicion() {
+
+        for (int i = mensajes.size() - 1; i >= 0; i--) {
+
+            long posicion = mensajes.get(i).getPosicion();
+
+            if (posicion >= 0) {
+                return posicion;
+            }
+        }
+
+        return -1;
+    }
+
+    public long getPrimeraPosicion() {
+        return primeraPosicion;
+    }
+
+    /**
+     * @return true si el servidor tiene mensajes más antiguos sin cargar
+     */
+    public boolean hayAnteriores() {
+        return primeraPosicion > 0;
+    }
+
+    public boolean isCargandoAnteriores() {
+        return cargandoAnteriores;
+    }
+
+    public void setCargandoAnteriores(boolean cargandoAnteriores) {
+        this.cargandoAnteriores = cargandoAnteriores;
+    }
+
     /**
      * Añade un mensaje al final del historial y actualiza el resumen.
+     *
+     * Un mensaje con posición que no pasa de la última que ya tenemos se
+     * ignora: llega por NUEVO_MENSAJE después de que una página de
+     * SINCRONIZAR ya lo trajera.
+     *
+     * @return false si no se ha añadido (null o repetido)
      */
-    public void anadirMensaje(Mensaje mensaje) {
+    public boolean anadirMensaje(Mensaje mensaje) {
 
         if (mensaje == null) {
-            return;
+            return false;
+        }
+
+        long posicion = mensaje.getPosicion();
+
+        if (posicion >= 0 && posicion <= getUltimaPosicion()) {
+            return false;
         }
 
         mensajes.add(mensaje);
@@ -120,6 +243,8 @@ public class ConversacionLocal {
         }
 
         fechaUltimoMensaje = mensaje.getFechaHora();
+
+        return true;
     }
 
     /**
@@ -203,6 +328,21 @@ public class ConversacionLocal {
         }
     }
 
+    private boolean contieneIgual(List<Mensaje> pagina, Mensaje local) {
+
+        for (Mensaje m : pagina) {
+
+            if (m != null
+                    && Objects.equals(m.getRemitente(), local.getRemitente())
+                    && Objects.equals(m.getContenido(), local.getContenido())
+                    && Objects.equals(m.getFechaHora(), local.getFechaHora())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Override
     public String toString() {
         return aliasVisible + " (" + ipRemota + ")";
@@ -4,13 +4,21 @@ import psp.chat.cliente.controlador.MainControladorCliente;
 import psp.chat.cliente.modelo.ConversacionLocal;
 import psp.chat.cliente.modelo.UsuarioLocal;
 import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PeticionHistorial;
+import psp.chat.general.net.CodecTramas;
 import psp.chat.general.net.EmpaquetadoDatos;
+import psp.chat.general.net.FormatoTrama;
+import psp.chat.general.net.LectorTramas;
 import psp.chat.general.net.TipoComando;
 import psp.chat.general.net.TipoMensaje;
 import psp.chat.general.util.JsonUtil;
 
-import java.io.*;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,10 +27,23 @@ import java.util.logging.Logger;
  *
  * Abre socket, inicializa E/S, envía comandos y lanza el hilo
  * HandlerProtocoloCliente para lectura asíncrona.
+ *
+ * Con -Dguasapp.cliente.hilosVirtuales=true el lector corre en un hilo
+ * virtual en lugar de uno de plataforma.
+ *
+ * Nada más conectar se negocia el formato de trama (NEGOCIAR_FORMATO).
+ * Con -Dguasapp.cliente.formato=LINEA_JSON se mantiene el formato original;
+ * por defecto se pide BINARIO_COMPACTO y el servidor responde con el que
+ * acepta (BINARIO_COMPACTO, BINARIO o una de las líneas JSON).
+ *
+ * Si la conexión se cae, {@link GestionReconexion} la reabre y el cliente
+ * pide con SINCRONIZAR solo los mensajes que no tiene.
  */
 public class ConexionCliente {
 
     private static final Logger LOG = Logger.getLogger(ConexionCliente.class.getName());
+    private static final String PROPIEDAD_HILOS_VIRTUALES = "guasapp.cliente.hilosVirtuales";
+    private static final String PROPIEDAD_FORMATO = "guasapp.cliente.formato";
 
     private final String host;
     private final int puerto;
@@ -30,12 +51,21 @@ public class ConexionCliente {
     private final MainControladorCliente controlador;
 
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+
+    /** La UI y el hilo lector pueden enviar a la vez; cada trama sale entera */
+    private final ReentrantLock lockEnvio;
+    private volatile FormatoTrama formatoSalida;
 
     private final JsonUtil jsonUtil;
+    private final CodecTramas codec;
     private HandlerProtocoloCliente handler;
 
+    private final GestionReconexion reconexion;
+
+    /** true tras cerrar(): ya no se intenta reconectar */
+    private volatile boolean cerrada;
+
     public ConexionCliente(String host, int puerto, UsuarioLocal usuario, MainControladorCliente controlador) {
 
         if (host == null) {
@@ -55,46 +85,162 @@ public class ConexionCliente {
         this.usuario = usuario;
         this.controlador = controlador;
         this.jsonUtil = new JsonUtil();
+        this.codec = new CodecTramas(jsonUtil, new TiposPayloadCliente());
+        this.lockEnvio = new ReentrantLock();
+        this.formatoSalida = FormatoTrama.LINEA_JSON;
+        this.reconexion = new GestionReconexion(this);
     }
 
     /**
-     * Establece conexión con el servidor y envía LOGIN.
+     * Establece conexión con el servidor, negocia el formato y envía LOGIN.
      */
     public void conectar() {
 
+        if (!abrir()) {
+            controlador.mostrarError("No se pudo conectar con " + host + ":" + puerto);
+        }
+    }
+
+    /**
+     * Vuelve a conectar tras una caída. Lo llama {@link GestionReconexion}.
+     * Si lo consigue, refresca la lista de conversaciones y sincroniza solo
+     * lo posterior a los cursores tomados antes de abrir la conexión.
+     *
+     * @return true si se ha reconectado
+     */
+    boolean reconectar() {
+
+        if (cerrada) {
+            return false;
+        }
+
+        List<PeticionHistorial> cursores = controlador.capturarCursoresSincronizacion();
+
+        if (!abrir()) {
+            return false;
+        }
+
+        solicitarResumenConversaciones();
+        sincronizar(cursores);
+        controlador.onReconectado();
+
+        return true;
+    }
+
+    /**
+     * El hilo lector ha terminado sin que se cerrase la conexión a propósito.
+     */
+    void conexionPerdida() {
+
+        if (cerrada) {
+            return;
+        }
+
+        LOG.warning("Conexión perdida con el servidor");
+        controlador.mostrarMensajeSistema("Conexión perdida con el servidor, reintentando...");
+
+        reconexion.intentarReconectar();
+    }
+
+    public boolean isCerrada() {
+        return cerrada;
+    }
+
+    /**
+     * Abre el socket, arranca el lector y envía NEGOCIAR_FORMATO, LOGIN
+     * y la petición de presencia.
+     *
+     * @return false si no se ha podido conectar
+     */
+    private boolean abrir() {
+
         try {
             socket = new Socket(host, puerto);
 
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            // Cada sesión nueva del servidor empieza en LINEA_JSON
+            formatoSalida = FormatoTrama.LINEA_JSON;
+
+            out = new BufferedOutputStream(socket.getOutputStream());
+            LectorTramas lector = new LectorTramas(socket.getInputStream(), codec);
 
             controlador.mostrarMensajeSistema("Conectado al servidor " + host + ":" + puerto);
 
-            handler = new HandlerProtocoloCliente(in, controlador, jsonUtil);
+            handler = new HandlerProtocoloCliente(lector, this, controlador, jsonUtil);
+
+            crearHiloLector(handler).start();
 
-            Thread hilo = new Thread(handler, "HandlerProtocoloCliente");
-            hilo.setDaemon(true);
-            hilo.start();
+            // Se pide el formato en línea JSON: un servidor antiguo lo ignora
+            FormatoTrama pedido = leerFormatoPedido();
+
+            if (pedido != FormatoTrama.LINEA_JSON) {
+                enviarEmpaquetado(jsonUtil.empaquetar(TipoComando.NEGOCIAR_FORMATO, pedido));
+            }
 
             // LOGIN automático
             String alias = usuario.getAlias();
             if (alias == null) alias = "";
 
-            EmpaquetadoDatos login = new EmpaquetadoDatos(
+            EmpaquetadoDatos login = jsonUtil.empaquetar(
                     TipoComando.LOGIN,
-                    jsonUtil.toJson(alias)
+                    alias
             );
 
             enviarEmpaquetado(login);
 
+            // Presencia: snapshot inicial y deltas a partir de él
+            solicitarListaContactosConectados();
+
+            return true;
+
         } catch (IOException e) {
 
             LOG.log(Level.SEVERE, "Error al conectar con el servidor: " + e.getMessage(), e);
-            controlador.mostrarError("No se pudo conectar con " + host + ":" + puerto);
 
+            return false;
+        }
+    }
+
+    /**
+     * Crea el hilo lector del protocolo: virtual si así se ha configurado,
+     * o de plataforma (daemon) por defecto.
+     */
+    private Thread crearHiloLector(HandlerProtocoloCliente handler) {
+
+        if (Boolean.getBoolean(PROPIEDAD_HILOS_VIRTUALES)) {
+            return Thread.ofVirtual().name("HandlerProtocoloCliente").unstarted(handler);
+        }
+
+        Thread hilo = new Thread(handler, "HandlerProtocoloCliente");
+        hilo.setDaemon(true);
+        return hilo;
+    }
+
+    private FormatoTrama leerFormatoPedido() {
+
+        String valor = System.getProperty(PROPIEDAD_FORMATO, FormatoTrama.BINARIO_COMPACTO.name());
+
+        try {
+            return FormatoTrama.valueOf(valor.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Formato de trama no válido (" + valor + "), se usa LINEA_JSON");
+            return FormatoTrama.LINEA_JSON;
         }
     }
 
+    /**
+     * Fija el formato de envío acordado con el servidor.
+     * Lo llama el handler al recibir la respuesta a NEGOCIAR_FORMATO.
+     */
+    void activarFormato(FormatoTrama formato) {
+
+        if (formato == null) {
+            return;
+        }
+
+        this.formatoSalida = formato;
+        LOG.info("Formato de trama acordado: " + formato);
+    }
+
     /**
      * Solicita al servidor el resumen de conversaciones.
      */
@@ -103,22 +249,24 @@ public class ConexionCliente {
         String alias = usuario.getAlias();
         if (alias == null) alias = "";
 
-        EmpaquetadoDatos paquete = new EmpaquetadoDatos(
+        EmpaquetadoDatos paquete = jsonUtil.empaquetar(
                 TipoComando.LISTA_CONVERSACIONES,
-                jsonUtil.toJson(alias)
+                alias
         );
 
         enviarEmpaquetado(paquete);
     }
 
     /**
-     * Solicita al servidor la lista de contactos conectados.
+     * Solicita al servidor el estado completo de presencia (PRESENCIA_SNAPSHOT).
+     * Desde ese momento el servidor solo envía deltas; el handler lo vuelve
+     * a pedir si detecta que se ha perdido alguno.
      */
     public void solicitarListaContactosConectados() {
 
-        EmpaquetadoDatos paquete = new EmpaquetadoDatos(
-                TipoComando.LISTA_CONTACTOS_CONECTADOS,
-                "\"ok\""
+        EmpaquetadoDatos paquete = jsonUtil.empaquetar(
+                TipoComando.PRESENCIA_SNAPSHOT,
+                "ok"
         );
 
         enviarEmpaquetado(paquete);
@@ -133,9 +281,45 @@ public class ConexionCliente {
             return;
         }
 
-        EmpaquetadoDatos paquete = new EmpaquetadoDatos(
+        EmpaquetadoDatos paquete = jsonUtil.empaquetar(
                 TipoComando.HISTORIAL_CONVERSACION,
-                jsonUtil.toJson(idConversacion)
+                idConversacion
+        );
+
+        enviarEmpaquetado(paquete);
+    }
+
+    /**
+     * Solicita una página del historial (los más recientes o los anteriores
+     * a una posición, según la petición).
+     */
+    public void solicitarPaginaHistorial(PeticionHistorial peticion) {
+
+        if (peticion == null) {
+            return;
+        }
+
+        EmpaquetadoDatos paquete = jsonUtil.empaquetar(
+                TipoComando.HISTORIAL_PAGINA,
+                peticion
+        );
+
+        enviarEmpaquetado(paquete);
+    }
+
+    /**
+     * Pide los mensajes posteriores a la última posición que se tiene de
+     * cada conversación (un PeticionHistorial con despuesDe por conversación).
+     */
+    public void sincronizar(List<PeticionHistorial> cursores) {
+
+        if (cursores == null || cursores.isEmpty()) {
+            return;
+        }
+
+        EmpaquetadoDatos paquete = jsonUtil.empaquetar(
+                TipoComando.SINCRONIZAR,
+                cursores
         );
 
         enviarEmpaquetado(paquete);
@@ -163,9 +347,9 @@ public class ConexionCliente {
                 texto
         );
 
-        EmpaquetadoDatos paquete = new EmpaquetadoDatos(
+        EmpaquetadoDatos paquete = jsonUtil.empaquetar(
                 TipoComando.NUEVO_MENSAJE,
-                jsonUtil.toJson(mensaje)
+                mensaje
         );
 
         enviarEmpaquetado(paquete);
@@ -176,14 +360,24 @@ public class ConexionCliente {
     }
 
     /**
-     * Envía un paquete JSON al servidor.
+     * Envía un paquete al servidor en el formato acordado.
      */
     private void enviarEmpaquetado(EmpaquetadoDatos paquete) {
 
         if (paquete == null) return;
         if (out == null) return;
 
-        out.println(jsonUtil.toJson(paquete));
+        byte[] trama = codec.codificar(paquete, formatoSalida);
+
+        lockEnvio.lock();
+        try {
+            out.write(trama);
+            out.flush();
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Error enviando al servidor: " + e.getMessage(), e);
+        } finally {
+            lockEnvio.unlock();
+        }
     }
 
     /**
@@ -191,6 +385,8 @@ public class ConexionCliente {
      */
     public void cerrar() {
 
+        cerrada = true;
+
         try {
             if (handler != null) {
                 handler.detener();
@@ -1,17 +1,28 @@
 package psp.chat.cliente.net;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
- * Clase preparada para gestionar lógica de reconexión automática
- * al servidor en caso de caída de la conexión
+ * Gestiona la reconexión automática al servidor en caso de caída
+ * de la conexión.
+ *
+ * Reintenta en un hilo aparte con espera creciente (1 s, 2 s, 4 s... hasta
+ * 30 s) mientras la conexión no se haya cerrado a propósito. Al reconectar,
+ * {@link ConexionCliente} pide solo lo que ha cambiado (SINCRONIZAR).
  */
 public class GestionReconexion {
 
     private static final Logger LOG = Logger.getLogger(GestionReconexion.class.getName());
 
+    private static final long ESPERA_INICIAL_MS = 1_000;
+    private static final long ESPERA_MAXIMA_MS = 30_000;
+
     private final ConexionCliente conexionCliente;
 
+    /** Solo un hilo de reconexión a la vez */
+    private final AtomicBoolean reconectando;
+
     /**
      * Crea una nueva gestión de reconexión asociada a una conexión concreta.
      *
@@ -26,17 +37,58 @@ public class GestionReconexion {
         }
 
         this.conexionCliente = conexionCliente;
+        this.reconectando = new AtomicBoolean(false);
 
     }
 
     /**
-     * Inicia un intento de reconexión
+     * Inicia un intento de reconexión (si no hay ya uno en marcha)
      */
     public void intentarReconectar() {
 
-        LOG.info("Intentando reconectar con el servidor (estrategia pendiente de implementar).");
-        // TODO: implementar lógica de reconexión
+        if (!reconectando.compareAndSet(false, true)) {
+
+            return;
+
+        }
+
+        Thread hilo = new Thread(this::bucleReconexion, "GestionReconexion");
+        hilo.setDaemon(true);
+        hilo.start();
+
+    }
+
+    private void bucleReconexion() {
+
+        long espera = ESPERA_INICIAL_MS;
+
+        try {
+
+            while (!conexionCliente.isCerrada()) {
 
+                LOG.info("Intentando reconectar con el servidor en " + espera + " ms");
+
+                Thread.sleep(espera);
+
+                if (conexionCliente.reconectar()) {
+
+                    LOG.info("Reconectado con el servidor");
+                    return;
+
+                }
+
+                espera = Math.min(espera * 2, ESPERA_MAXIMA_MS);
+            }
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+        } finally {
+
+            reconectando.set(false);
+
+        }
     }
 
     /**
@@ -46,4 +98,3 @@ public class GestionReconexion {
         return conexionCliente;
     }
 }
-
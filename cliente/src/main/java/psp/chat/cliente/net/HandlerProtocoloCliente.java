@@ -3,13 +3,17 @@ package psp.chat.cliente.net;
 import psp.chat.cliente.controlador.MainControladorCliente;
 import psp.chat.general.modelo.Conversacion;
 import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
 import psp.chat.general.modelo.ResumenConversacion;
 import psp.chat.general.modelo.Contacto;
+import psp.chat.general.modelo.PresenciaDelta;
+import psp.chat.general.modelo.PresenciaSnapshot;
 import psp.chat.general.net.EmpaquetadoDatos;
+import psp.chat.general.net.FormatoTrama;
+import psp.chat.general.net.LectorTramas;
 import psp.chat.general.net.TipoComando;
 import psp.chat.general.util.JsonUtil;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.List;
 import java.util.logging.Level;
@@ -23,23 +27,34 @@ public class HandlerProtocoloCliente implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(HandlerProtocoloCliente.class.getName());
 
-    private final BufferedReader in;
+    private final LectorTramas lector;
+    private final ConexionCliente conexion;
     private final MainControladorCliente controlador;
     private final JsonUtil jsonUtil;
 
     private volatile boolean seguirLeyendo;
 
+    /** Versión de presencia aplicada (-1 = aún sin snapshot); solo la toca este hilo */
+    private long versionPresencia;
+    private boolean esperandoSnapshot;
+
     /**
      * Crea un nuevo manejador de protocolo
      *
-     * @param in flujo de entrada del socket
+     * @param lector lector de tramas sobre la entrada del socket
+     * @param conexion conexión a la que se comunica el formato negociado
      * @param controlador controlador principal del cliente
      * @param jsonUtil util para serialización/deserialización JSON
      */
-    public HandlerProtocoloCliente(BufferedReader in, MainControladorCliente controlador, JsonUtil jsonUtil) {
+    public HandlerProtocoloCliente(LectorTramas lector, ConexionCliente conexion,
+                                   MainControladorCliente controlador, JsonUtil jsonUtil) {
+
+        if (lector == null) {
+            throw new IllegalArgumentException("lector no puede ser null");
+        }
 
-        if (in == null) {
-            throw new IllegalArgumentException("BufferedReader no puede ser null");
+        if (conexion == null) {
+            throw new IllegalArgumentException("conexion no puede ser null");
         }
 
         if (controlador == null) {
@@ -50,37 +65,37 @@ public class HandlerProtocoloCliente implements Runnable {
             throw new IllegalArgumentException("jsonUtil no puede ser null");
         }
 
-        this.in = in;
+        this.lector = lector;
+        this.conexion = conexion;
         this.controlador = controlador;
         this.jsonUtil = jsonUtil;
 
         this.seguirLeyendo = true;
+        this.versionPresencia = -1;
+        this.esperandoSnapshot = true;
     }
 
     /**
      * Bucle principal de lectura de mensajes desde el servidor
-     * Lee línea a línea, deserializa a {@link EmpaquetadoDatos} y
+     * Lee trama a trama (línea JSON o binaria) como {@link EmpaquetadoDatos} y
      * actúa según el comando recibido
      */
     @Override
     public void run() {
         try {
 
-            String linea = in.readLine();
-
-            while (seguirLeyendo && linea != null) {
+            EmpaquetadoDatos paquete = lector.leer();
 
-                EmpaquetadoDatos paquete = jsonUtil.fromJson(linea, EmpaquetadoDatos.class);
+            while (seguirLeyendo && paquete != null) {
 
                 TipoComando comando = paquete.getComando();
-                String payloadJson = paquete.getPayloadJson();
 
                 switch (comando) {
 
                     case LISTA_CONVERSACIONES:
 
                         List<ResumenConversacion> resumenes =
-                                jsonUtil.fromJsonLista(payloadJson, ResumenConversacion.class);
+                                jsonUtil.leerPayloadLista(paquete, ResumenConversacion.class);
 
                         controlador.onResumenConversacionesRecibido(resumenes);
                         break;
@@ -88,20 +103,51 @@ public class HandlerProtocoloCliente implements Runnable {
                     case HISTORIAL_CONVERSACION:
 
                         Conversacion conversacion =
-                                jsonUtil.fromJson(payloadJson, Conversacion.class);
+                                jsonUtil.leerPayload(paquete, Conversacion.class);
 
                         controlador.onHistorialConversacionRecibido(conversacion);
                         break;
 
+                    case HISTORIAL_PAGINA:
+
+                        controlador.onPaginaHistorialRecibida(jsonUtil.leerPayload(paquete, PaginaHistorial.class));
+                        break;
+
                     case NUEVO_MENSAJE:
 
-                        Mensaje mensaje = jsonUtil.fromJson(payloadJson, Mensaje.class);
+                        Mensaje mensaje = jsonUtil.leerPayload(paquete, Mensaje.class);
                         controlador.onMensajeEntrante(mensaje);
                         break;
 
+                    case MENSAJES_PENDIENTES:
+
+                        controlador.onMensajesPendientes(jsonUtil.leerPayloadLista(paquete, Mensaje.class));
+                        break;
+
                     case LISTA_CONTACTOS_CONECTADOS:
 
-                        procesarListaContactosConectados(payloadJson);
+                        procesarListaContactosConectados(paquete);
+                        break;
+
+                    case PRESENCIA_SNAPSHOT:
+
+                        procesarSnapshotPresencia(jsonUtil.leerPayload(paquete, PresenciaSnapshot.class));
+                        break;
+
+                    case PRESENCIA_DELTA:
+
+                        procesarDeltaPresencia(jsonUtil.leerPayload(paquete, PresenciaDelta.class));
+                        break;
+
+                    case SINCRONIZAR:
+
+                        Long nuevos = jsonUtil.leerPayload(paquete, Long.class);
+                        controlador.onSincronizacionCompletada(nuevos != null ? nuevos : 0);
+                        break;
+
+                    case NEGOCIAR_FORMATO:
+
+                        conexion.activarFormato(jsonUtil.leerPayload(paquete, FormatoTrama.class));
                         break;
 
                     default:
@@ -111,32 +157,31 @@ public class HandlerProtocoloCliente implements Runnable {
 
                 }
 
-                linea = in.readLine();
+                paquete = lector.leer();
             }
 
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
 
             LOG.log(Level.SEVERE,
                     "Error leyendo desde el servidor: " + e.getMessage(), e);
 
-            // TODO: GestionReconexion
+        }
+
+        // Fin de la lectura sin haberla detenido nosotros: se ha caído
+        if (seguirLeyendo) {
+            conexion.conexionPerdida();
         }
     }
 
     /**
      * Procesa la lista completa de contactos conectados enviada por el servidor.
      *
-     * @param payloadJson lista JSON de contactos conectados
+     * @param paquete paquete con la lista de contactos conectados
      */
-    private void procesarListaContactosConectados(String payloadJson) {
-
-        if (payloadJson == null) {
-            LOG.warning("Payload LISTA_CONTACTOS_CONECTADOS nulo");
-            return;
-        }
+    private void procesarListaContactosConectados(EmpaquetadoDatos paquete) {
 
         // Lista de objetos Contacto
-        List<Contacto> lista = jsonUtil.fromJsonLista(payloadJson, Contacto.class);
+        List<Contacto> lista = jsonUtil.leerPayloadLista(paquete, Contacto.class);
 
         if (lista == null) {
             LOG.warning("No se pudo parsear lista de contactos conectados");
@@ -147,6 +192,53 @@ public class HandlerProtocoloCliente implements Runnable {
         controlador.onListaContactosConectados(lista);
     }
 
+    /**
+     * Fija el estado de presencia completo y la versión a partir de la que
+     * se aplican los deltas.
+     */
+    private void procesarSnapshotPresencia(PresenciaSnapshot snapshot) {
+
+        if (snapshot == null) {
+            LOG.warning("No se pudo parsear PRESENCIA_SNAPSHOT");
+            return;
+        }
+
+        versionPresencia = snapshot.getVersion();
+        esperandoSnapshot = false;
+
+        controlador.onListaContactosConectados(snapshot.getContactos());
+    }
+
+    /**
+     * Aplica un delta solo si parte de la versión actual. Los antiguos se
+     * ignoran; ante un salto se pide un snapshot y se ignoran los deltas
+     * hasta recibirlo.
+     */
+    private void procesarDeltaPresencia(PresenciaDelta delta) {
+
+        if (delta == null || esperandoSnapshot) {
+            return;
+        }
+
+        if (delta.getVersion() <= versionPresencia) {
+            return;
+        }
+
+        if (delta.getVersionAnterior() != versionPresencia) {
+
+            LOG.info("Salto de versión de presencia (" + versionPresencia + " → "
+                    + delta.getVersionAnterior() + "), se pide snapshot");
+
+            esperandoSnapshot = true;
+            conexion.solicitarListaContactosConectados();
+            return;
+        }
+
+        versionPresencia = delta.getVersion();
+
+        controlador.onCambiosPresencia(delta.getCambios());
+    }
+
     /**
      * Marca el hilo para detener la lectura
      */
@@ -0,0 +1,70 @@
+package psp.chat.cliente.net;
+
+import com.google.gson.reflect.TypeToken;
+import psp.chat.general.modelo.Contacto;
+import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+import psp.chat.general.modelo.PresenciaDelta;
+import psp.chat.general.modelo.PresenciaSnapshot;
+import psp.chat.general.modelo.ResumenConversacion;
+import psp.chat.general.net.FormatoTrama;
+import psp.chat.general.net.TipoComando;
+import psp.chat.general.net.TiposPayload;
+
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Tipos de payload de los comandos que recibe el cliente.
+ */
+class TiposPayloadCliente implements TiposPayload {
+
+    private final Type listaResumenes = TypeToken.getParameterized(List.class, ResumenConversacion.class).getType();
+    private final Type listaContactos = TypeToken.getParameterized(List.class, Contacto.class).getType();
+    private final Type listaMensajes = TypeToken.getParameterized(List.class, Mensaje.class).getType();
+
+    @Override
+    public Type tipoPayload(TipoComando comando) {
+
+        switch (comando) {
+
+            case LISTA_CONVERSACIONES:
+                return listaResumenes;
+
+            case HISTORIAL_CONVERSACION:
+                return Conversacion.class;
+
+            case HISTORIAL_PAGINA:
+                return PaginaHistorial.class;
+
+            case NUEVO_MENSAJE:
+                return Mensaje.class;
+
+            case MENSAJES_PENDIENTES:
+                return listaMensajes;
+
+            case LISTA_CONTACTOS_CONECTADOS:
+                return listaContactos;
+
+            case PRESENCIA_SNAPSHOT:
+                return PresenciaSnapshot.class;
+
+            case PRESENCIA_DELTA:
+                return PresenciaDelta.class;
+
+            case NEGOCIAR_FORMATO:
+                return FormatoTrama.class;
+
+            case SINCRONIZAR:
+                return Long.class;
+
+            case ACK:
+            case ERROR:
+                return String.class;
+
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,786 @@
+package psp.chat.general.modelo;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import psp.chat.general.net.TipoCambioPresencia;
+import psp.chat.general.net.TipoMensaje;
+import psp.chat.general.util.PoolIdentificadores;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adaptadores de Gson escritos a mano para todas las clases del modelo y
+ * para LocalDateTime. Se registran en JsonUtil.
+ *
+ * Leen y escriben por tokens (JsonReader/JsonWriter), sin reflexión ni
+ * árbol JsonElement intermedio. El JSON es exactamente el que producía
+ * Gson por reflexión: mismos nombres, orden de declaración de los campos
+ * y sin los campos null. Al leer se ignoran los campos desconocidos, los
+ * que faltan quedan con el valor por defecto de la clase y los null se
+ * normalizan igual que en los constructores (nunca quedan campos null).
+ *
+ * Los objetos se crean con su constructor completo: así no se consulta el
+ * reloj ni se genera un UUID que el JSON va a sobrescribir. Los ids de
+ * cada Mensaje leído (conversación, remitente y destinatario) pasan por
+ * {@link PoolIdentificadores#COMPARTIDO}, así que los mensajes de una misma
+ * conversación comparten esas instancias.
+ */
+public final class AdaptadoresModelo implements TypeAdapterFactory {
+
+    private static final DateTimeFormatter FORMATO_FECHA = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+    private static final TipoMensaje[] TIPOS_MENSAJE = TipoMensaje.values();
+    private static final TipoCambioPresencia[] TIPOS_CAMBIO = TipoCambioPresencia.values();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> tipo) {
+
+        Class<? super T> clase = tipo.getRawType();
+
+        if (clase == LocalDateTime.class) {
+            return (TypeAdapter<T>) new AdaptadorFecha().nullSafe();
+        }
+
+        if (clase == Mensaje.class) {
+            return (TypeAdapter<T>) new AdaptadorMensaje(gson.getAdapter(LocalDateTime.class), PoolIdentificadores.COMPARTIDO).nullSafe();
+        }
+
+        if (clase == Contacto.class) {
+            return (TypeAdapter<T>) new AdaptadorContacto().nullSafe();
+        }
+
+        if (clase == Conversacion.class) {
+            return (TypeAdapter<T>) new AdaptadorConversacion(gson.getAdapter(Mensaje.class)).nullSafe();
+        }
+
+        if (clase == PaginaHistorial.class) {
+            return (TypeAdapter<T>) new AdaptadorPaginaHistorial(gson.getAdapter(Mensaje.class)).nullSafe();
+        }
+
+        if (clase == PeticionHistorial.class) {
+            return (TypeAdapter<T>) new AdaptadorPeticionHistorial().nullSafe();
+        }
+
+        if (clase == ResumenConversacion.class) {
+            return (TypeAdapter<T>) new AdaptadorResumen().nullSafe();
+        }
+
+        if (clase == CambioPresencia.class) {
+            return (TypeAdapter<T>) new AdaptadorCambioPresencia(gson.getAdapter(Contacto.class)).nullSafe();
+        }
+
+        if (clase == PresenciaDelta.class) {
+            return (TypeAdapter<T>) new AdaptadorPresenciaDelta(gson.getAdapter(CambioPresencia.class)).nullSafe();
+        }
+
+        if (clase == PresenciaSnapshot.class) {
+            return (TypeAdapter<T>) new AdaptadorPresenciaSnapshot(gson.getAdapter(Contacto.class)).nullSafe();
+        }
+
+        return null;
+    }
+
+    /* ==========================================================
+     *                       ADAPTADORES
+     * ========================================================== */
+
+    /**
+     * LocalDateTime como texto ISO (2024-05-01T10:15:30.123456); "" o
+     * solo espacios se leen como null.
+     */
+    private static final class AdaptadorFecha extends TypeAdapter<LocalDateTime> {
+
+        @Override
+        public void write(JsonWriter out, LocalDateTime valor) throws IOException {
+            out.value(FORMATO_FECHA.format(valor));
+        }
+
+        @Override
+        public LocalDateTime read(JsonReader in) throws IOException {
+
+            String texto = in.nextString().trim();
+
+            return texto.isEmpty() ? null : LocalDateTime.parse(texto, FORMATO_FECHA);
+        }
+    }
+
+    private static final class AdaptadorMensaje extends TypeAdapter<Mensaje> {
+
+        private final TypeAdapter<LocalDateTime> fechas;
+        private final PoolIdentificadores ids;
+
+        AdaptadorMensaje(TypeAdapter<LocalDateTime> fechas, PoolIdentificadores ids) {
+            this.fechas = fechas;
+            this.ids = ids;
+        }
+
+        @Override
+        public void write(JsonWriter out, Mensaje m) throws IOException {
+
+            out.beginObject();
+            escribirTexto(out, "idConversacion", m.getIdConversacion());
+            escribirTexto(out, "remitente", m.getRemitente());
+            escribirTexto(out, "destinatario", m.getDestinatario());
+            escribirEnum(out, "tipoMensaje", m.getTipoMensaje());
+            escribirTexto(out, "contenido", m.getContenido());
+
+            if (m.getFechaHora() != null) {
+                out.name("fechaHora");
+                fechas.write(out, m.getFechaHora());
+            }
+
+            out.name("posicion").value(m.getPosicion());
+            out.endObject();
+        }
+
+        @Override
+        public Mensaje read(JsonReader in) throws IOException {
+
+            String idConversacion = null;
+            String remitente = null;
+            String destinatario = null;
+            TipoMensaje tipoMensaje = null;
+            String contenido = null;
+            LocalDateTime fechaHora = null;
+            long posicion = -1;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "idConversacion":
+                        idConversacion = ids.canonico(leerTexto(in));
+                        break;
+
+                    case "remitente":
+                        remitente = ids.canonico(leerTexto(in));
+                        break;
+
+                    case "destinatario":
+                        destinatario = ids.canonico(leerTexto(in));
+                        break;
+
+                    case "tipoMensaje":
+                        tipoMensaje = leerEnum(in, TIPOS_MENSAJE);
+                        break;
+
+                    case "contenido":
+                        contenido = leerTexto(in);
+                        break;
+
+                    case "fechaHora":
+                        fechaHora = fechas.read(in);
+                        break;
+
+                    case "posicion":
+                        posicion = leerLong(in, posicion);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            return new Mensaje(idConversacion, remitente, destinatario, tipoMensaje, contenido, fechaHora, posicion);
+        }
+    }
+
+    private static final class AdaptadorContacto extends TypeAdapter<Contacto> {
+
+        @Override
+        public void write(JsonWriter out, Contacto c) throws IOException {
+
+            out.beginObject();
+            escribirTexto(out, "idContacto", c.getIdContacto());
+            escribirTexto(out, "ipRemota", c.getIpRemota());
+            escribirTexto(out, "aliasVisible", c.getAliasVisible());
+            out.endObject();
+        }
+
+        @Override
+        public Contacto read(JsonReader in) throws IOException {
+
+            String idContacto = null;
+            String ipRemota = null;
+            String aliasVisible = null;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "idContacto":
+                        idContacto = leerTexto(in);
+                        break;
+
+                    case "ipRemota":
+                        ipRemota = leerTexto(in);
+                        break;
+
+                    case "aliasVisible":
+                        aliasVisible = leerTexto(in);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            return new Contacto(idContacto, ipRemota, aliasVisible);
+        }
+    }
+
+    private static final class AdaptadorConversacion extends TypeAdapter<Conversacion> {
+
+        private final TypeAdapter<Mensaje> mensajes;
+
+        AdaptadorConversacion(TypeAdapter<Mensaje> mensajes) {
+            this.mensajes = mensajes;
+        }
+
+        @Override
+        public void write(JsonWriter out, Conversacion c) throws IOException {
+
+            out.beginObject();
+            escribirTexto(out, "idConversacion", c.getIdConversacion());
+            escribirTexto(out, "ipRemota", c.getIpRemota());
+            escribirTexto(out, "aliasVisible", c.getAliasVisible());
+            escribirLista(out, "mensajes", c.getMensajes(), mensajes);
+            out.endObject();
+        }
+
+        @Override
+        public Conversacion read(JsonReader in) throws IOException {
+
+            String idConversacion = null;
+            String ipRemota = null;
+            String aliasVisible = null;
+            List<Mensaje> lista = null;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "idConversacion":
+                        idConversacion = leerTexto(in);
+                        break;
+
+                    case "ipRemota":
+                        ipRemota = leerTexto(in);
+                        break;
+
+                    case "aliasVisible":
+                        aliasVisible = leerTexto(in);
+                        break;
+
+                    case "mensajes":
+                        lista = leerLista(in, mensajes);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            Conversacion c = new Conversacion(idConversacion, ipRemota, aliasVisible);
+            c.setMensajes(lista);
+
+            return c;
+        }
+    }
+
+    private static final class AdaptadorPaginaHistorial extends TypeAdapter<PaginaHistorial> {
+
+        private final TypeAdapter<Mensaje> mensajes;
+
+        AdaptadorPaginaHistorial(TypeAdapter<Mensaje> mensajes) {
+            this.mensajes = mensajes;
+        }
+
+        @Override
+        public void write(JsonWriter out, PaginaHistorial p) throws IOException {
+
+            out.beginObject();
+            escribirTexto(out, "idConversacion", p.getIdConversacion());
+            escribirTexto(out, "ipRemota", p.getIpRemota());
+            escribirTexto(out, "aliasVisible", p.getAliasVisible());
+            out.name("primeraPosicion").value(p.getPrimeraPosicion());
+            out.name("total").value(p.getTotal());
+            escribirLista(out, "mensajes", p.getMensajes(), mensajes);
+            out.endObject();
+        }
+
+        @Override
+        public PaginaHistorial read(JsonReader in) throws IOException {
+
+            String idConversacion = null;
+            String ipRemota = null;
+            String aliasVisible = null;
+            long primeraPosicion = 0;
+            long total = 0;
+            List<Mensaje> lista = null;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "idConversacion":
+                        idConversacion = leerTexto(in);
+                        break;
+
+                    case "ipRemota":
+                        ipRemota = leerTexto(in);
+                        break;
+
+                    case "aliasVisible":
+                        aliasVisible = leerTexto(in);
+                        break;
+
+                    case "primeraPosicion":
+                        primeraPosicion = leerLong(in, primeraPosicion);
+                        break;
+
+                    case "total":
+                        total = leerLong(in, total);
+                        break;
+
+                    case "mensajes":
+                        lista = leerLista(in, mensajes);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            return new PaginaHistorial(idConversacion, ipRemota, aliasVisible, primeraPosicion, total, lista);
+        }
+    }
+
+    private static final class AdaptadorPeticionHistorial extends TypeAdapter<PeticionHistorial> {
+
+        @Override
+        public void write(JsonWriter out, PeticionHistorial p) throws IOException {
+
+            out.beginObject();
+            escribirTexto(out, "idConversacion", p.getIdConversacion());
+
+            if (p.getAntesDe() != null) {
+                out.name("antesDe").value(p.getAntesDe());
+            }
+
+            if (p.getDespuesDe() != null) {
+                out.name("despuesDe").value(p.getDespuesDe());
+            }
+
+            out.name("limite").value(p.getLimite());
+            out.endObject();
+        }
+
+        @Override
+        public PeticionHistorial read(JsonReader in) throws IOException {
+
+            String idConversacion = null;
+            Long antesDe = null;
+            Long despuesDe = null;
+            int limite = 0;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "idConversacion":
+                        idConversacion = leerTexto(in);
+                        break;
+
+                    case "antesDe":
+                        antesDe = leerLongNulable(in);
+                        break;
+
+                    case "despuesDe":
+                        despuesDe = leerLongNulable(in);
+                        break;
+
+                    case "limite":
+                        limite = (int) leerLong(in, limite);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            return new PeticionHistorial(idConversacion, antesDe, despuesDe, limite);
+        }
+    }
+
+    private static final class AdaptadorResumen extends TypeAdapter<ResumenConversacion> {
+
+        @Override
+        public void write(JsonWriter out, ResumenConversacion r) throws IOException {
+
+            out.beginObject();
+            escribirTexto(out, "idConversacion", r.getIdConversacion());
+            escribirTexto(out, "ipRemota", r.getIpRemota());
+            escribirTexto(out, "aliasVisible", r.getAliasVisible());
+            escribirTexto(out, "ultimoMensaje", r.getUltimoMensaje());
+            escribirTexto(out, "fechaUltimoMensaje", r.getFechaUltimoMensaje());
+            out.name("mensajesNoLeidos").value(r.getMensajesNoLeidos());
+            out.endObject();
+        }
+
+        @Override
+        public ResumenConversacion read(JsonReader in) throws IOException {
+
+            String idConversacion = null;
+            String ipRemota = null;
+            String aliasVisible = null;
+            String ultimoMensaje = null;
+            String fechaUltimoMensaje = null;
+            int mensajesNoLeidos = 0;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "idConversacion":
+                        idConversacion = leerTexto(in);
+                        break;
+
+                    case "ipRemota":
+                        ipRemota = leerTexto(in);
+                        break;
+
+                    case "aliasVisible":
+                        aliasVisible = leerTexto(in);
+                        break;
+
+                    case "ultimoMensaje":
+                        ultimoMensaje = leerTexto(in);
+                        break;
+
+                    case "fechaUltimoMensaje":
+                        fechaUltimoMensaje = leerTexto(in);
+                        break;
+
+                    case "mensajesNoLeidos":
+                        mensajesNoLeidos = (int) leerLong(in, mensajesNoLeidos);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            ResumenConversacion r = new ResumenConversacion(idConversacion, ipRemota, aliasVisible,
+                    ultimoMensaje, fechaUltimoMensaje);
+            r.setMensajesNoLeidos(mensajesNoLeidos);
+
+            return r;
+        }
+    }
+
+    private static final class AdaptadorCambioPresencia extends TypeAdapter<CambioPresencia> {
+
+        private final TypeAdapter<Contacto> contactos;
+
+        AdaptadorCambioPresencia(TypeAdapter<Contacto> contactos) {
+            this.contactos = contactos;
+        }
+
+        @Override
+        public void write(JsonWriter out, CambioPresencia c) throws IOException {
+
+            out.beginObject();
+            escribirEnum(out, "tipo", c.getTipo());
+
+            if (c.getContacto() != null) {
+                out.name("contacto");
+                contactos.write(out, c.getContacto());
+            }
+
+            out.endObject();
+        }
+
+        @Override
+        public CambioPresencia read(JsonReader in) throws IOException {
+
+            TipoCambioPresencia tipo = null;
+            Contacto contacto = null;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "tipo":
+                        tipo = leerEnum(in, TIPOS_CAMBIO);
+                        break;
+
+                    case "contacto":
+                        contacto = contactos.read(in);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            return new CambioPresencia(tipo, contacto);
+        }
+    }
+
+    private static final class AdaptadorPresenciaDelta extends TypeAdapter<PresenciaDelta> {
+
+        private final TypeAdapter<CambioPresencia> cambios;
+
+        AdaptadorPresenciaDelta(TypeAdapter<CambioPresencia> cambios) {
+            this.cambios = cambios;
+        }
+
+        @Override
+        public void write(JsonWriter out, PresenciaDelta d) throws IOException {
+
+            out.beginObject();
+            out.name("versionAnterior").value(d.getVersionAnterior());
+            out.name("version").value(d.getVersion());
+            escribirLista(out, "cambios", d.getCambios(), cambios);
+            out.endObject();
+        }
+
+        @Override
+        public PresenciaDelta read(JsonReader in) throws IOException {
+
+            long versionAnterior = 0;
+            long version = 0;
+            List<CambioPresencia> lista = null;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "versionAnterior":
+                        versionAnterior = leerLong(in, versionAnterior);
+                        break;
+
+                    case "version":
+                        version = leerLong(in, version);
+                        break;
+
+                    case "cambios":
+                        lista = leerLista(in, cambios);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            return new PresenciaDelta(versionAnterior, version, lista);
+        }
+    }
+
+    private static final class AdaptadorPresenciaSnapshot extends TypeAdapter<PresenciaSnapshot> {
+
+        private final TypeAdapter<Contacto> contactos;
+
+        AdaptadorPresenciaSnapshot(TypeAdapter<Contacto> contactos) {
+            this.contactos = contactos;
+        }
+
+        @Override
+        public void write(JsonWriter out, PresenciaSnapshot s) throws IOException {
+
+            out.beginObject();
+            out.name("version").value(s.getVersion());
+            escribirLista(out, "contactos", s.getContactos(), contactos);
+            out.endObject();
+        }
+
+        @Override
+        public PresenciaSnapshot read(JsonReader in) throws IOException {
+
+            long version = 0;
+            List<Contacto> lista = null;
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+
+                switch (in.nextName()) {
+                    case "version":
+                        version = leerLong(in, version);
+                        break;
+
+                    case "contactos":
+                        lista = leerLista(in, contactos);
+                        break;
+
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+
+            in.endObject();
+
+            return new PresenciaSnapshot(version, lista);
+        }
+    }
+
+    /* ==========================================================
+     *                        AUXILIARES
+     * ========================================================== */
+
+    private static void escribirTexto(JsonWriter out, String nombre, String valor) throws IOException {
+
+        if (valor != null) {
+            out.name(nombre).value(valor);
+        }
+    }
+
+    private static void escribirEnum(JsonWriter out, String nombre, Enum<?> valor) throws IOException {
+
+        if (valor != null) {
+            out.name(nombre).value(valor.name());
+        }
+    }
+
+    private static <E> void escribirLista(JsonWriter out, String nombre, List<E> lista,
+                                          TypeAdapter<E> elementos) throws IOException {
+
+        if (lista == null) {
+            return;
+        }
+
+        out.name(nombre).beginArray();
+
+        for (E e : lista) {
+            elementos.write(out, e);
+        }
+
+        out.endArray();
+    }
+
+    /**
+     * Texto como lo lee Gson: admite también números y booleanos.
+     */
+    private static String leerTexto(JsonReader in) throws IOException {
+
+        JsonToken token = in.peek();
+
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+
+        return in.nextString();
+    }
+
+    /**
+     * @return el número o porDefecto si el valor es null
+     */
+    private static long leerLong(JsonReader in, long porDefecto) throws IOException {
+
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return porDefecto;
+        }
+
+        return in.nextLong();
+    }
+
+    private static Long leerLongNulable(JsonReader in) throws IOException {
+
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextLong();
+    }
+
+    /**
+     * @return la constante con ese nombre o null si no existe (como Gson)
+     */
+    private static <E extends Enum<E>> E leerEnum(JsonReader in, E[] constantes) throws IOException {
+
+        String nombre = leerTexto(in);
+
+        if (nombre == null) {
+            return null;
+        }
+
+        for (E constante : constantes) {
+            if (constante.name().equals(nombre)) {
+                return constante;
+            }
+        }
+
+        return null;
+    }
+
+    private static <E> List<E> leerLista(JsonReader in, TypeAdapter<E> elementos) throws IOException {
+
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        List<E> lista = new ArrayList<>();
+
+        in.beginArray();
+
+        while (in.hasNext()) {
+            lista.add(elementos.read(in));
+        }
+
+        in.endArray();
+
+        return lista;
+    }
+}
@@ -0,0 +1,42 @@
+package psp.chat.general.modelo;
+
+import psp.chat.general.net.TipoCambioPresencia;
+
+/**
+ * Un cambio de presencia de un contacto dentro de un {@link PresenciaDelta}
+ */
+public class CambioPresencia {
+
+    private TipoCambioPresencia tipo;
+    private Contacto contacto;
+
+    /**
+     * Constructor vacío requerido por Gson
+     */
+    public CambioPresencia() {
+
+        this.tipo = TipoCambioPresencia.ENTRA;
+        this.contacto = new Contacto();
+
+    }
+
+    public CambioPresencia(TipoCambioPresencia tipo, Contacto contacto) {
+
+        this.tipo = (tipo != null) ? tipo : TipoCambioPresencia.ENTRA;
+        this.contacto = (contacto != null) ? contacto : new Contacto();
+
+    }
+
+    public TipoCambioPresencia getTipo() {
+        return tipo;
+    }
+
+    public Contacto getContacto() {
+        return contacto;
+    }
+
+    @Override
+    public String toString() {
+        return tipo + " " + contacto;
+    }
+}
@@ -52,6 +52,19 @@ public class Contacto {
     }
 
 
+    /**
+     * Constructor completo para {@link AdaptadoresModelo}: solo se genera
+     * un id nuevo si el JSON no lo trae.
+     */
+    Contacto(String idContacto, String ipRemota, String aliasVisible) {
+
+        this.idContacto = (idContacto != null) ? idContacto : UUID.randomUUID().toString();
+
+        this.ipRemota = (ipRemota != null) ? ipRemota : "";
+        this.aliasVisible = (aliasVisible != null) ? aliasVisible : "";
+    }
+
+
     /* ===========================
        Getters / Setters
        =========================== */
@@ -7,6 +7,9 @@ import java.time.LocalDateTime;
 /**
  * Representa un mensaje dentro de una conversación
  * Incluye remitente, destinatario, tipo, contenido y fecha/hora
+ *
+ * La posición la asigna el servidor al guardarlo (índice dentro de la
+ * conversación, 0 = el más antiguo); vale -1 mientras no se ha guardado.
  */
 public class Mensaje {
 
@@ -16,6 +19,7 @@ public class Mensaje {
     private TipoMensaje tipoMensaje;
     private String contenido;
     private LocalDateTime fechaHora;
+    private long posicion;
 
     /**
      * Constructor vacío requerido por Gson
@@ -29,6 +33,7 @@ public class Mensaje {
         this.tipoMensaje = TipoMensaje.TEXTO;
         this.contenido = "";
         this.fechaHora = LocalDateTime.now();
+        this.posicion = -1;
 
     }
 
@@ -89,6 +94,24 @@ public class Mensaje {
         }
 
         this.fechaHora = LocalDateTime.now();
+        this.posicion = -1;
+
+    }
+
+    /**
+     * Constructor completo para {@link AdaptadoresModelo}: al leer JSON no
+     * se consulta el reloj si el mensaje ya trae su fecha.
+     */
+    Mensaje(String idConversacion, String remitente, String destinatario, TipoMensaje tipoMensaje,
+            String contenido, LocalDateTime fechaHora, long posicion) {
+
+        this.idConversacion = (idConversacion != null) ? idConversacion : "";
+        this.remitente = (remitente != null) ? remitente : "";
+        this.destinatario = (destinatario != null) ? destinatario : "";
+        this.tipoMensaje = (tipoMensaje != null) ? tipoMensaje : TipoMensaje.TEXTO;
+        this.contenido = (contenido != null) ? contenido : "";
+        this.fechaHora = (fechaHora != null) ? fechaHora : LocalDateTime.now();
+        this.posicion = posicion;
 
     }
 
@@ -190,6 +213,14 @@ public class Mensaje {
 
     }
 
+    public long getPosicion() {
+        return posicion;
+    }
+
+    public void setPosicion(long posicion) {
+        this.posicion = posicion;
+    }
+
     public LocalDateTime getFechaHora() {
         return fechaHora;
     }
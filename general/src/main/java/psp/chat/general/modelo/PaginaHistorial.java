@@ -0,0 +1,82 @@
+package psp.chat.general.modelo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trozo del historial de una conversación, respuesta a {@link PeticionHistorial}.
+ *
+ * Los mensajes van en orden cronológico y ocupan las posiciones
+ * [primeraPosicion, primeraPosicion + mensajes.size()). {@code total} es el
+ * nº de mensajes de la conversación en el momento de leerla.
+ */
+public class PaginaHistorial {
+
+    private String idConversacion;
+    private String ipRemota;
+    private String aliasVisible;
+    private long primeraPosicion;
+    private long total;
+    private List<Mensaje> mensajes;
+
+    /**
+     * Constructor vacío requerido por Gson
+     */
+    public PaginaHistorial() {
+
+        this.idConversacion = "";
+        this.ipRemota = "";
+        this.aliasVisible = "";
+        this.primeraPosicion = 0;
+        this.total = 0;
+        this.mensajes = new ArrayList<>();
+
+    }
+
+    public PaginaHistorial(String idConversacion,
+                           String ipRemota,
+                           String aliasVisible,
+                           long primeraPosicion,
+                           long total,
+                           List<Mensaje> mensajes) {
+
+        this.idConversacion = (idConversacion != null) ? idConversacion : "";
+        this.ipRemota = (ipRemota != null) ? ipRemota : "";
+        this.aliasVisible = (aliasVisible != null) ? aliasVisible : "";
+        this.primeraPosicion = primeraPosicion;
+        this.total = total;
+        this.mensajes = (mensajes != null) ? mensajes : new ArrayList<>();
+
+    }
+
+    public String getIdConversacion() {
+        return idConversacion;
+    }
+
+    public String getIpRemota() {
+        return ipRemota;
+    }
+
+    public String getAliasVisible() {
+        return aliasVisible;
+    }
+
+    public long getPrimeraPosicion() {
+        return primeraPosicion;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public List<Mensaje> getMensajes() {
+        return mensajes;
+    }
+
+    /**
+     * @return true si hay mensajes más antiguos que esta página
+     */
+    public boolean hayAnteriores() {
+        return primeraPosicion > 0;
+    }
+}
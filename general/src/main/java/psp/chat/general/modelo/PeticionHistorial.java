@@ -0,0 +1,70 @@
+package psp.chat.general.modelo;
+
+/**
+ * Petición de una página del historial de una conversación.
+ *
+ * La posición de un mensaje es su índice dentro de la conversación
+ * (0 = el más antiguo). Como los mensajes solo se añaden al final, la
+ * posición de un mensaje no cambia nunca y sirve como cursor:
+ *   - antesDe   → los {@code limite} mensajes inmediatamente anteriores
+ *   - despuesDe → los {@code limite} mensajes inmediatamente posteriores
+ *   - ninguno   → los {@code limite} más recientes
+ */
+public class PeticionHistorial {
+
+    private String idConversacion;
+    private Long antesDe;
+    private Long despuesDe;
+    private int limite;
+
+    /**
+     * Constructor vacío requerido por Gson
+     */
+    public PeticionHistorial() {
+
+        this.idConversacion = "";
+        this.antesDe = null;
+        this.despuesDe = null;
+        this.limite = 0;
+
+    }
+
+    public PeticionHistorial(String idConversacion, Long antesDe, Long despuesDe, int limite) {
+
+        this.idConversacion = (idConversacion != null) ? idConversacion : "";
+        this.antesDe = antesDe;
+        this.despuesDe = despuesDe;
+        this.limite = limite;
+
+    }
+
+    /**
+     * Página con los mensajes más recientes.
+     */
+    public static PeticionHistorial ultimos(String idConversacion, int limite) {
+        return new PeticionHistorial(idConversacion, null, null, limite);
+    }
+
+    /**
+     * Página con los mensajes anteriores a una posición.
+     */
+    public static PeticionHistorial anterioresA(String idConversacion, long posicion, int limite) {
+        return new PeticionHistorial(idConversacion, posicion, null, limite);
+    }
+
+    public String getIdConversacion() {
+        return idConversacion;
+    }
+
+    public Long getAntesDe() {
+        return antesDe;
+    }
+
+    public Long getDespuesDe() {
+        return despuesDe;
+    }
+
+    public int getLimite() {
+        return limite;
+    }
+}
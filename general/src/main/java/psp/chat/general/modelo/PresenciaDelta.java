@@ -0,0 +1,49 @@
+package psp.chat.general.modelo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cambios de presencia que llevan del estado versionAnterior al estado version.
+ *
+ * Un cliente en la versión v solo puede aplicarlo si versionAnterior == v;
+ * si versionAnterior es mayor se ha perdido algún delta y debe pedir
+ * un {@link PresenciaSnapshot}.
+ */
+public class PresenciaDelta {
+
+    private long versionAnterior;
+    private long version;
+    private List<CambioPresencia> cambios;
+
+    /**
+     * Constructor vacío requerido por Gson
+     */
+    public PresenciaDelta() {
+
+        this.versionAnterior = 0;
+        this.version = 0;
+        this.cambios = new ArrayList<>();
+
+    }
+
+    public PresenciaDelta(long versionAnterior, long version, List<CambioPresencia> cambios) {
+
+        this.versionAnterior = versionAnterior;
+        this.version = version;
+        this.cambios = (cambios != null) ? cambios : new ArrayList<>();
+
+    }
+
+    public long getVersionAnterior() {
+        return versionAnterior;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<CambioPresencia> getCambios() {
+        return cambios;
+    }
+}
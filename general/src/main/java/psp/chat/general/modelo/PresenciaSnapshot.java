@@ -0,0 +1,41 @@
+package psp.chat.general.modelo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Estado completo de presencia: contactos conectados en una versión concreta.
+ *
+ * El servidor lo envía al suscribirse un cliente o cuando éste detecta
+ * un salto de versión en los {@link PresenciaDelta} y lo vuelve a pedir.
+ */
+public class PresenciaSnapshot {
+
+    private long version;
+    private List<Contacto> contactos;
+
+    /**
+     * Constructor vacío requerido por Gson
+     */
+    public PresenciaSnapshot() {
+
+        this.version = 0;
+        this.contactos = new ArrayList<>();
+
+    }
+
+    public PresenciaSnapshot(long version, List<Contacto> contactos) {
+
+        this.version = version;
+        this.contactos = (contactos != null) ? contactos : new ArrayList<>();
+
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Contacto> getContactos() {
+        return contactos;
+    }
+}
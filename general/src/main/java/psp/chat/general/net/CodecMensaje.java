@@ -0,0 +1,457 @@
+package psp.chat.general.net;
+
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.util.PoolIdentificadores;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Representación binaria compacta de {@link Mensaje}, alternativa al JSON
+ * de Gson para las tramas {@link FormatoTrama#BINARIO_COMPACTO} y el buzón
+ * de pendientes del servidor.
+ *
+ * Un bloque codificado empieza por un byte de forma ({@link #FORMA_MENSAJE}
+ * o {@link #FORMA_LISTA}); la lista lleva después el nº de mensajes. Cada
+ * mensaje:
+ *
+ *   [cabecera: 1 byte]  bits 0-5 = ordinal de TipoMensaje + 1 (0 = null)
+ *                       bit 6    = lleva fecha
+ *   [idConversacion][remitente][destinatario][contenido]   → cadenas
+ *   [fecha: zigzag(epoch-millis UTC)][nanos dentro del milisegundo]
+ *   [posicion: zigzag]
+ *
+ * Todos los enteros son varint (7 bits por byte). Las cadenas empiezan por
+ * un varint v: 0 = null, v impar = referencia a la cadena nº (v >>> 1) del
+ * diccionario, v par = literal UTF-8 de ((v >>> 1) - 1) bytes. Los ids
+ * (conversación, remitente y destinatario) entran en el diccionario la
+ * primera vez que aparecen, así que en una lista solo se escriben una vez.
+ *
+ * La fecha se guarda como epoch-millis más el resto en nanosegundos para
+ * que la ida y vuelta sea exacta (LocalDateTime.now() tiene microsegundos).
+ *
+ * Los ids leídos pasan por {@link PoolIdentificadores#COMPARTIDO}.
+ *
+ * Métodos estáticos: utilidad pura, sin estado propio.
+ */
+public final class CodecMensaje {
+
+    /** Primer byte de un bloque con un único mensaje */
+    public static final int FORMA_MENSAJE = 1;
+
+    /** Primer byte de un bloque con una lista de mensajes */
+    public static final int FORMA_LISTA = 2;
+
+    private static final int BIT_FECHA = 0x40;
+    private static final int MASCARA_TIPO = 0x3F;
+
+    private static final TipoMensaje[] TIPOS = TipoMensaje.values();
+
+    private CodecMensaje() {
+        // Evita instanciación
+    }
+
+    /**
+     * Codifica un mensaje suelto.
+     */
+    public static byte[] codificar(Mensaje mensaje) {
+
+        Salida salida = new Salida(64 + longitudEstimada(mensaje));
+
+        salida.escribirByte(FORMA_MENSAJE);
+        escribirMensaje(salida, mensaje, new HashMap<>());
+
+        return salida.toByteArray();
+    }
+
+    /**
+     * Codifica una lista de mensajes compartiendo el diccionario de ids.
+     */
+    public static byte[] codificarLista(Collection<Mensaje> mensajes) {
+
+        int estimado = 8;
+
+        for (Mensaje m : mensajes) {
+            estimado += 24 + longitudEstimada(m);
+        }
+
+        Salida salida = new Salida(estimado);
+        Map<String, Integer> diccionario = new HashMap<>();
+
+        salida.escribirByte(FORMA_LISTA);
+        salida.escribirVarint(mensajes.size());
+
+        for (Mensaje m : mensajes) {
+            escribirMensaje(salida, m, diccionario);
+        }
+
+        return salida.toByteArray();
+    }
+
+    /**
+     * @return true si el bloque que empieza en desde es una lista
+     */
+    public static boolean esLista(byte[] datos, int desde, int longitud) {
+        return longitud > 0 && datos[desde] == FORMA_LISTA;
+    }
+
+    /**
+     * Decodifica un bloque creado con {@link #codificar(Mensaje)}.
+     *
+     * @throws IllegalArgumentException si los bytes no son un mensaje válido
+     */
+    public static Mensaje decodificar(byte[] datos, int desde, int longitud) {
+
+        Entrada entrada = new Entrada(datos, desde, longitud);
+
+        if (entrada.leerByte() != FORMA_MENSAJE) {
+            throw new IllegalArgumentException("El bloque no es un mensaje compacto");
+        }
+
+        Mensaje mensaje = leerMensaje(entrada, new ArrayList<>());
+        entrada.comprobarFin();
+
+        return mensaje;
+    }
+
+    /**
+     * Decodifica un bloque creado con {@link #codificarLista(Collection)}.
+     *
+     * @throws IllegalArgumentException si los bytes no son una lista válida
+     */
+    public static List<Mensaje> decodificarLista(byte[] datos, int desde, int longitud) {
+
+        Entrada entrada = new Entrada(datos, desde, longitud);
+
+        if (entrada.leerByte() != FORMA_LISTA) {
+            throw new IllegalArgumentException("El bloque no es una lista de mensajes compacta");
+        }
+
+        int total = entrada.leerVarintEntero();
+
+        // Cada mensaje ocupa al menos 8 bytes: no se reserva más de lo que cabe
+        List<Mensaje> mensajes = new ArrayList<>(Math.min(total, longitud / 8 + 1));
+        List<String> diccionario = new ArrayList<>();
+
+        for (int i = 0; i < total; i++) {
+            mensajes.add(leerMensaje(entrada, diccionario));
+        }
+
+        entrada.comprobarFin();
+
+        return mensajes;
+    }
+
+    /* ==========================================================
+     *                       MENSAJE
+     * ========================================================== */
+
+    private static void escribirMensaje(Salida salida, Mensaje m, Map<String, Integer> diccionario) {
+
+        TipoMensaje tipo = m.getTipoMensaje();
+        LocalDateTime fecha = m.getFechaHora();
+
+        int cabecera = (tipo == null) ? 0 : tipo.ordinal() + 1;
+
+        if (fecha != null) {
+            cabecera |= BIT_FECHA;
+        }
+
+        salida.escribirByte(cabecera);
+
+        escribirId(salida, m.getIdConversacion(), diccionario);
+        escribirId(salida, m.getRemitente(), diccionario);
+        escribirId(salida, m.getDestinatario(), diccionario);
+        escribirLiteral(salida, m.getContenido());
+
+        if (fecha != null) {
+
+            int nanos = fecha.getNano();
+            long millis = fecha.toEpochSecond(ZoneOffset.UTC) * 1000 + nanos / 1_000_000;
+
+            salida.escribirVarint(zigzag(millis));
+            salida.escribirVarint(nanos % 1_000_000);
+        }
+
+        salida.escribirVarint(zigzag(m.getPosicion()));
+    }
+
+    private static Mensaje leerMensaje(Entrada entrada, List<String> diccionario) {
+
+        int cabecera = entrada.leerByte();
+        int tipo = cabecera & MASCARA_TIPO;
+
+        if ((cabecera & ~(MASCARA_TIPO | BIT_FECHA)) != 0 || tipo > TIPOS.length) {
+            throw new IllegalArgumentException("Cabecera de mensaje compacto inválida: " + cabecera);
+        }
+
+        Mensaje m = new Mensaje();
+
+        m.setTipoMensaje(tipo == 0 ? null : TIPOS[tipo - 1]);
+        m.setIdConversacion(leerId(entrada, diccionario));
+        m.setRemitente(leerId(entrada, diccionario));
+        m.setDestinatario(leerId(entrada, diccionario));
+        m.setContenido(leerLiteral(entrada));
+
+        if ((cabecera & BIT_FECHA) != 0) {
+
+            long millis = deszigzag(entrada.leerVarint());
+            long resto = entrada.leerVarint();
+
+            if (resto >= 1_000_000) {
+                throw new IllegalArgumentException("Nanosegundos fuera de rango: " + resto);
+            }
+
+            int nanos = (int) (Math.floorMod(millis, 1000L) * 1_000_000 + resto);
+
+            m.setFechaHora(LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L), nanos, ZoneOffset.UTC));
+        }
+
+        m.setPosicion(deszigzag(entrada.leerVarint()));
+
+        return m;
+    }
+
+    /* ==========================================================
+     *                       CADENAS
+     * ========================================================== */
+
+    private static void escribirId(Salida salida, String valor, Map<String, Integer> diccionario) {
+
+        if (valor != null) {
+
+            Integer indice = diccionario.get(valor);
+
+            if (indice != null) {
+                salida.escribirVarint(((long) indice << 1) | 1);
+                return;
+            }
+
+            diccionario.put(valor, diccionario.size());
+        }
+
+        escribirLiteral(salida, valor);
+    }
+
+    private static String leerId(Entrada entrada, List<String> diccionario) {
+
+        long v = entrada.leerVarint();
+
+        if ((v & 1) != 0) {
+
+            long indice = v >>> 1;
+
+            if (indice >= diccionario.size()) {
+                throw new IllegalArgumentException("Referencia de diccionario inválida: " + indice);
+            }
+
+            return diccionario.get((int) indice);
+        }
+
+        // Solo los literales pasan por el pool: las referencias ya apuntan
+        // a la instancia que se añadió al diccionario
+        String valor = PoolIdentificadores.COMPARTIDO.canonico(leerLiteral(entrada, v));
+
+        if (valor != null) {
+            diccionario.add(valor);
+        }
+
+        return valor;
+    }
+
+    private static void escribirLiteral(Salida salida, String valor) {
+
+        if (valor == null) {
+            salida.escribirVarint(0);
+            return;
+        }
+
+        byte[] utf8 = valor.getBytes(StandardCharsets.UTF_8);
+
+        salida.escribirVarint(((long) utf8.length + 1) << 1);
+        salida.escribirBytes(utf8);
+    }
+
+    private static String leerLiteral(Entrada entrada) {
+
+        long v = entrada.leerVarint();
+
+        if ((v & 1) != 0) {
+            throw new IllegalArgumentException("Referencia de diccionario en un campo sin diccionario");
+        }
+
+        return leerLiteral(entrada, v);
+    }
+
+    private static String leerLiteral(Entrada entrada, long v) {
+
+        if (v == 0) {
+            return null;
+        }
+
+        long longitud = (v >>> 1) - 1;
+
+        if (longitud > entrada.restantes()) {
+            throw new IllegalArgumentException("Cadena más larga que el bloque: " + longitud);
+        }
+
+        return entrada.leerUtf8((int) longitud);
+    }
+
+    private static int longitudEstimada(Mensaje m) {
+
+        String contenido = m.getContenido();
+
+        // Un carácter Java ocupa 1-3 bytes en UTF-8; el texto normal, casi siempre 1
+        return (contenido == null) ? 0 : contenido.length() + (contenido.length() >>> 2);
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long deszigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /* ==========================================================
+     *                  BUFFERS DE BYTES
+     * ========================================================== */
+
+    /**
+     * Buffer de escritura que crece según hace falta.
+     */
+    private static final class Salida {
+
+        private byte[] datos;
+        private int tamano;
+
+        Salida(int capacidad) {
+            this.datos = new byte[Math.max(16, capacidad)];
+        }
+
+        void escribirByte(int b) {
+            asegurar(1);
+            datos[tamano++] = (byte) b;
+        }
+
+        void escribirVarint(long v) {
+
+            asegurar(10);
+
+            while ((v & ~0x7FL) != 0) {
+                datos[tamano++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+
+            datos[tamano++] = (byte) v;
+        }
+
+        void escribirBytes(byte[] b) {
+            asegurar(b.length);
+            System.arraycopy(b, 0, datos, tamano, b.length);
+            tamano += b.length;
+        }
+
+        private void asegurar(int extra) {
+
+            if (tamano + extra > datos.length) {
+                byte[] nuevo = new byte[Math.max(datos.length * 2, tamano + extra)];
+                System.arraycopy(datos, 0, nuevo, 0, tamano);
+                datos = nuevo;
+            }
+        }
+
+        byte[] toByteArray() {
+
+            if (tamano == datos.length) {
+                return datos;
+            }
+
+            byte[] exacto = new byte[tamano];
+            System.arraycopy(datos, 0, exacto, 0, tamano);
+            return exacto;
+        }
+    }
+
+    /**
+     * Cursor de lectura que no pasa nunca del final del bloque.
+     */
+    private static final class Entrada {
+
+        private final byte[] datos;
+        private final int fin;
+        private int posicion;
+
+        Entrada(byte[] datos, int desde, int longitud) {
+
+            if (desde < 0 || longitud < 0 || desde + longitud > datos.length) {
+                throw new IllegalArgumentException("Rango fuera del buffer");
+            }
+
+            this.datos = datos;
+            this.posicion = desde;
+            this.fin = desde + longitud;
+        }
+
+        int leerByte() {
+
+            if (posicion >= fin) {
+                throw new IllegalArgumentException("Mensaje compacto truncado");
+            }
+
+            return datos[posicion++] & 0xFF;
+        }
+
+        long leerVarint() {
+
+            long v = 0;
+
+            for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+
+                int b = leerByte();
+                v |= (long) (b & 0x7F) << desplazamiento;
+
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+
+            throw new IllegalArgumentException("Varint demasiado largo");
+        }
+
+        int leerVarintEntero() {
+
+            long v = leerVarint();
+
+            if (v > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Valor fuera de rango: " + v);
+            }
+
+            return (int) v;
+        }
+
+        String leerUtf8(int longitud) {
+            String s = new String(datos, posicion, longitud, StandardCharsets.UTF_8);
+            posicion += longitud;
+            return s;
+        }
+
+        int restantes() {
+            return fin - posicion;
+        }
+
+        void comprobarFin() {
+
+            if (posicion != fin) {
+                throw new IllegalArgumentException("Sobran " + (fin - posicion) + " bytes tras el mensaje compacto");
+            }
+        }
+    }
+}
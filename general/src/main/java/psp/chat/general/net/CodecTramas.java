@@ -0,0 +1,314 @@
+package psp.chat.general.net;
+
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.util.JsonUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Codifica y decodifica {@link EmpaquetadoDatos} en cualquiera de los
+ * formatos de {@link FormatoTrama}.
+ *
+ * Trama binaria:
+ *
+ *   [longitud: int32 big-endian][comando: 1 byte][payload: longitud - 1 bytes]
+ *
+ * La longitud cuenta los bytes que siguen a la cabecera. Como nunca supera
+ * {@link #TAMANO_MAXIMO_TRAMA}, su primer byte siempre vale 0x00-0x03, mientras
+ * que una línea JSON empieza por '{'. Así el receptor distingue el formato de
+ * cada trama sin estado y ambos formatos pueden convivir en el mismo socket.
+ *
+ * En {@link FormatoTrama#BINARIO_COMPACTO} el bit alto del byte de comando
+ * ({@link #BIT_COMPACTO}) indica que el payload es un mensaje o una lista de
+ * mensajes en la forma de {@link CodecMensaje}; sin él, el payload es JSON.
+ * Como el bit viaja en cada trama, decodificar sigue sin necesitar estado.
+ *
+ * El sobre y el payload se escriben en una sola pasada directamente a bytes.
+ * Al leer, si hay {@link TiposPayload} el payload se materializa ya con su
+ * tipo desde los bytes recibidos, sin String intermedio.
+ */
+public class CodecTramas {
+
+    /** Tamaño máximo de una trama (64 MB - 1); fija el primer byte de la cabecera a 0x00-0x03 */
+    public static final int TAMANO_MAXIMO_TRAMA = 0x03FFFFFF;
+
+    /** Bytes de la cabecera binaria (longitud) */
+    public static final int TAMANO_CABECERA = 4;
+
+    /** Bit del byte de comando que marca un payload de mensajes compacto */
+    public static final int BIT_COMPACTO = 0x80;
+
+    private final JsonUtil json;
+    private final TiposPayload tipos;
+
+    public CodecTramas(JsonUtil json) {
+        this(json, null);
+    }
+
+    /**
+     * @param tipos tipos de payload del lado que recibe (null → payload como texto)
+     */
+    public CodecTramas(JsonUtil json, TiposPayload tipos) {
+        this.json = json;
+        this.tipos = tipos;
+    }
+
+    /**
+     * Codifica un paquete en el formato indicado, listo para escribir en el socket.
+     */
+    public byte[] codificar(EmpaquetadoDatos paquete, FormatoTrama formato) {
+
+        if (formato == FormatoTrama.BINARIO_COMPACTO) {
+
+            byte[] compacto = codificarMensajes(paquete.getPayload());
+
+            if (compacto != null) {
+                return tramaBinaria(paquete.getComando().ordinal() | BIT_COMPACTO, compacto);
+            }
+        }
+
+        if (esBinario(formato)) {
+            return codificarBinario(paquete);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        try {
+            Writer escritor = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+            json.escribirEmpaquetado(paquete, formato == FormatoTrama.LINEA_JSON_DIRECTO, escritor);
+            escritor.write('\n');
+            escritor.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Codifica un paquete cuyo payload ya es JSON en UTF-8 (p. ej. una página
+     * de historial montada desde disco). En BINARIO y LINEA_JSON_DIRECTO los
+     * bytes se copian tal cual, sin pasar por String ni por Gson; el formato
+     * original lleva el payload como texto y hay que escaparlo.
+     */
+    public byte[] codificarPayloadJson(TipoComando comando, byte[] payloadJson, FormatoTrama formato) {
+
+        if (esBinario(formato)) {
+            return tramaBinaria(comando.ordinal(), payloadJson);
+        }
+
+        if (formato == FormatoTrama.LINEA_JSON_DIRECTO) {
+
+            byte[] sobre = inicioLinea(comando, true);
+            byte[] linea = new byte[sobre.length + payloadJson.length + 2];
+
+            System.arraycopy(sobre, 0, linea, 0, sobre.length);
+            System.arraycopy(payloadJson, 0, linea, sobre.length, payloadJson.length);
+            linea[linea.length - 2] = '}';
+            linea[linea.length - 1] = '\n';
+
+            return linea;
+        }
+
+        return codificar(new EmpaquetadoDatos(comando, new String(payloadJson, StandardCharsets.UTF_8)), formato);
+    }
+
+    /**
+     * Principio de una línea JSON cuyo payload se escribe después por partes:
+     * {"comando":"X","payload":  (directo)  o  {"comando":"X","payloadJson":"
+     * (formato original; lo que siga tiene que ir ya escapado como texto).
+     *
+     * Una línea se puede enviar aunque se haya negociado BINARIO: el receptor
+     * reconoce cada trama por su primer byte y la línea no necesita conocer
+     * su longitud antes de empezar a escribirla.
+     */
+    public byte[] inicioLinea(TipoComando comando, boolean payloadDirecto) {
+
+        String campo = payloadDirecto ? "\",\"payload\":" : "\",\"payloadJson\":\"";
+
+        return ("{\"comando\":\"" + comando.name() + campo).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Cierre de una línea empezada con {@link #inicioLinea}.
+     */
+    public byte[] finLinea(boolean payloadDirecto) {
+        return (payloadDirecto ? "}\n" : "\"}\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean esBinario(FormatoTrama formato) {
+        return formato == FormatoTrama.BINARIO || formato == FormatoTrama.BINARIO_COMPACTO;
+    }
+
+    /**
+     * Forma compacta del payload si es un Mensaje o una lista (no vacía)
+     * solo de Mensajes; null si hay que enviarlo en JSON.
+     */
+    @SuppressWarnings("unchecked")
+    private byte[] codificarMensajes(Object payload) {
+
+        if (payload instanceof Mensaje mensaje) {
+            return CodecMensaje.codificar(mensaje);
+        }
+
+        if (!(payload instanceof List<?> lista) || lista.isEmpty()) {
+            return null;
+        }
+
+        for (Object elemento : lista) {
+            if (!(elemento instanceof Mensaje)) {
+                return null;
+            }
+        }
+
+        return CodecMensaje.codificarLista((List<Mensaje>) lista);
+    }
+
+    private byte[] tramaBinaria(int byteComando, byte[] payload) {
+
+        int longitud = 1 + payload.length;
+
+        if (longitud > TAMANO_MAXIMO_TRAMA) {
+            throw new IllegalArgumentException("Trama demasiado grande: " + longitud + " bytes");
+        }
+
+        byte[] trama = new byte[TAMANO_CABECERA + longitud];
+
+        escribirLongitud(trama, longitud);
+        trama[TAMANO_CABECERA] = (byte) byteComando;
+        System.arraycopy(payload, 0, trama, TAMANO_CABECERA + 1, payload.length);
+
+        return trama;
+    }
+
+    private byte[] codificarBinario(EmpaquetadoDatos paquete) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        // Hueco para la cabecera y el comando; la longitud se rellena al final
+        bytes.write(new byte[TAMANO_CABECERA + 1], 0, TAMANO_CABECERA + 1);
+
+        try {
+            Writer escritor = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+            json.escribirPayload(paquete, escritor);
+            escritor.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] trama = bytes.toByteArray();
+        int longitud = trama.length - TAMANO_CABECERA;
+
+        if (longitud > TAMANO_MAXIMO_TRAMA) {
+            throw new IllegalArgumentException("Trama demasiado grande: " + longitud + " bytes");
+        }
+
+        escribirLongitud(trama, longitud);
+        trama[TAMANO_CABECERA] = (byte) paquete.getComando().ordinal();
+
+        return trama;
+    }
+
+    private void escribirLongitud(byte[] destino, int longitud) {
+
+        destino[0] = (byte) (longitud >>> 24);
+        destino[1] = (byte) (longitud >>> 16);
+        destino[2] = (byte) (longitud >>> 8);
+        destino[3] = (byte) longitud;
+    }
+
+    /**
+     * Lee la longitud de una cabecera binaria.
+     */
+    int leerLongitud(byte[] datos, int desde) {
+
+        return ((datos[desde] & 0xFF) << 24)
+                | ((datos[desde + 1] & 0xFF) << 16)
+                | ((datos[desde + 2] & 0xFF) << 8)
+                | (datos[desde + 3] & 0xFF);
+    }
+
+    /**
+     * Decodifica el cuerpo de una trama binaria (comando + payload).
+     */
+    EmpaquetadoDatos decodificarBinario(byte[] datos, int desde, int longitud) {
+
+        int ordinal = datos[desde] & ~BIT_COMPACTO & 0xFF;
+        boolean compacto = (datos[desde] & BIT_COMPACTO) != 0;
+        TipoComando[] comandos = TipoComando.values();
+
+        if (ordinal >= comandos.length) {
+            throw new IllegalArgumentException("Comando binario desconocido: " + ordinal);
+        }
+
+        TipoComando comando = comandos[ordinal];
+
+        if (compacto) {
+            return decodificarMensajes(comando, datos, desde + 1, longitud - 1);
+        }
+
+        Type tipo = (tipos != null) ? tipos.tipoPayload(comando) : null;
+
+        if (tipo == null) {
+            return new EmpaquetadoDatos(comando, new String(datos, desde + 1, longitud - 1, StandardCharsets.UTF_8));
+        }
+
+        EmpaquetadoDatos paquete = new EmpaquetadoDatos(comando, "");
+        paquete.setPayload(json.leerPayload(lectorUtf8(datos, desde + 1, longitud - 1), tipo));
+
+        return paquete;
+    }
+
+    /**
+     * Decodifica un payload compacto. Si este lado no materializa payloads
+     * (sin {@link TiposPayload}) se deja como texto JSON, igual que los demás.
+     */
+    private EmpaquetadoDatos decodificarMensajes(TipoComando comando, byte[] datos, int desde, int longitud) {
+
+        Object mensajes = CodecMensaje.esLista(datos, desde, longitud)
+                ? CodecMensaje.decodificarLista(datos, desde, longitud)
+                : CodecMensaje.decodificar(datos, desde, longitud);
+
+        if (tipos == null) {
+            return new EmpaquetadoDatos(comando, json.toJson(mensajes));
+        }
+
+        EmpaquetadoDatos paquete = new EmpaquetadoDatos(comando, "");
+        paquete.setPayload(mensajes);
+
+        return paquete;
+    }
+
+    /**
+     * Decodifica una línea JSON (sin el salto de línea).
+     */
+    EmpaquetadoDatos decodificarLinea(byte[] datos, int desde, int longitud) {
+
+        try {
+            return json.leerEmpaquetado(lectorUtf8(datos, desde, longitud), tipos);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Línea JSON inválida: " + e.getMessage(), e);
+        }
+    }
+
+    private Reader lectorUtf8(byte[] datos, int desde, int longitud) {
+        return new InputStreamReader(new ByteArrayInputStream(datos, desde, longitud), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true si el byte puede ser el inicio de una cabecera binaria
+     */
+    boolean esInicioBinario(byte b) {
+        return (b & 0xFF) <= (TAMANO_MAXIMO_TRAMA >>> 24);
+    }
+}
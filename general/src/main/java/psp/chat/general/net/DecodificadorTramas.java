@@ -0,0 +1,185 @@
+package psp.chat.general.net;
+
+import java.util.Arrays;
+
+/**
+ * Decodificador incremental de tramas: recibe bytes tal y como llegan
+ * del socket (en trozos arbitrarios) y entrega cada paquete completo.
+ *
+ * Detecta el formato de cada trama por su primer byte (ver {@link CodecTramas}):
+ *   - '{'        → línea JSON hasta el siguiente '\n'
+ *   - 0x00-0x03  → trama binaria con longitud; no se escanea su contenido
+ *
+ * Solo guarda memoria propia cuando queda una trama a medias.
+ * No es seguro para varios hilos: cada conexión tiene el suyo.
+ */
+public class DecodificadorTramas {
+
+    /**
+     * Recibe cada paquete decodificado.
+     */
+    public interface Receptor {
+        void alRecibir(EmpaquetadoDatos paquete);
+    }
+
+    private final CodecTramas codec;
+
+    /** Bytes de una trama incompleta pendientes de la siguiente lectura */
+    private byte[] parcial;
+    private int usados;
+
+    /** Hasta dónde se ha buscado ya el '\n' de una línea incompleta */
+    private int buscadoHasta;
+
+    public DecodificadorTramas(CodecTramas codec) {
+
+        this.codec = codec;
+        this.parcial = new byte[0];
+    }
+
+    /**
+     * Entrega al decodificador un trozo de bytes recibidos.
+     *
+     * @throws IllegalArgumentException si los bytes no forman una trama válida
+     */
+    public void alimentar(byte[] datos, int desde, int longitud, Receptor receptor) {
+
+        if (usados == 0) {
+
+            int consumidos = extraerTramas(datos, desde, desde + longitud, receptor);
+            guardarResto(datos, desde + consumidos, longitud - consumidos);
+
+        } else {
+
+            guardarResto(datos, desde, longitud);
+
+            int consumidos = extraerTramas(parcial, 0, usados, receptor);
+
+            if (consumidos > 0) {
+
+                System.arraycopy(parcial, consumidos, parcial, 0, usados - consumidos);
+                usados -= consumidos;
+            }
+        }
+
+        if (usados == 0 && parcial.length > 64 * 1024) {
+            // Tras una trama enorme no se retiene su buffer
+            parcial = new byte[0];
+        }
+    }
+
+    /**
+     * Extrae todas las tramas completas de datos[desde, hasta).
+     *
+     * @return bytes consumidos desde "desde"
+     */
+    private int extraerTramas(byte[] datos, int desde, int hasta, Receptor receptor) {
+
+        int pos = desde;
+
+        while (pos < hasta) {
+
+            byte b = datos[pos];
+
+            if (b == '\n' || b == '\r' || b == ' ' || b == '\t') {
+                pos++;
+                continue;
+            }
+
+            int fin;
+
+            if (b == '{') {
+                fin = extraerLinea(datos, pos, hasta, receptor);
+            } else if (codec.esInicioBinario(b)) {
+                fin = extraerBinaria(datos, pos, hasta, receptor);
+            } else {
+                throw new IllegalArgumentException("Trama no reconocida (byte inicial " + (b & 0xFF) + ")");
+            }
+
+            if (fin < 0) {
+                break;
+            }
+
+            pos = fin;
+        }
+
+        return pos - desde;
+    }
+
+    /**
+     * @return posición siguiente a la línea o -1 si aún no está completa
+     */
+    private int extraerLinea(byte[] datos, int inicio, int hasta, Receptor receptor) {
+
+        int i = inicio + buscadoHasta;
+
+        while (i < hasta && datos[i] != '\n') {
+            i++;
+        }
+
+        if (i >= hasta) {
+
+            buscadoHasta = i - inicio;
+            comprobarTamano(buscadoHasta);
+            return -1;
+        }
+
+        buscadoHasta = 0;
+        EmpaquetadoDatos paquete = codec.decodificarLinea(datos, inicio, i - inicio);
+
+        if (paquete != null) {
+            receptor.alRecibir(paquete);
+        }
+
+        return i + 1;
+    }
+
+    /**
+     * @return posición siguiente a la trama o -1 si aún no está completa
+     */
+    private int extraerBinaria(byte[] datos, int inicio, int hasta, Receptor receptor) {
+
+        if (hasta - inicio < CodecTramas.TAMANO_CABECERA) {
+            return -1;
+        }
+
+        int longitud = codec.leerLongitud(datos, inicio);
+
+        if (longitud < 1) {
+            throw new IllegalArgumentException("Longitud de trama inválida: " + longitud);
+        }
+
+        comprobarTamano(longitud);
+
+        int cuerpo = inicio + CodecTramas.TAMANO_CABECERA;
+
+        if (hasta - cuerpo < longitud) {
+            return -1;
+        }
+
+        receptor.alRecibir(codec.decodificarBinario(datos, cuerpo, longitud));
+
+        return cuerpo + longitud;
+    }
+
+    private void comprobarTamano(int longitud) {
+
+        if (longitud > CodecTramas.TAMANO_MAXIMO_TRAMA) {
+            throw new IllegalArgumentException("Trama demasiado grande: " + longitud + " bytes");
+        }
+    }
+
+    private void guardarResto(byte[] datos, int desde, int longitud) {
+
+        if (longitud <= 0) {
+            return;
+        }
+
+        if (usados + longitud > parcial.length) {
+            parcial = Arrays.copyOf(parcial, Math.max(usados + longitud, parcial.length * 2));
+        }
+
+        System.arraycopy(datos, desde, parcial, usados, longitud);
+        usados += longitud;
+    }
+}
@@ -4,12 +4,19 @@ package psp.chat.general.net;
  * Paquete de transporte para la comunicación cliente-servidor
  * Cada línea enviada por el socket es un JSON de esta clase
  * Contiene un comando y un payload en formato JSON
+ *
+ * El payload puede ir además como objeto ya materializado ({@link #getPayload()}):
+ * así se serializa una sola vez al enviar y se lee directamente del socket
+ * al recibir. Para leerlo sin importar la forma: JsonUtil.leerPayload(...)
  */
 public class EmpaquetadoDatos {
 
     private TipoComando comando;
     private String payloadJson;
 
+    /** Payload como objeto; Gson no lo incluye en el sobre antiguo */
+    private transient Object payload;
+
     /**
      * Constructor vacío requerido por Gson
      * Se inicializan valores por defecto para evitar nulls
@@ -84,9 +91,21 @@ public class EmpaquetadoDatos {
 
     }
 
+    public Object getPayload() {
+        return payload;
+    }
+
+    public void setPayload(Object payload) {
+        this.payload = payload;
+    }
+
     @Override
     public String toString() {
 
+        if (payload != null) {
+            return "EmpaquetadoDatos{comando=" + comando + ", payload=" + payload + "}";
+        }
+
         return "EmpaquetadoDatos{comando=" + comando + ", payload='" + payloadJson + "'}";
 
     }
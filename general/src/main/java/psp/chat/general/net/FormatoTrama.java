@@ -0,0 +1,31 @@
+package psp.chat.general.net;
+
+/**
+ * Formatos de trama con los que se puede enviar un {@link EmpaquetadoDatos}
+ */
+public enum FormatoTrama {
+
+    /**
+     * Una línea JSON por paquete terminada en '\n' (formato original)
+     */
+    LINEA_JSON,
+
+    /**
+     * Una línea JSON por paquete con el payload embebido como valor JSON
+     * ("payload") en lugar de como texto escapado ("payloadJson")
+     */
+    LINEA_JSON_DIRECTO,
+
+    /**
+     * Trama binaria: longitud (4 bytes, big-endian), ordinal del
+     * {@link TipoComando} (1 byte) y payload JSON en bytes UTF-8 sin escapar
+     */
+    BINARIO,
+
+    /**
+     * Igual que {@link #BINARIO}, pero los payloads de mensajes (uno o una
+     * lista) van en la forma compacta de {@link CodecMensaje} y llevan el
+     * bit alto del byte de comando a 1. El resto de payloads siguen en JSON.
+     */
+    BINARIO_COMPACTO
+}
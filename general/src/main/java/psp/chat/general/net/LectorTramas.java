@@ -0,0 +1,51 @@
+package psp.chat.general.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Lector bloqueante de paquetes sobre un {@link InputStream}.
+ *
+ * Sustituye al BufferedReader.readLine(): acepta tanto líneas JSON como
+ * tramas binarias (ver {@link DecodificadorTramas}), así que el formato
+ * puede cambiar a mitad de conexión tras la negociación.
+ */
+public class LectorTramas {
+
+    private static final int TAMANO_BUFFER = 8 * 1024;
+
+    private final InputStream entrada;
+    private final DecodificadorTramas decodificador;
+    private final ArrayDeque<EmpaquetadoDatos> listos;
+    private final byte[] buffer;
+
+    public LectorTramas(InputStream entrada, CodecTramas codec) {
+
+        this.entrada = entrada;
+        this.decodificador = new DecodificadorTramas(codec);
+        this.listos = new ArrayDeque<>();
+        this.buffer = new byte[TAMANO_BUFFER];
+    }
+
+    /**
+     * Bloquea hasta tener un paquete completo.
+     *
+     * @return el paquete o null si el otro extremo ha cerrado la conexión
+     */
+    public EmpaquetadoDatos leer() throws IOException {
+
+        while (listos.isEmpty()) {
+
+            int leidos = entrada.read(buffer);
+
+            if (leidos < 0) {
+                return null;
+            }
+
+            decodificador.alimentar(buffer, 0, leidos, listos::add);
+        }
+
+        return listos.poll();
+    }
+}
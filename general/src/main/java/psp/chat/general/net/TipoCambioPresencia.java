@@ -0,0 +1,22 @@
+package psp.chat.general.net;
+
+/**
+ * Tipos de cambio que puede llevar un delta de presencia
+ */
+public enum TipoCambioPresencia {
+
+    /**
+     * El contacto se ha conectado
+     */
+    ENTRA,
+
+    /**
+     * El contacto se ha desconectado
+     */
+    SALE,
+
+    /**
+     * El contacto sigue conectado pero ha cambiado su alias
+     */
+    ALIAS
+}
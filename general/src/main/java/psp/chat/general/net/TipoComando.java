@@ -6,6 +6,9 @@ package psp.chat.general.net;
  *
  * Cada mensaje en la red lleva un {@link TipoComando} y
  * un payload en formato JSON
+ *
+ * En las tramas binarias el comando viaja como su ordinal (1 byte):
+ * los comandos nuevos se añaden SIEMPRE al final.
  */
 public enum TipoComando {
 
@@ -52,6 +55,45 @@ public enum TipoComando {
     /**
      * El servidor envía automáticamente a todos los clientes cuando entra y sale alguien
      */
-    LISTA_CONTACTOS_CONECTADOS
+    LISTA_CONTACTOS_CONECTADOS,
+
+    /**
+     * Negociación del formato de trama. El cliente pide un {@link FormatoTrama}
+     * y el servidor responde con el que va a usar a partir de ese momento
+     */
+    NEGOCIAR_FORMATO,
+
+    /**
+     * Cliente → servidor: pide el estado completo de presencia y se suscribe
+     * a los deltas (deja de recibir LISTA_CONTACTOS_CONECTADOS).
+     * Servidor → cliente: {@link psp.chat.general.modelo.PresenciaSnapshot}
+     */
+    PRESENCIA_SNAPSHOT,
+
+    /**
+     * Servidor → cliente: cambios de presencia desde la versión anterior
+     * ({@link psp.chat.general.modelo.PresenciaDelta})
+     */
+    PRESENCIA_DELTA,
+
+    /**
+     * Servidor → cliente: lista de mensajes que llegaron mientras el
+     * cliente estaba desconectado, entregada de una vez tras el LOGIN
+     */
+    MENSAJES_PENDIENTES,
+
+    /**
+     * Cliente → servidor: {@link psp.chat.general.modelo.PeticionHistorial}
+     * Servidor → cliente: {@link psp.chat.general.modelo.PaginaHistorial}
+     */
+    HISTORIAL_PAGINA,
+
+    /**
+     * Cliente → servidor: lista de {@link psp.chat.general.modelo.PeticionHistorial}
+     * con la última posición que tiene de cada conversación (despuesDe).
+     * El servidor responde con un HISTORIAL_PAGINA por cada trozo nuevo y
+     * termina con SINCRONIZAR (nº de mensajes enviados)
+     */
+    SINCRONIZAR
 
 }
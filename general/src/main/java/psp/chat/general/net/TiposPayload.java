@@ -0,0 +1,17 @@
+package psp.chat.general.net;
+
+import java.lang.reflect.Type;
+
+/**
+ * Indica en qué tipo Java se materializa el payload de cada comando.
+ *
+ * Depende del lado que recibe: por ejemplo LISTA_CONVERSACIONES lleva un
+ * alias de cliente a servidor y una lista de resúmenes de vuelta.
+ */
+public interface TiposPayload {
+
+    /**
+     * @return el tipo del payload o null para dejarlo como texto JSON
+     */
+    Type tipoPayload(TipoComando comando);
+}
@@ -2,10 +2,18 @@ package psp.chat.general.util;
 
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
-
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import psp.chat.general.modelo.AdaptadoresModelo;
+import psp.chat.general.net.EmpaquetadoDatos;
+import psp.chat.general.net.TipoComando;
+import psp.chat.general.net.TiposPayload;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Type;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.List;
 
@@ -19,59 +27,39 @@ public class JsonUtil {
 
     /**
      * Inicializa Gson con adaptadores personalizados sin usar lambdas.
+     *
+     * Todas las clases del modelo (y LocalDateTime) se leen y escriben con
+     * los adaptadores por tokens de {@link AdaptadoresModelo}, sin reflexión;
+     * el sobre, con el mismo código que {@link #leerEmpaquetado}.
      */
     public JsonUtil() {
 
         GsonBuilder builder = new GsonBuilder();
 
-        // --- Adaptador de serialize LocalDateTime ---
-        builder.registerTypeAdapter(LocalDateTime.class, new JsonSerializer<LocalDateTime>() {
-
-                    @Override
-                    public JsonElement serialize(LocalDateTime src, Type typeOfSrc, JsonSerializationContext context) {
+        builder.registerTypeAdapterFactory(new AdaptadoresModelo());
 
-                        if (src == null) {
+        builder.registerTypeAdapter(EmpaquetadoDatos.class, new TypeAdapter<EmpaquetadoDatos>() {
 
-                            return JsonNull.INSTANCE;
+                    @Override
+                    public void write(JsonWriter out, EmpaquetadoDatos paquete) throws IOException {
 
+                        if (paquete == null) {
+                            out.nullValue();
+                            return;
                         }
 
-                        String texto = src.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-                        return new JsonPrimitive(texto);
-
+                        escribirSobre(paquete, false, out);
                     }
-                }
-        );
-
-        // --- Adaptador de deserialize LocalDateTime ---
-        builder.registerTypeAdapter(LocalDateTime.class, new JsonDeserializer<LocalDateTime>() {
 
                     @Override
-                    public LocalDateTime deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-                            throws JsonParseException {
-
-                        if (json == null) {
-
-                            return null;
-
-                        }
-
-                        String texto = json.getAsString();
-
-                        if (texto == null) {
-
-                            return null;
-
-                        }
-
-                        String limpio = texto.trim();
-                        if (limpio.isEmpty()) {
+                    public EmpaquetadoDatos read(JsonReader in) throws IOException {
 
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
                             return null;
-
                         }
 
-                        return LocalDateTime.parse(limpio, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+                        return leerSobre(in, null);
                     }
                 }
         );
@@ -140,4 +128,231 @@ public class JsonUtil {
 
     }
 
+
+    /* ==========================================================
+     *              SOBRE (EmpaquetadoDatos) EN UNA PASADA
+     * ========================================================== */
+
+    /**
+     * Crea un paquete con el payload como objeto: se serializa una sola vez,
+     * al escribirlo, en vez de pasar antes por un String JSON.
+     */
+    public EmpaquetadoDatos empaquetar(TipoComando comando, Object payload) {
+
+        EmpaquetadoDatos paquete = new EmpaquetadoDatos(comando, "");
+        paquete.setPayload(payload);
+
+        return paquete;
+    }
+
+    /**
+     * Escribe el sobre directamente en el destino.
+     *
+     * @param payloadDirecto true → {"comando":..,"payload":<valor JSON>};
+     *                       false → formato original, con el payload como texto en "payloadJson"
+     */
+    public void escribirEmpaquetado(EmpaquetadoDatos paquete, boolean payloadDirecto, Writer destino) throws IOException {
+
+        JsonWriter escritor = gson.newJsonWriter(destino);
+
+        escribirSobre(paquete, payloadDirecto, escritor);
+        escritor.flush();
+    }
+
+    private void escribirSobre(EmpaquetadoDatos paquete, boolean payloadDirecto, JsonWriter escritor) throws IOException {
+
+        escritor.beginObject();
+        escritor.name("comando").value(paquete.getComando().name());
+
+        if (payloadDirecto) {
+
+            escritor.name("payload");
+            escribirValorPayload(paquete, escritor);
+
+        } else if (paquete.getPayload() != null) {
+
+            escritor.name("payloadJson").value(gson.toJson(paquete.getPayload()));
+
+        } else {
+
+            escritor.name("payloadJson").value(paquete.getPayloadJson());
+        }
+
+        escritor.endObject();
+    }
+
+    /**
+     * Escribe solo el payload del paquete como valor JSON.
+     */
+    public void escribirPayload(EmpaquetadoDatos paquete, Writer destino) throws IOException {
+
+        JsonWriter escritor = gson.newJsonWriter(destino);
+
+        escribirValorPayload(paquete, escritor);
+        escritor.flush();
+    }
+
+    private void escribirValorPayload(EmpaquetadoDatos paquete, JsonWriter escritor) throws IOException {
+
+        Object payload = paquete.getPayload();
+
+        if (payload != null) {
+
+            gson.toJson(payload, payload.getClass(), escritor);
+
+        } else if (!paquete.getPayloadJson().isBlank()) {
+
+            // Texto que ya es JSON: se copia tal cual, sin escapar
+            escritor.jsonValue(paquete.getPayloadJson());
+
+        } else {
+
+            escritor.setSerializeNulls(true);
+            escritor.nullValue();
+        }
+    }
+
+    /**
+     * Lee un sobre en cualquiera de sus dos formas ("payload" o "payloadJson").
+     *
+     * El comando se decide antes de materializar el payload: si {@code tipos}
+     * conoce su tipo se deserializa directamente desde el lector, sin pasar
+     * por un String intermedio. Si no, se guarda como texto JSON.
+     *
+     * @return el paquete o null si el comando falta o no se reconoce
+     */
+    public EmpaquetadoDatos leerEmpaquetado(Reader origen, TiposPayload tipos) throws IOException {
+
+        return leerSobre(gson.newJsonReader(origen), tipos);
+    }
+
+    private EmpaquetadoDatos leerSobre(JsonReader lector, TiposPayload tipos) throws IOException {
+
+        TipoComando comando = null;
+        Object payload = null;
+        String payloadJson = "";
+
+        lector.beginObject();
+
+        while (lector.hasNext()) {
+
+            String nombre = lector.nextName();
+
+            if ("comando".equals(nombre) && lector.peek() == JsonToken.STRING) {
+
+                comando = leerComando(lector.nextString());
+
+            } else if ("payload".equals(nombre)) {
+
+                Type tipo = (comando != null && tipos != null) ? tipos.tipoPayload(comando) : null;
+
+                if (tipo != null) {
+                    payload = gson.fromJson(lector, tipo);
+                } else {
+                    payloadJson = JsonParser.parseReader(lector).toString();
+                }
+
+            } else if ("payloadJson".equals(nombre) && lector.peek() == JsonToken.STRING) {
+
+                payloadJson = lector.nextString();
+
+            } else {
+
+                lector.skipValue();
+            }
+        }
+
+        lector.endObject();
+
+        if (comando == null) {
+            return null;
+        }
+
+        EmpaquetadoDatos paquete = new EmpaquetadoDatos(comando, payloadJson);
+        paquete.setPayload(payload);
+
+        return paquete;
+    }
+
+    /**
+     * Deserializa un payload JSON directamente desde un lector.
+     */
+    public Object leerPayload(Reader origen, Type tipo) {
+        return gson.fromJson(origen, tipo);
+    }
+
+    /**
+     * Lector JSON por tokens, para recorrer ficheros grandes sin
+     * materializarlos enteros.
+     */
+    public JsonReader crearLector(Reader origen) {
+        return gson.newJsonReader(origen);
+    }
+
+    /**
+     * Deserializa el siguiente valor del lector con los adaptadores de Gson.
+     */
+    public <T> T leer(JsonReader lector, Class<T> tipo) {
+        return gson.fromJson(lector, tipo);
+    }
+
+    /**
+     * Escritor JSON por tokens, para generar documentos grandes por partes
+     * sin tenerlos enteros en memoria.
+     */
+    public JsonWriter crearEscritor(Writer destino) throws IOException {
+        return gson.newJsonWriter(destino);
+    }
+
+    /**
+     * Escribe el objeto como siguiente valor del escritor con los adaptadores de Gson.
+     */
+    public void escribir(JsonWriter escritor, Object valor) {
+
+        if (valor == null) {
+            gson.toJson(JsonNull.INSTANCE, escritor);
+            return;
+        }
+
+        gson.toJson(valor, valor.getClass(), escritor);
+    }
+
+    /**
+     * Devuelve el payload de un paquete recibido como el tipo pedido:
+     * el objeto ya materializado si lo hay, o lo deserializa del texto JSON.
+     */
+    public <T> T leerPayload(EmpaquetadoDatos paquete, Class<T> tipo) {
+
+        Object payload = paquete.getPayload();
+
+        if (tipo.isInstance(payload)) {
+            return tipo.cast(payload);
+        }
+
+        return fromJson(paquete.getPayloadJson(), tipo);
+    }
+
+    /**
+     * Igual que {@link #leerPayload(EmpaquetadoDatos, Class)} para payloads lista.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> leerPayloadLista(EmpaquetadoDatos paquete, Class<T> tipoElemento) {
+
+        Object payload = paquete.getPayload();
+
+        if (payload instanceof List) {
+            return (List<T>) payload;
+        }
+
+        return fromJsonLista(paquete.getPayloadJson(), tipoElemento);
+    }
+
+    private TipoComando leerComando(String nombre) {
+
+        try {
+            return TipoComando.valueOf(nombre);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package psp.chat.general.util;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool de identificadores canónicos (ids de conversación, IPs de
+ * remitente y destinatario).
+ *
+ * Cada mensaje leído trae sus propias copias de esos textos, aunque en una
+ * conversación solo haya dos o tres valores distintos. Al pasar por aquí,
+ * los textos iguales acaban siendo la misma instancia y las copias se las
+ * lleva el GC.
+ *
+ * Es una tabla de tamaño fijo (potencia de dos) indexada por el hash del
+ * texto, con dos huecos posibles por texto. No hay cerrojos: si dos hilos
+ * pisan el mismo hueco se pierde como mucho una deduplicación. Las
+ * referencias son débiles, así que el pool no retiene nada que no esté ya
+ * en uso, y nunca crece más allá de los huecos con que se crea.
+ */
+public final class PoolIdentificadores {
+
+    /** Pool que comparten JsonUtil y CodecMensaje en todo el proceso */
+    public static final PoolIdentificadores COMPARTIDO = new PoolIdentificadores(4096);
+
+    /** Textos más largos que esto no se consideran identificadores */
+    static final int LONGITUD_MAXIMA = 128;
+
+    private final AtomicReferenceArray<WeakReference<String>> huecos;
+    private final int mascara;
+
+    /**
+     * @param capacidad huecos de la tabla (se redondea a potencia de dos, mínimo 16)
+     */
+    public PoolIdentificadores(int capacidad) {
+
+        int n = 16;
+
+        while (n < capacidad && n < (1 << 30)) {
+            n <<= 1;
+        }
+
+        this.huecos = new AtomicReferenceArray<>(n);
+        this.mascara = n - 1;
+    }
+
+    /**
+     * Devuelve la instancia canónica de un texto igual a {@code valor}, o
+     * el propio {@code valor} si no había ninguna (y desde entonces lo es).
+     * Null y los textos largos se devuelven tal cual.
+     */
+    public String canonico(String valor) {
+
+        if (valor == null || valor.length() > LONGITUD_MAXIMA) {
+            return valor;
+        }
+
+        int h = valor.hashCode();
+        int primero = (h ^ (h >>> 16)) & mascara;
+        int segundo = (primero + 1) & mascara;
+
+        WeakReference<String> a = huecos.get(primero);
+        String enA = (a != null) ? a.get() : null;
+
+        if (valor.equals(enA)) {
+            return enA;
+        }
+
+        WeakReference<String> b = huecos.get(segundo);
+        String enB = (b != null) ? b.get() : null;
+
+        if (valor.equals(enB)) {
+            return enB;
+        }
+
+        // Se ocupa un hueco libre (o cuyo texto ya recogió el GC); si los
+        // dos están en uso se sustituye el primero
+        int destino = (enA != null && enB == null) ? segundo : primero;
+
+        huecos.set(destino, new WeakReference<>(valor));
+
+        return valor;
+    }
+
+    /**
+     * Huecos con un texto vivo ahora mismo (para trazas).
+     */
+    public int ocupados() {
+
+        int n = 0;
+
+        for (int i = 0; i < huecos.length(); i++) {
+
+            WeakReference<String> r = huecos.get(i);
+
+            if (r != null && r.get() != null) {
+                n++;
+            }
+        }
+
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolIdentificadores{huecos=" + huecos.length() + ", ocupados=" + ocupados() + "}";
+    }
+}
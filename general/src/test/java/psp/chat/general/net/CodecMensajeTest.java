@@ -0,0 +1,157 @@
+package psp.chat.general.net;
+
+import org.junit.jupiter.api.Test;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.util.JsonUtil;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * La forma compacta tiene que dar el mismo mensaje que el JSON de Gson:
+ * lo que se codifica y decodifica con {@link CodecMensaje} se serializa
+ * igual que el original, y un bloque cortado o con bytes de más se rechaza.
+ */
+class CodecMensajeTest {
+
+    private final JsonUtil json = new JsonUtil();
+
+    @Test
+    void idaYVueltaIgualQueGson() {
+
+        for (Mensaje m : ejemplos()) {
+
+            byte[] datos = CodecMensaje.codificar(m);
+
+            assertFalse(CodecMensaje.esLista(datos, 0, datos.length));
+            assertEquals(json.toJson(m), json.toJson(CodecMensaje.decodificar(datos, 0, datos.length)));
+        }
+    }
+
+    @Test
+    void listaIgualQueGson() {
+
+        List<Mensaje> mensajes = ejemplos();
+        byte[] datos = CodecMensaje.codificarLista(mensajes);
+
+        assertTrue(CodecMensaje.esLista(datos, 0, datos.length));
+        assertEquals(json.toJson(mensajes), json.toJson(CodecMensaje.decodificarLista(datos, 0, datos.length)));
+    }
+
+    @Test
+    void listaVacia() {
+
+        byte[] datos = CodecMensaje.codificarLista(new ArrayList<>());
+
+        assertTrue(CodecMensaje.decodificarLista(datos, 0, datos.length).isEmpty());
+    }
+
+    @Test
+    void mensajeLeidoDeJsonSeConserva() {
+
+        String[] textos = {
+                "{\"idConversacion\":\"10.0.0.1-10.0.0.2\",\"remitente\":\"10.0.0.1\",\"destinatario\":\"10.0.0.2\","
+                        + "\"tipoMensaje\":\"ARCHIVO\",\"contenido\":\"a.txt\",\"fechaHora\":\"2024-02-29T23:59:59.123456789\","
+                        + "\"posicion\":42}",
+                "{\"idConversacion\":null,\"remitente\":null,\"destinatario\":null,\"tipoMensaje\":null,"
+                        + "\"contenido\":null,\"fechaHora\":\"1969-12-31T23:59:59.999999999\",\"posicion\":-1}",
+                "{\"contenido\":\"solo contenido\",\"fechaHora\":\"2000-01-01T00:00:00\"}"
+        };
+
+        for (String texto : textos) {
+
+            Mensaje m = json.fromJson(texto, Mensaje.class);
+            byte[] datos = CodecMensaje.codificar(m);
+
+            assertEquals(json.toJson(m), json.toJson(CodecMensaje.decodificar(datos, 0, datos.length)), texto);
+        }
+    }
+
+    @Test
+    void desplazamientoDentroDelArray() {
+
+        Mensaje m = ejemplos().get(1);
+        byte[] datos = CodecMensaje.codificar(m);
+
+        byte[] conRelleno = new byte[datos.length + 7];
+        System.arraycopy(datos, 0, conRelleno, 3, datos.length);
+
+        assertEquals(json.toJson(m), json.toJson(CodecMensaje.decodificar(conRelleno, 3, datos.length)));
+    }
+
+    @Test
+    void bloqueCortadoSeRechaza() {
+
+        byte[] mensaje = CodecMensaje.codificar(ejemplos().get(1));
+        byte[] lista = CodecMensaje.codificarLista(ejemplos());
+
+        for (int n = 0; n < mensaje.length; n++) {
+
+            int longitud = n;
+            assertThrows(IllegalArgumentException.class,
+                    () -> CodecMensaje.decodificar(mensaje, 0, longitud), "prefijo de " + n + " bytes");
+        }
+
+        for (int n = 0; n < lista.length; n++) {
+
+            int longitud = n;
+            assertThrows(IllegalArgumentException.class,
+                    () -> CodecMensaje.decodificarLista(lista, 0, longitud), "prefijo de " + n + " bytes");
+        }
+    }
+
+    @Test
+    void bytesDeMasSeRechazan() {
+
+        byte[] datos = CodecMensaje.codificar(ejemplos().get(0));
+        byte[] largos = Arrays.copyOf(datos, datos.length + 1);
+
+        assertThrows(IllegalArgumentException.class, () -> CodecMensaje.decodificar(largos, 0, largos.length));
+    }
+
+    @Test
+    void formaEquivocadaSeRechaza() {
+
+        byte[] mensaje = CodecMensaje.codificar(ejemplos().get(0));
+        byte[] lista = CodecMensaje.codificarLista(ejemplos());
+
+        assertThrows(IllegalArgumentException.class, () -> CodecMensaje.decodificarLista(mensaje, 0, mensaje.length));
+        assertThrows(IllegalArgumentException.class, () -> CodecMensaje.decodificar(lista, 0, lista.length));
+    }
+
+    private static List<Mensaje> ejemplos() {
+
+        List<Mensaje> mensajes = new ArrayList<>();
+
+        Mensaje texto = new Mensaje("10.0.0.1-10.0.0.2", "10.0.0.1", "10.0.0.2", TipoMensaje.TEXTO, "hola");
+        texto.setPosicion(0);
+        mensajes.add(texto);
+
+        // Mismos ids: en la lista van por diccionario
+        Mensaje unicode = new Mensaje("10.0.0.1-10.0.0.2", "10.0.0.2", "10.0.0.1", TipoMensaje.TEXTO,
+                "ñandú é 中文 😀\n\t\"comillas\" \\");
+        unicode.setFechaHora(LocalDateTime.of(2024, 5, 17, 12, 30, 45, 123_456_789));
+        unicode.setPosicion(Long.MAX_VALUE);
+        mensajes.add(unicode);
+
+        Mensaje vacio = new Mensaje(null, null, null, null, null);
+        vacio.setFechaHora(LocalDateTime.of(1950, 1, 1, 0, 0, 0, 1));
+        vacio.setPosicion(Long.MIN_VALUE);
+        mensajes.add(vacio);
+
+        Mensaje largo = new Mensaje("grupo", "10.0.0.3", "", TipoMensaje.values()[TipoMensaje.values().length - 1],
+                "x".repeat(70_000));
+        largo.setFechaHora(LocalDateTime.of(2999, 12, 31, 23, 59, 59, 999_999_999));
+        largo.setPosicion(-1);
+        mensajes.add(largo);
+
+        return mensajes;
+    }
+}
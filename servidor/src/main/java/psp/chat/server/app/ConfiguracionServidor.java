@@ -0,0 +1,188 @@
+package psp.chat.server.app;
+
+import psp.chat.server.net.ModoTransporte;
+import psp.chat.server.net.PoliticaColaLlena;
+import psp.chat.server.persistencia.ModoAlmacen;
+import psp.chat.server.persistencia.PoliticaSincronizacion;
+
+/**
+ * Configuración de arranque del servidor.
+ *
+ * Los valores se leen de las propiedades del sistema (-Dclave=valor)
+ * y, si no están presentes, se usan valores por defecto seguros:
+ *
+ *   guasapp.puerto            → puerto TCP (5000)
+ *   guasapp.transporte        → HILO_POR_CONEXION | HILOS_VIRTUALES | NIO
+ *   guasapp.nio.hilos         → nº de hilos de bucle de eventos NIO
+ *   guasapp.salida.capacidad  → paquetes máximos en la cola de salida de cada sesión (1024)
+ *   guasapp.salida.politica   → DESCARTAR_PRESENCIA | COALESCER_PRESENCIA | DESCONECTAR
+ *   guasapp.tramas.binarias   → acepta negociar tramas binarias con los clientes (true)
+ *   guasapp.tramas.compactas  → acepta mensajes en forma binaria compacta dentro de ellas (true)
+ *   guasapp.presencia.ventanaMs → ms durante los que se agrupan cambios de presencia (100)
+ *   guasapp.persistencia.fsync  → SIEMPRE | CADA_N_MS | CADA_N_MENSAJES
+ *   guasapp.persistencia.intervaloMs     → ms que se acumulan mensajes antes del fsync (5)
+ *   guasapp.persistencia.mensajesPorLote → mensajes por fsync con CADA_N_MENSAJES (64)
+ *   guasapp.persistencia.escritores      → carriles de escritura en paralelo (4)
+ *   guasapp.cache.conversaciones → conversaciones completas en memoria como mucho (256)
+ *   guasapp.cache.memoriaMb      → techo de memoria estimada de la caché (64)
+ *   guasapp.almacen              → ARCHIVOS | SEGMENTOS
+ *   guasapp.segmentos.tamanoMb      → tamaño a partir del que se abre otro segmento (64)
+ *   guasapp.segmentos.compactarCada → segmentos cerrados que disparan una compactación (4, 0 = nunca)
+ */
+public class ConfiguracionServidor {
+
+    private final int puerto;
+    private final ModoTransporte modoTransporte;
+    private final int hilosBucleEventos;
+    private final int capacidadColaSalida;
+    private final PoliticaColaLlena politicaColaLlena;
+    private final boolean tramasBinarias;
+    private final boolean tramasCompactas;
+    private final long ventanaPresenciaMs;
+    private final PoliticaSincronizacion politicaSincronizacion;
+    private final long intervaloSincronizacionMs;
+    private final int mensajesPorLote;
+    private final int escritores;
+    private final int conversacionesEnCache;
+    private final long memoriaCacheBytes;
+    private final ModoAlmacen modoAlmacen;
+    private final long tamanoSegmentoBytes;
+    private final int segmentosPorCompactacion;
+
+    /**
+     * Construye la configuración a partir de las propiedades del sistema.
+     */
+    public ConfiguracionServidor() {
+
+        this.puerto = Integer.getInteger("guasapp.puerto", 5000);
+        this.modoTransporte = leerEnum("guasapp.transporte", ModoTransporte.class, ModoTransporte.HILO_POR_CONEXION);
+
+        int hilos = Integer.getInteger("guasapp.nio.hilos", Runtime.getRuntime().availableProcessors());
+        this.hilosBucleEventos = Math.max(1, hilos);
+
+        this.capacidadColaSalida = Math.max(1, Integer.getInteger("guasapp.salida.capacidad", 1024));
+        this.politicaColaLlena = leerEnum("guasapp.salida.politica", PoliticaColaLlena.class, PoliticaColaLlena.COALESCER_PRESENCIA);
+
+        this.tramasBinarias = Boolean.parseBoolean(System.getProperty("guasapp.tramas.binarias", "true"));
+        this.tramasCompactas = Boolean.parseBoolean(System.getProperty("guasapp.tramas.compactas", "true"));
+
+        this.ventanaPresenciaMs = Math.max(1, Long.getLong("guasapp.presencia.ventanaMs", 100));
+
+        this.politicaSincronizacion = leerEnum("guasapp.persistencia.fsync", PoliticaSincronizacion.class, PoliticaSincronizacion.SIEMPRE);
+        this.intervaloSincronizacionMs = Math.max(1, Long.getLong("guasapp.persistencia.intervaloMs", 5));
+        this.mensajesPorLote = Math.max(1, Integer.getInteger("guasapp.persistencia.mensajesPorLote", 64));
+        this.escritores = Math.max(1, Integer.getInteger("guasapp.persistencia.escritores", 4));
+
+        this.conversacionesEnCache = Math.max(0, Integer.getInteger("guasapp.cache.conversaciones", 256));
+        this.memoriaCacheBytes = Math.max(0, Long.getLong("guasapp.cache.memoriaMb", 64)) * 1024 * 1024;
+
+        this.modoAlmacen = leerEnum("guasapp.almacen", ModoAlmacen.class, ModoAlmacen.ARCHIVOS);
+        this.tamanoSegmentoBytes = Math.max(1, Long.getLong("guasapp.segmentos.tamanoMb", 64)) * 1024 * 1024;
+        this.segmentosPorCompactacion = Math.max(0, Integer.getInteger("guasapp.segmentos.compactarCada", 4));
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    public ModoTransporte getModoTransporte() {
+        return modoTransporte;
+    }
+
+    public int getHilosBucleEventos() {
+        return hilosBucleEventos;
+    }
+
+    public int getCapacidadColaSalida() {
+        return capacidadColaSalida;
+    }
+
+    public PoliticaColaLlena getPoliticaColaLlena() {
+        return politicaColaLlena;
+    }
+
+    public boolean isTramasBinarias() {
+        return tramasBinarias;
+    }
+
+    public boolean isTramasCompactas() {
+        return tramasCompactas;
+    }
+
+    public long getVentanaPresenciaMs() {
+        return ventanaPresenciaMs;
+    }
+
+    public PoliticaSincronizacion getPoliticaSincronizacion() {
+        return politicaSincronizacion;
+    }
+
+    public long getIntervaloSincronizacionMs() {
+        return intervaloSincronizacionMs;
+    }
+
+    public int getMensajesPorLote() {
+        return mensajesPorLote;
+    }
+
+    public int getEscritores() {
+        return escritores;
+    }
+
+    public int getConversacionesEnCache() {
+        return conversacionesEnCache;
+    }
+
+    public long getMemoriaCacheBytes() {
+        return memoriaCacheBytes;
+    }
+
+    public ModoAlmacen getModoAlmacen() {
+        return modoAlmacen;
+    }
+
+    public long getTamanoSegmentoBytes() {
+        return tamanoSegmentoBytes;
+    }
+
+    public int getSegmentosPorCompactacion() {
+        return segmentosPorCompactacion;
+    }
+
+    /**
+     * Lee una propiedad como valor de un enum, ignorando mayúsculas.
+     * Si el valor no existe o no es válido, devuelve el valor por defecto.
+     */
+    private <E extends Enum<E>> E leerEnum(String clave, Class<E> tipo, E porDefecto) {
+
+        String valor = System.getProperty(clave);
+
+        if (valor == null || valor.isBlank()) {
+            return porDefecto;
+        }
+
+        try {
+            return Enum.valueOf(tipo, valor.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return porDefecto;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConfiguracionServidor{puerto=" + puerto +
+                ", transporte=" + modoTransporte +
+                ", hilosNio=" + hilosBucleEventos +
+                ", colaSalida=" + capacidadColaSalida + "/" + politicaColaLlena +
+                ", tramasBinarias=" + tramasBinarias + (tramasBinarias ? "/compactas=" + tramasCompactas : "") +
+                ", ventanaPresencia=" + ventanaPresenciaMs + "ms" +
+                ", fsync=" + politicaSincronizacion + "/" + intervaloSincronizacionMs + "ms/" + mensajesPorLote +
+                ", escritores=" + escritores +
+                ", cache=" + conversacionesEnCache + "/" + (memoriaCacheBytes / (1024 * 1024)) + "MB" +
+                ", almacen=" + modoAlmacen +
+                (modoAlmacen == ModoAlmacen.SEGMENTOS
+                        ? "/" + (tamanoSegmentoBytes / (1024 * 1024)) + "MB/" + segmentosPorCompactacion
+                        : "") +
+                "}";
+    }
+}
@@ -4,6 +4,7 @@ import psp.chat.general.modelo.Contacto;
 import psp.chat.server.net.SesionCliente;
 
 import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Representa a un cliente actualmente conectado al servidor.
@@ -12,6 +13,7 @@ import java.time.LocalDateTime;
  *   - Información persistente del contacto (idContacto, alias, ip).
  *   - Momento en el que se estableció la conexión.
  *   - La sesión de red activa asociada al socket.
+ *   - Contadores de su cola de salida (profundidad y descartes).
  *
  * IMPORTANTE:
  *   La identidad del usuario YA NO depende de la IP.
@@ -28,6 +30,9 @@ public class ClienteConectado {
     /** Sesión de red activa para este cliente */
     private SesionCliente sesionCliente;
 
+    /** Paquetes descartados o coalescidos por tener la cola de salida llena */
+    private final AtomicLong paquetesDescartados;
+
     /**
      * Crea la representación de un cliente conectado.
      *
@@ -43,6 +48,7 @@ public class ClienteConectado {
 
         this.contacto = contacto;
         this.conectadoDesde = LocalDateTime.now();
+        this.paquetesDescartados = new AtomicLong();
 
     }
 
@@ -76,6 +82,34 @@ public class ClienteConectado {
         this.sesionCliente = sesionCliente;
     }
 
+    /**
+     * Anota un paquete perdido por la política de cola llena.
+     */
+    public void registrarPaqueteDescartado() {
+        paquetesDescartados.incrementAndGet();
+    }
+
+    /**
+     * @return paquetes descartados o coalescidos desde que se conectó
+     */
+    public long getPaquetesDescartados() {
+        return paquetesDescartados.get();
+    }
+
+    /**
+     * @return paquetes esperando ahora mismo en la cola de salida
+     */
+    public int getProfundidadColaSalida() {
+        return (sesionCliente != null) ? sesionCliente.getProfundidadColaSalida() : 0;
+    }
+
+    /**
+     * @return máximo de paquetes que ha llegado a acumular la cola de salida
+     */
+    public int getProfundidadMaximaColaSalida() {
+        return (sesionCliente != null) ? sesionCliente.getProfundidadMaximaColaSalida() : 0;
+    }
+
     /**
      * @return descripción cómoda para UI: alias + " (" + IP + ")"
      */
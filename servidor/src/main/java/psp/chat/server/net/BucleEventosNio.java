@@ -0,0 +1,156 @@
+package psp.chat.server.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Bucle de eventos NIO: un único hilo con un {@link Selector} que atiende
+ * muchos {@link CanalNio} en modo no bloqueante.
+ *
+ * Todo lo que toca el Selector o las SelectionKey se ejecuta en el hilo
+ * del bucle. Otros hilos le encargan trabajo mediante {@link #ejecutar(Runnable)}.
+ *
+ * El buffer de lectura es único por bucle (no por conexión), de modo que
+ * la memoria de las conexiones inactivas se mantiene plana.
+ */
+class BucleEventosNio implements Runnable {
+
+    private static final int TAMANO_BUFFER_LECTURA = 64 * 1024;
+
+    private final String nombre;
+    private final Selector selector;
+    private final Queue<Runnable> tareas;
+    private final ByteBuffer bufferLectura;
+
+    private volatile boolean activo;
+    private Thread hilo;
+
+    BucleEventosNio(String nombre) throws IOException {
+
+        this.nombre = nombre;
+        this.selector = Selector.open();
+        this.tareas = new ConcurrentLinkedQueue<>();
+        this.bufferLectura = ByteBuffer.allocate(TAMANO_BUFFER_LECTURA);
+    }
+
+    void arrancar() {
+
+        activo = true;
+
+        hilo = new Thread(this, nombre);
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Encola una tarea para ejecutarla en el hilo del bucle.
+     */
+    void ejecutar(Runnable tarea) {
+
+        tareas.add(tarea);
+        selector.wakeup();
+    }
+
+    /**
+     * Registra un canal recién aceptado en el selector de este bucle.
+     */
+    void registrar(CanalNio canal) {
+        ejecutar(() -> canal.registrarEn(selector));
+    }
+
+    boolean enHiloBucle() {
+        return Thread.currentThread() == hilo;
+    }
+
+    @Override
+    public void run() {
+
+        while (activo) {
+
+            try {
+
+                selector.select();
+
+            } catch (IOException e) {
+
+                break;
+
+            }
+
+            ejecutarTareas();
+            atenderClavesSeleccionadas();
+        }
+
+        cerrarTodo();
+    }
+
+    private void ejecutarTareas() {
+
+        Runnable tarea = tareas.poll();
+
+        while (tarea != null) {
+
+            tarea.run();
+            tarea = tareas.poll();
+        }
+    }
+
+    private void atenderClavesSeleccionadas() {
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+        while (it.hasNext()) {
+
+            SelectionKey clave = it.next();
+            it.remove();
+
+            CanalNio canal = (CanalNio) clave.attachment();
+
+            try {
+
+                if (clave.isValid() && clave.isReadable()) {
+                    canal.alLeer(bufferLectura);
+                }
+
+                if (clave.isValid() && clave.isWritable()) {
+                    canal.alEscribir();
+                }
+
+            } catch (IOException | RuntimeException e) {
+
+                canal.alFallar(e);
+
+            }
+        }
+    }
+
+    /**
+     * Detiene el bucle. El cierre real del selector ocurre en su propio hilo.
+     */
+    void detener() {
+
+        activo = false;
+        selector.wakeup();
+    }
+
+    private void cerrarTodo() {
+
+        for (SelectionKey clave : selector.keys()) {
+
+            CanalNio canal = (CanalNio) clave.attachment();
+
+            if (canal != null) {
+                canal.cerrar();
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+}
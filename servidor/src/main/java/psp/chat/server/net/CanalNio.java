@@ -0,0 +1,312 @@
+package psp.chat.server.net;
+
+import psp.chat.general.net.DecodificadorTramas;
+import psp.chat.general.net.EmpaquetadoDatos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Canal no bloqueante sobre un {@link SocketChannel}.
+ *
+ * Lectura: el bucle entrega los bytes leídos a un {@link DecodificadorTramas}
+ * y cada paquete completo (línea JSON o trama binaria) va a la
+ * {@link ColaEntrada} de la sesión, que los procesa en su propio hilo: el
+ * bucle no ejecuta comandos. Solo se reserva memoria propia cuando queda
+ * una trama a medias.
+ *
+ * Escritura: el bucle es el único escritor; vacía la {@link ColaSalida}
+ * de la sesión cuando el socket es escribible. Los trozos de las tramas
+ * por trozos los genera un {@link TrozosAdelantados} fuera del bucle.
+ */
+class CanalNio implements CanalSesion {
+
+    /** Paquetes recibidos sin procesar a partir de los que se deja de leer */
+    private static final int CAPACIDAD_ENTRADA = 64;
+
+    private final SocketChannel canal;
+    private final BucleEventosNio bucle;
+    private final String ipRemota;
+
+    private final AtomicBoolean escrituraSolicitada;
+
+    private SesionCliente sesion;
+    private ColaSalida colaSalida;
+    private SelectionKey clave;
+    private DecodificadorTramas decodificador;
+    private ColaEntrada entrada;
+
+    /** Sin OP_READ: cola de entrada llena o fin de la entrada (solo el hilo del bucle) */
+    private boolean lecturaPausada;
+    private boolean finLectura;
+
+    /** Paquete a medio escribir (solo lo toca el hilo del bucle) */
+    private ByteBuffer enCurso;
+    private PaqueteSalida paqueteEnCurso;
+
+    /** Generador de la trama por trozos en curso (cerrar() lo cancela desde otro hilo) */
+    private volatile TrozosAdelantados trozosEnCurso;
+
+    /** El último siguienteBuffer() se quedó sin trozo listo */
+    private boolean esperandoTrozo;
+
+    CanalNio(SocketChannel canal, BucleEventosNio bucle) throws IOException {
+
+        this.canal = canal;
+        this.bucle = bucle;
+        this.ipRemota = canal.socket().getInetAddress().getHostAddress();
+
+        this.escrituraSolicitada = new AtomicBoolean(false);
+    }
+
+    @Override
+    public String getIpRemota() {
+        return ipRemota;
+    }
+
+    @Override
+    public void iniciar(SesionCliente sesion) {
+
+        this.sesion = sesion;
+        this.colaSalida = sesion.getColaSalida();
+        this.decodificador = new DecodificadorTramas(sesion.getCodec());
+        this.entrada = new ColaEntrada(sesion, CAPACIDAD_ENTRADA, () -> bucle.ejecutar(this::reanudarLectura));
+        this.entrada.arrancar("SesionCliente-" + ipRemota);
+
+        // Se marca como solicitada: registrarEn decide si hace falta OP_WRITE
+        escrituraSolicitada.set(true);
+        bucle.registrar(this);
+    }
+
+    /* ==========================================================
+     *              LLAMADAS DESDE EL HILO DEL BUCLE
+     * ========================================================== */
+
+    void registrarEn(Selector selector) {
+
+        try {
+
+            clave = canal.register(selector, SelectionKey.OP_READ, this);
+
+            // Puede que ya haya paquetes encolados antes del registro
+            alEscribir();
+
+        } catch (ClosedChannelException e) {
+
+            sesion.detener();
+
+        } catch (IOException | RuntimeException e) {
+
+            alFallar(e);
+
+        }
+    }
+
+    void alLeer(ByteBuffer buffer) throws IOException {
+
+        buffer.clear();
+        int leidos = canal.read(buffer);
+
+        if (leidos < 0) {
+            // Lo ya recibido se procesa; la cola detiene la sesión al acabar
+            clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+            lecturaPausada = true;
+            finLectura = true;
+            entrada.terminarEntrada();
+            return;
+        }
+
+        buffer.flip();
+        decodificador.alimentar(buffer.array(), buffer.position(), buffer.remaining(), this::recibido);
+    }
+
+    private void recibido(EmpaquetadoDatos paquete) {
+
+        if (paquete == null) {
+            // Trama inválida: la sesión solo deja constancia en el log
+            sesion.procesarPaquete(null);
+            return;
+        }
+
+        if (!entrada.anadir(paquete) && !lecturaPausada) {
+            lecturaPausada = true;
+            clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * La cola de entrada vuelve a tener hueco.
+     */
+    private void reanudarLectura() {
+
+        if (!lecturaPausada || finLectura || clave == null || !clave.isValid()) {
+            return;
+        }
+
+        lecturaPausada = false;
+        clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+    }
+
+    private int interesLectura() {
+        return lecturaPausada ? 0 : SelectionKey.OP_READ;
+    }
+
+    void alEscribir() throws IOException {
+
+        if (enCurso == null) {
+            enCurso = siguienteBuffer();
+        }
+
+        while (enCurso != null) {
+
+            canal.write(enCurso);
+
+            if (enCurso.hasRemaining()) {
+                // El socket está lleno: seguimos interesados en OP_WRITE
+                clave.interestOps(interesLectura() | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            if (paqueteEnCurso.isMedido()) {
+                sesion.paqueteEscrito(paqueteEnCurso);
+            }
+
+            enCurso = siguienteBuffer();
+        }
+
+        if (esperandoTrozo) {
+            // Sin OP_WRITE hasta que el generador avise; escrituraSolicitada
+            // sigue activa porque ese aviso ya está en camino
+            clave.interestOps(interesLectura());
+            return;
+        }
+
+        clave.interestOps(interesLectura());
+        escrituraSolicitada.set(false);
+
+        // Alguien pudo encolar justo después de vaciar la cola
+        if (!colaSalida.estaVacia() && escrituraSolicitada.compareAndSet(false, true)) {
+            clave.interestOps(interesLectura() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Siguiente trozo listo de la trama por trozos en curso o, si no la hay
+     * o ya ha terminado, el siguiente paquete de la cola. Devuelve null si
+     * no hay nada que escribir o si el trozo siguiente aún no está generado
+     * ({@link #esperandoTrozo}); en ese caso no se pasa a otro paquete.
+     */
+    private ByteBuffer siguienteBuffer() {
+
+        esperandoTrozo = false;
+
+        while (true) {
+
+            TrozosAdelantados trozos = trozosEnCurso;
+
+            if (trozos != null) {
+
+                byte[] trozo = trozos.sondear();
+
+                if (trozo != null) {
+                    return ByteBuffer.wrap(trozo);
+                }
+
+                if (!trozos.isTerminada()) {
+                    esperandoTrozo = true;
+                    return null;
+                }
+
+                trozosEnCurso = null;
+            }
+
+            PaqueteSalida paquete = colaSalida.sondear();
+
+            paqueteEnCurso = paquete;
+
+            if (paquete == null) {
+                return null;
+            }
+
+            if (!paquete.isPorTrozos()) {
+                return ByteBuffer.wrap(paquete.getDatos());
+            }
+
+            trozos = new TrozosAdelantados(paquete, () -> bucle.ejecutar(this::activarEscritura));
+            trozosEnCurso = trozos;
+            trozos.arrancar("SesionCliente-" + ipRemota + "-trozos");
+
+            if (!canal.isOpen()) {
+                trozos.cancelar();
+            }
+        }
+    }
+
+    void alFallar(Exception e) {
+
+        sesion.notificarErrorCanal(e);
+        sesion.detener();
+    }
+
+    /**
+     * Intenta escribir de inmediato; si no se vacía todo, el bucle
+     * seguirá cuando el socket vuelva a ser escribible.
+     */
+    private void activarEscritura() {
+
+        if (clave == null || !clave.isValid()) {
+            return;
+        }
+
+        try {
+            alEscribir();
+        } catch (IOException | RuntimeException e) {
+            alFallar(e);
+        }
+    }
+
+    /* ==========================================================
+     *              LLAMADAS DESDE CUALQUIER HILO
+     * ========================================================== */
+
+    @Override
+    public void avisarPendientes() {
+
+        if (!canal.isOpen()) {
+            return;
+        }
+
+        if (escrituraSolicitada.compareAndSet(false, true)) {
+
+            if (bucle.enHiloBucle()) {
+                activarEscritura();
+            } else {
+                bucle.ejecutar(this::activarEscritura);
+            }
+        }
+    }
+
+    @Override
+    public void cerrar() {
+
+        if (entrada != null) {
+            entrada.cerrar();
+        }
+
+        try {
+            canal.close();
+        } catch (IOException ignored) {}
+
+        // Después de cerrar: el bucle comprueba isOpen() tras crear uno nuevo
+        TrozosAdelantados trozos = trozosEnCurso;
+
+        if (trozos != null) {
+            trozos.cancelar();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package psp.chat.server.net;
+
+/**
+ * Canal de transporte por el que una {@link SesionCliente} se comunica
+ * con su cliente.
+ *
+ * Separa el protocolo (SesionCliente) de la forma de mover bytes:
+ *   - {@link CanalSocket}: socket bloqueante con hilos de lectura y escritura.
+ *   - {@link CanalNio}: SocketChannel no bloqueante gestionado por un {@link BucleEventosNio}.
+ *
+ * El canal nunca escribe por iniciativa de otro hilo: vuelca la
+ * {@link ColaSalida} de la sesión desde su propio escritor.
+ */
+public interface CanalSesion {
+
+    /**
+     * @return IP remota del cliente
+     */
+    String getIpRemota();
+
+    /**
+     * Empieza a leer del cliente y a volcar la cola de salida de la sesión.
+     */
+    void iniciar(SesionCliente sesion);
+
+    /**
+     * Avisa de que la cola de salida tiene paquetes nuevos.
+     */
+    void avisarPendientes();
+
+    /**
+     * Cierra el canal. Debe poder llamarse varias veces.
+     */
+    void cerrar();
+}
@@ -0,0 +1,149 @@
+package psp.chat.server.net;
+
+import psp.chat.general.net.EmpaquetadoDatos;
+import psp.chat.general.net.LectorTramas;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Canal bloqueante clásico: un {@link Socket} leído trama a trama
+ * (línea JSON o binaria) desde un hilo dedicado (de plataforma o virtual).
+ *
+ * Un segundo hilo es el único escritor: vacía la {@link ColaSalida} de la
+ * sesión y solo hace flush cuando la cola se queda vacía, agrupando ráfagas
+ * de paquetes en pocas escrituras al socket.
+ */
+class CanalSocket implements CanalSesion {
+
+    private final Socket socket;
+    private final Thread.Builder constructorHilos;
+    private final InputStream entrada;
+    private final BufferedOutputStream salida;
+
+    /**
+     * @param constructorHilos constructor de hilos (plataforma o virtuales)
+     */
+    CanalSocket(Socket socket, Thread.Builder constructorHilos) throws IOException {
+
+        this.socket = socket;
+        this.constructorHilos = constructorHilos;
+        this.entrada = socket.getInputStream();
+        this.salida = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public String getIpRemota() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void iniciar(SesionCliente sesion) {
+
+        String nombre = "SesionCliente-" + getIpRemota();
+
+        constructorHilos.name(nombre + "-escritura").start(() -> bucleEscritura(sesion));
+        constructorHilos.name(nombre).start(() -> bucleLectura(sesion));
+    }
+
+    /**
+     * Bucle de lectura bloqueante. Se ejecuta en el hilo de la sesión
+     * hasta que el cliente cierra el socket o se produce un error.
+     */
+    private void bucleLectura(SesionCliente sesion) {
+
+        LectorTramas lector = new LectorTramas(entrada, sesion.getCodec());
+
+        try {
+
+            EmpaquetadoDatos paquete = lector.leer();
+
+            while (paquete != null && sesion.isActiva()) {
+
+                sesion.procesarPaquete(paquete);
+                paquete = lector.leer();
+            }
+
+        } catch (IOException | RuntimeException e) {
+
+            sesion.notificarErrorCanal(e);
+
+        } finally {
+            sesion.detener();
+        }
+    }
+
+    /**
+     * Bucle del escritor: toma paquetes de la cola hasta que se cierra.
+     */
+    private void bucleEscritura(SesionCliente sesion) {
+
+        ColaSalida cola = sesion.getColaSalida();
+
+        try {
+
+            // Paquetes medidos que siguen en el buffer, aún sin enviar
+            List<PaqueteSalida> sinVaciar = new ArrayList<>();
+
+            PaqueteSalida paquete = cola.tomar();
+
+            while (paquete != null) {
+
+                if (paquete.isPorTrozos()) {
+
+                    byte[] trozo;
+
+                    while ((trozo = paquete.siguienteTrozo()) != null) {
+                        salida.write(trozo);
+                    }
+
+                } else {
+                    salida.write(paquete.getDatos());
+                }
+
+                if (paquete.isMedido()) {
+                    sinVaciar.add(paquete);
+                }
+
+                if (cola.estaVacia()) {
+
+                    salida.flush();
+
+                    for (PaqueteSalida escrito : sinVaciar) {
+                        sesion.paqueteEscrito(escrito);
+                    }
+                    sinVaciar.clear();
+                }
+
+                paquete = cola.tomar();
+            }
+
+        } catch (IOException | RuntimeException e) {
+
+            // RuntimeException: fallo al leer del almacén una trama por trozos
+            sesion.notificarErrorCanal(e);
+            sesion.detener();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+        }
+    }
+
+    /**
+     * El escritor ya espera sobre la propia cola; no hace falta avisarle.
+     */
+    @Override
+    public void avisarPendientes() {
+    }
+
+    @Override
+    public void cerrar() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,179 @@
+package psp.chat.server.net;
+
+import psp.chat.general.net.EmpaquetadoDatos;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paquetes recibidos por un {@link CanalNio} pendientes de procesar.
+ *
+ * El bucle NIO solo lee y decodifica; los comandos (que tocan disco:
+ * LOGIN, historial, SINCRONIZAR…) los ejecuta un hilo virtual propio de
+ * la sesión, uno detrás de otro y en el orden en que llegaron. Así una
+ * lectura lenta solo retrasa a su propio cliente y no al resto de
+ * conexiones del bucle.
+ *
+ * La cola no rechaza nada (un bloque leído puede traer varios paquetes),
+ * pero al pasar de {@link #capacidad} el canal deja de leer del socket
+ * hasta que el hilo la baja a la mitad: el cliente que envía más rápido
+ * de lo que se procesa acaba frenado por TCP.
+ */
+class ColaEntrada {
+
+    private final SesionCliente sesion;
+    private final int capacidad;
+    private final Runnable alVaciarse;
+
+    private final ArrayDeque<EmpaquetadoDatos> paquetes;
+    private final ReentrantLock cerrojo;
+    private final Condition hayPaquetes;
+
+    /** Se dejó de leer por estar llena: hay que avisar al bajar */
+    private boolean llena;
+
+    /** No llegan más paquetes; se procesan los que quedan y se cierra la sesión */
+    private boolean finEntrada;
+
+    private boolean cerrada;
+
+    /**
+     * @param alVaciarse se llama (desde el hilo de la cola) cuando vuelve a haber hueco
+     */
+    ColaEntrada(SesionCliente sesion, int capacidad, Runnable alVaciarse) {
+
+        this.sesion = sesion;
+        this.capacidad = Math.max(1, capacidad);
+        this.alVaciarse = alVaciarse;
+
+        this.paquetes = new ArrayDeque<>();
+        this.cerrojo = new ReentrantLock();
+        this.hayPaquetes = cerrojo.newCondition();
+    }
+
+    void arrancar(String nombre) {
+        Thread.ofVirtual().name(nombre).start(this::procesar);
+    }
+
+    /**
+     * Añade un paquete decodificado (hilo del bucle).
+     *
+     * @return false si la cola ha llegado a su capacidad y hay que dejar de leer
+     */
+    boolean anadir(EmpaquetadoDatos paquete) {
+
+        cerrojo.lock();
+        try {
+
+            if (cerrada || finEntrada) {
+                return true;
+            }
+
+            paquetes.addLast(paquete);
+            hayPaquetes.signal();
+
+            if (paquetes.size() >= capacidad) {
+                llena = true;
+            }
+
+            return !llena;
+
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * El cliente ha cerrado su lado: se procesa lo recibido y después se
+     * detiene la sesión, igual que con el canal bloqueante.
+     */
+    void terminarEntrada() {
+
+        cerrojo.lock();
+        try {
+            finEntrada = true;
+            hayPaquetes.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Descarta lo pendiente y termina el hilo (cierre de la sesión).
+     */
+    void cerrar() {
+
+        cerrojo.lock();
+        try {
+            cerrada = true;
+            paquetes.clear();
+            hayPaquetes.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void procesar() {
+
+        try {
+
+            EmpaquetadoDatos paquete = tomar();
+
+            while (paquete != null && sesion.isActiva()) {
+
+                sesion.procesarPaquete(paquete);
+                paquete = tomar();
+            }
+
+        } catch (RuntimeException e) {
+
+            sesion.notificarErrorCanal(e);
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+        } finally {
+            sesion.detener();
+        }
+    }
+
+    /**
+     * @return siguiente paquete, o null cuando la cola se cierra o se
+     *         acaba la entrada y no queda nada
+     */
+    private EmpaquetadoDatos tomar() throws InterruptedException {
+
+        boolean reanudar = false;
+        EmpaquetadoDatos paquete;
+
+        cerrojo.lock();
+        try {
+
+            while (paquetes.isEmpty() && !cerrada && !finEntrada) {
+                hayPaquetes.await();
+            }
+
+            if (cerrada) {
+                return null;
+            }
+
+            paquete = paquetes.pollFirst();
+
+            if (llena && paquetes.size() <= capacidad / 2) {
+                llena = false;
+                reanudar = true;
+            }
+
+        } finally {
+            cerrojo.unlock();
+        }
+
+        if (reanudar) {
+            alVaciarse.run();
+        }
+
+        return paquete;
+    }
+}
@@ -0,0 +1,221 @@
+package psp.chat.server.net;
+
+import psp.chat.general.net.TipoComando;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola de salida acotada de UNA sesión.
+ *
+ * Cualquier hilo encola (respuestas, difusiones) sin tocar el socket;
+ * un único escritor (hilo dedicado o bucle NIO) la vacía. Así un cliente
+ * lento solo se retrasa a sí mismo y nunca bloquea al que difunde.
+ *
+ * Se usa {@link ReentrantLock} en lugar de synchronized para no fijar
+ * hilos virtuales mientras el escritor espera.
+ */
+public class ColaSalida {
+
+    /**
+     * Resultado de intentar encolar un paquete.
+     */
+    public enum Resultado {
+        /** Encolado sin incidencias */
+        ENCOLADO,
+        /** Encolado, pero sustituyendo o expulsando una presencia anterior */
+        COALESCIDO,
+        /** El paquete entrante se ha descartado */
+        DESCARTADO,
+        /** No hay hueco posible: hay que desconectar al cliente */
+        RECHAZADO
+    }
+
+    private final int capacidad;
+    private final PoliticaColaLlena politica;
+
+    private final ArrayDeque<PaqueteSalida> paquetes;
+    private final ReentrantLock cerrojo;
+    private final Condition hayPaquetes;
+
+    private int profundidadMaxima;
+    private boolean cerrada;
+
+    public ColaSalida(int capacidad, PoliticaColaLlena politica) {
+
+        this.capacidad = Math.max(1, capacidad);
+        this.politica = (politica != null) ? politica : PoliticaColaLlena.DESCONECTAR;
+
+        this.paquetes = new ArrayDeque<>();
+        this.cerrojo = new ReentrantLock();
+        this.hayPaquetes = cerrojo.newCondition();
+    }
+
+    /**
+     * Intenta encolar un paquete aplicando la política si la cola está llena.
+     */
+    public Resultado ofrecer(PaqueteSalida paquete) {
+
+        cerrojo.lock();
+        try {
+
+            if (cerrada) {
+                return Resultado.DESCARTADO;
+            }
+
+            Resultado resultado = Resultado.ENCOLADO;
+
+            if (paquetes.size() >= capacidad) {
+
+                resultado = hacerHueco(paquete);
+
+                if (resultado == Resultado.DESCARTADO || resultado == Resultado.RECHAZADO) {
+                    return resultado;
+                }
+            }
+
+            paquetes.addLast(paquete);
+
+            profundidadMaxima = Math.max(profundidadMaxima, paquetes.size());
+            hayPaquetes.signal();
+
+            return resultado;
+
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Aplica la política con la cola llena. Si devuelve COALESCIDO es que
+     * ha liberado un hueco para el paquete entrante.
+     */
+    private Resultado hacerHueco(PaqueteSalida entrante) {
+
+        boolean entranteEsPresencia = esPresencia(entrante.getComando());
+
+        switch (politica) {
+
+            case DESCARTAR_PRESENCIA:
+
+                if (entranteEsPresencia) {
+                    return Resultado.DESCARTADO;
+                }
+
+                return quitarPresencia(true) ? Resultado.COALESCIDO : Resultado.RECHAZADO;
+
+            case COALESCER_PRESENCIA:
+
+                // Una presencia nueva deja obsoleta a la última encolada
+                return quitarPresencia(!entranteEsPresencia) ? Resultado.COALESCIDO : Resultado.RECHAZADO;
+
+            default:
+                return Resultado.RECHAZADO;
+        }
+    }
+
+    /**
+     * Elimina una presencia encolada (la más antigua si masAntigua).
+     */
+    private boolean quitarPresencia(boolean masAntigua) {
+
+        Iterator<PaqueteSalida> it = masAntigua ? paquetes.iterator() : paquetes.descendingIterator();
+
+        while (it.hasNext()) {
+
+            if (esPresencia(it.next().getComando())) {
+                it.remove();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Paquetes de presencia: informativos y sustituibles por uno más reciente.
+     * Si se pierde un PRESENCIA_DELTA el cliente ve el salto de versión y pide
+     * un snapshot; el snapshot es respuesta a una petición y no se toca.
+     */
+    private boolean esPresencia(TipoComando comando) {
+        return comando == TipoComando.LISTA_CONTACTOS_CONECTADOS
+                || comando == TipoComando.PRESENCIA_DELTA;
+    }
+
+    /**
+     * Espera hasta que haya un paquete. Devuelve null si la cola se cierra.
+     */
+    public PaqueteSalida tomar() throws InterruptedException {
+
+        cerrojo.lock();
+        try {
+
+            while (paquetes.isEmpty() && !cerrada) {
+                hayPaquetes.await();
+            }
+
+            return paquetes.pollFirst();
+
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Saca un paquete sin esperar. Devuelve null si no hay ninguno.
+     */
+    public PaqueteSalida sondear() {
+
+        cerrojo.lock();
+        try {
+            return paquetes.pollFirst();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public boolean estaVacia() {
+        return tamano() == 0;
+    }
+
+    public int tamano() {
+
+        cerrojo.lock();
+        try {
+            return paquetes.size();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public int getProfundidadMaxima() {
+
+        cerrojo.lock();
+        try {
+            return profundidadMaxima;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public int getCapacidad() {
+        return capacidad;
+    }
+
+    /**
+     * Cierra la cola, descarta lo pendiente y despierta al escritor.
+     */
+    public void cerrar() {
+
+        cerrojo.lock();
+        try {
+            cerrada = true;
+            paquetes.clear();
+            hayPaquetes.signalAll();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+}
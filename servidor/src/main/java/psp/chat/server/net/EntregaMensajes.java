@@ -0,0 +1,221 @@
+package psp.chat.server.net;
+
+import psp.chat.general.modelo.Contacto;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.net.FormatoTrama;
+import psp.chat.general.net.TipoComando;
+import psp.chat.general.util.JsonUtil;
+import psp.chat.server.modelo.ClienteConectado;
+import psp.chat.server.persistencia.BuzonMensajes;
+import psp.chat.server.persistencia.RepositorioContacto;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Entrega en tiempo real de los mensajes nuevos.
+ *
+ * Cuando una sesión recibe NUEVO_MENSAJE y lo persiste, el mensaje se
+ * empuja al momento a todas las sesiones vivas del destinatario, sin
+ * esperar a que pidan el historial. El destinatario se resuelve con los
+ * índices de {@link RegistroClientes}:
+ *   - primero como IP (lo que envía el cliente: ipRemota de la conversación)
+ *   - si no, como idContacto
+ *
+ * La trama se codifica una vez por formato aunque el destinatario tenga
+ * varias sesiones abiertas, y la sesión que lo envió no lo recibe de vuelta.
+ *
+ * Si el destinatario no tiene ninguna sesión, el mensaje va a su
+ * {@link BuzonMensajes} y se le entrega de golpe tras su próximo LOGIN
+ * (MENSAJES_PENDIENTES, o uno a uno como NUEVO_MENSAJE si el cliente no
+ * ha negociado formato y por tanto no conoce ese comando).
+ */
+public class EntregaMensajes {
+
+    private final RegistroClientes registro;
+    private final RepositorioContacto repoContacto;
+    private final BuzonMensajes buzon;
+    private final JsonUtil json;
+    private final MetricasEntrega metricas;
+
+    public EntregaMensajes(RegistroClientes registro, RepositorioContacto repoContacto,
+                           BuzonMensajes buzon, JsonUtil json) {
+        this.registro = registro;
+        this.repoContacto = repoContacto;
+        this.buzon = buzon;
+        this.json = json;
+        this.metricas = new MetricasEntrega();
+    }
+
+    /**
+     * Empuja el mensaje a las sesiones conectadas del destinatario.
+     *
+     * @param mensaje    mensaje ya persistido
+     * @param origen     sesión que lo ha enviado (se excluye)
+     * @param recibidoEn System.nanoTime() al recibirlo, para medir la latencia
+     * @return nº de sesiones a las que se ha encolado
+     */
+    int entregar(Mensaje mensaje, SesionCliente origen, long recibidoEn) {
+
+        metricas.registrarRecibido();
+
+        Collection<ClienteConectado> destinos = resolver(mensaje.getDestinatario());
+
+        PaqueteDifusion difusion = null;
+        int encolados = 0;
+
+        for (ClienteConectado c : destinos) {
+
+            SesionCliente sesion = c.getSesionCliente();
+
+            if (sesion == null || sesion == origen || !sesion.isActiva()) {
+                continue;
+            }
+
+            if (difusion == null) {
+                difusion = new PaqueteDifusion(json.empaquetar(TipoComando.NUEVO_MENSAJE, mensaje), recibidoEn);
+            }
+
+            sesion.enviarDifusion(difusion);
+            encolados++;
+        }
+
+        // Sin ninguna sesión a la que encolar (ni resueltas, ni activas
+        // distintas del origen): al buzón
+        if (encolados == 0) {
+            guardarEnBuzon(mensaje);
+        }
+
+        return encolados;
+    }
+
+    /**
+     * Vacía el buzón del contacto en todas sus sesiones vivas con un solo envío.
+     * El buzón solo se borra si la trama ha quedado en la cola de alguna
+     * sesión; si entre tanto han llegado más mensajes, se repite con ellos.
+     *
+     * @return nº de mensajes entregados
+     */
+    int entregarPendientes(Contacto contacto) {
+
+        if (contacto == null) {
+            return 0;
+        }
+
+        int total = 0;
+        boolean quedan = buzon.tienePendientes(contacto.getIdContacto());
+
+        while (quedan) {
+
+            BuzonMensajes.Pendientes pendientes = buzon.extraer(contacto.getIdContacto());
+            boolean entregado = false;
+
+            try {
+
+                if (!pendientes.isEmpty()) {
+                    entregado = encolarPendientes(contacto, pendientes.getMensajes());
+                }
+
+            } finally {
+                quedan = buzon.terminar(pendientes, entregado) && entregado;
+            }
+
+            if (entregado) {
+                total += pendientes.getMensajes().size();
+                metricas.registrarPendientesEntregados(pendientes.getMensajes().size());
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * @return true si la lista ha quedado en la cola de al menos una sesión
+     */
+    private boolean encolarPendientes(Contacto contacto, List<Mensaje> pendientes) {
+
+        PaqueteDifusion lote = null;
+        boolean entregado = false;
+
+        for (ClienteConectado c : registro.buscarPorContacto(contacto.getIdContacto())) {
+
+            SesionCliente sesion = c.getSesionCliente();
+
+            if (sesion == null || !sesion.isActiva()) {
+                continue;
+            }
+
+            if (sesion.getFormatoSalida() == FormatoTrama.LINEA_JSON) {
+
+                boolean todos = true;
+
+                for (Mensaje m : pendientes) {
+                    todos &= sesion.enviar(json.empaquetar(TipoComando.NUEVO_MENSAJE, m));
+                }
+
+                entregado |= todos;
+
+            } else {
+
+                if (lote == null) {
+                    lote = new PaqueteDifusion(json.empaquetar(TipoComando.MENSAJES_PENDIENTES, pendientes));
+                }
+
+                entregado |= sesion.enviarDifusion(lote);
+            }
+        }
+
+        return entregado;
+    }
+
+    /**
+     * El destinatario no está conectado: se guarda en su buzón. Si justo
+     * se ha conectado mientras tanto, se le vacía al momento.
+     */
+    private void guardarEnBuzon(Mensaje mensaje) {
+
+        Contacto contacto = repoContacto.buscarPorIp(mensaje.getDestinatario());
+
+        if (contacto == null) {
+            contacto = repoContacto.buscarPorId(mensaje.getDestinatario());
+        }
+
+        if (contacto == null) {
+            metricas.registrarSinDestinatario();
+            return;
+        }
+
+        buzon.anadir(contacto.getIdContacto(), mensaje);
+        metricas.registrarEnBuzon();
+
+        if (!registro.buscarPorContacto(contacto.getIdContacto()).isEmpty()) {
+            entregarPendientes(contacto);
+        }
+    }
+
+    /**
+     * Lo llama la sesión destino cuando la trama ya está escrita en el socket.
+     */
+    void registrarEscrito(PaqueteSalida paquete) {
+        metricas.registrarEntrega(System.nanoTime() - paquete.getInstanteRecepcion());
+    }
+
+    private Collection<ClienteConectado> resolver(String destinatario) {
+
+        if (destinatario == null || destinatario.isBlank()) {
+            return List.of();
+        }
+
+        Collection<ClienteConectado> porIp = registro.buscarPorIp(destinatario);
+
+        if (!porIp.isEmpty()) {
+            return porIp;
+        }
+
+        return registro.buscarPorContacto(destinatario);
+    }
+
+    public MetricasEntrega getMetricas() {
+        return metricas;
+    }
+}
@@ -0,0 +1,159 @@
+package psp.chat.server.net;
+
+import psp.chat.general.modelo.CambioPresencia;
+import psp.chat.general.modelo.Contacto;
+import psp.chat.general.modelo.PresenciaDelta;
+import psp.chat.general.modelo.PresenciaSnapshot;
+import psp.chat.general.net.TipoCambioPresencia;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estado versionado de presencia: qué contactos están conectados.
+ *
+ * Los eventos (entra/sale/alias) se acumulan y {@link #cerrarDelta()} los
+ * resume en un único {@link PresenciaDelta} con el cambio NETO de cada
+ * contacto: entrar y salir en la misma ventana no genera nada. Cada delta
+ * emitido incrementa la versión en uno.
+ *
+ * Un contacto puede tener varias sesiones abiertas (misma IP); solo entra
+ * con la primera y solo sale con la última.
+ *
+ * No es thread-safe: {@link PublicadorPresencia} lo usa siempre bajo su lock.
+ */
+class EstadoPresencia {
+
+    /** Contacto conectado y nº de sesiones que lo mantienen */
+    private static class Entrada {
+        private final Contacto contacto;
+        private int sesiones;
+
+        private Entrada(Contacto contacto) {
+            this.contacto = contacto;
+        }
+    }
+
+    private final Map<String, Entrada> conectados;
+
+    /** Contactos tocados desde el último delta → si estaban conectados entonces */
+    private final Map<String, Boolean> estabanConectados;
+    private final Map<String, Contacto> contactosTocados;
+    private final Set<String> aliasCambiados;
+
+    private long version;
+
+    EstadoPresencia() {
+        this.conectados = new LinkedHashMap<>();
+        this.estabanConectados = new LinkedHashMap<>();
+        this.contactosTocados = new LinkedHashMap<>();
+        this.aliasCambiados = new HashSet<>();
+        this.version = 0;
+    }
+
+    void entra(Contacto contacto) {
+
+        tocar(contacto);
+
+        Entrada entrada = conectados.computeIfAbsent(contacto.getIdContacto(), id -> new Entrada(contacto));
+        entrada.sesiones++;
+    }
+
+    void sale(Contacto contacto) {
+
+        Entrada entrada = conectados.get(contacto.getIdContacto());
+
+        if (entrada == null) {
+            return;
+        }
+
+        tocar(contacto);
+
+        entrada.sesiones--;
+
+        if (entrada.sesiones <= 0) {
+            conectados.remove(contacto.getIdContacto());
+        }
+    }
+
+    void cambiaAlias(Contacto contacto) {
+
+        if (!conectados.containsKey(contacto.getIdContacto())) {
+            return;
+        }
+
+        tocar(contacto);
+        aliasCambiados.add(contacto.getIdContacto());
+    }
+
+    /**
+     * Resume los eventos acumulados en un delta y avanza la versión.
+     *
+     * @return el delta o null si los eventos no cambian nada visible
+     */
+    PresenciaDelta cerrarDelta() {
+
+        List<CambioPresencia> cambios = new ArrayList<>();
+
+        for (Map.Entry<String, Boolean> tocado : estabanConectados.entrySet()) {
+
+            String id = tocado.getKey();
+            boolean antes = tocado.getValue();
+            boolean ahora = conectados.containsKey(id);
+            Contacto contacto = contactosTocados.get(id);
+
+            if (!antes && ahora) {
+                cambios.add(new CambioPresencia(TipoCambioPresencia.ENTRA, contacto));
+            } else if (antes && !ahora) {
+                cambios.add(new CambioPresencia(TipoCambioPresencia.SALE, contacto));
+            } else if (antes && aliasCambiados.contains(id)) {
+                cambios.add(new CambioPresencia(TipoCambioPresencia.ALIAS, contacto));
+            }
+        }
+
+        estabanConectados.clear();
+        contactosTocados.clear();
+        aliasCambiados.clear();
+
+        if (cambios.isEmpty()) {
+            return null;
+        }
+
+        long anterior = version;
+        version++;
+
+        return new PresenciaDelta(anterior, version, cambios);
+    }
+
+    /**
+     * Estado de la última versión emitida más los eventos aún no resumidos;
+     * éstos llegarán igualmente en el siguiente delta, que parte de esta versión
+     * y por tanto es idempotente sobre ellos.
+     */
+    PresenciaSnapshot snapshot() {
+
+        List<Contacto> contactos = new ArrayList<>(conectados.size());
+
+        for (Entrada entrada : conectados.values()) {
+            contactos.add(entrada.contacto);
+        }
+
+        return new PresenciaSnapshot(version, contactos);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    private void tocar(Contacto contacto) {
+
+        String id = contacto.getIdContacto();
+
+        estabanConectados.putIfAbsent(id, conectados.containsKey(id));
+        contactosTocados.put(id, contacto);
+    }
+}
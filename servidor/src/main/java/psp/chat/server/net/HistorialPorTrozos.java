@@ -0,0 +1,165 @@
+package psp.chat.server.net;
+
+import com.google.gson.stream.JsonWriter;
+import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.net.CodecTramas;
+import psp.chat.general.net.TipoComando;
+import psp.chat.general.util.JsonUtil;
+import psp.chat.server.persistencia.RepositorioConversacion;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Respuesta a HISTORIAL_CONVERSACION generada por trozos mientras se
+ * escribe en el socket.
+ *
+ * El payload es el mismo JSON de {@link Conversacion} que producía Gson
+ * con la conversación entera, pero los mensajes se leen del repositorio
+ * en tramos de {@link #MENSAJES_POR_TROZO} y cada tramo se serializa con
+ * un único JsonWriter que sigue abierto entre trozos. En memoria solo hay
+ * un tramo a la vez, tenga la conversación los mensajes que tenga.
+ *
+ * Siempre va como línea JSON (la binaria necesita su longitud antes del
+ * primer byte): directa para las sesiones que han negociado formato y con
+ * el payload escapado como texto para las del formato original.
+ *
+ * Se envían los mensajes que había al pedirlo; los que lleguen mientras
+ * tanto le llegan al cliente como NUEVO_MENSAJE.
+ */
+class HistorialPorTrozos implements TramaPorTrozos {
+
+    /** Mensajes que se leen y serializan en cada trozo */
+    static final int MENSAJES_POR_TROZO = 256;
+
+    private final JsonUtil json;
+    private final CodecTramas codec;
+    private final RepositorioConversacion repositorio;
+    private final String idConversacion;
+    private final long total;
+    private final boolean payloadDirecto;
+
+    /** JSON del trozo actual; se vacía después de cada uno */
+    private final StringWriter texto;
+    private JsonWriter escritor;
+
+    private long siguiente;
+    private boolean terminado;
+
+    /**
+     * @param total          mensajes que se van a enviar (los que hay al pedirlo)
+     * @param payloadDirecto false → formato original (payload como texto escapado)
+     */
+    HistorialPorTrozos(JsonUtil json, CodecTramas codec, RepositorioConversacion repositorio,
+                       String idConversacion, long total, boolean payloadDirecto) {
+
+        this.json = json;
+        this.codec = codec;
+        this.repositorio = repositorio;
+        this.idConversacion = idConversacion;
+        this.total = total;
+        this.payloadDirecto = payloadDirecto;
+        this.texto = new StringWriter();
+    }
+
+    @Override
+    public byte[] siguienteTrozo() {
+
+        if (terminado) {
+            return null;
+        }
+
+        try {
+
+            if (escritor == null) {
+                return empezar();
+            }
+
+            if (siguiente < total) {
+
+                long hasta = Math.min(total, siguiente + MENSAJES_POR_TROZO);
+                List<Mensaje> tramo = repositorio.obtenerMensajes(idConversacion, siguiente, hasta);
+
+                // Si el tramo viene corto (no debería) se termina ahí: la
+                // línea sigue siendo JSON válido
+                siguiente = tramo.size() == hasta - siguiente ? hasta : total;
+
+                for (Mensaje m : tramo) {
+                    json.escribir(escritor, m);
+                }
+
+                byte[] trozo = vaciar();
+
+                if (trozo.length > 0) {
+                    return trozo;
+                }
+            }
+
+            return terminar();
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sobre, cabecera de la conversación y apertura de la lista de mensajes.
+     */
+    private byte[] empezar() throws IOException {
+
+        Conversacion cabecera = repositorio.obtenerCabecera(idConversacion);
+
+        escritor = json.crearEscritor(texto);
+
+        escritor.beginObject();
+        escritor.name("idConversacion").value(cabecera.getIdConversacion());
+        escritor.name("ipRemota").value(cabecera.getIpRemota());
+        escritor.name("aliasVisible").value(cabecera.getAliasVisible());
+        escritor.name("mensajes").beginArray();
+
+        return unir(codec.inicioLinea(TipoComando.HISTORIAL_CONVERSACION, payloadDirecto), vaciar());
+    }
+
+    private byte[] terminar() throws IOException {
+
+        escritor.endArray();
+        escritor.endObject();
+
+        terminado = true;
+
+        return unir(vaciar(), codec.finLinea(payloadDirecto));
+    }
+
+    /**
+     * Saca lo escrito desde el último trozo, en UTF-8 y escapado si hace falta.
+     */
+    private byte[] vaciar() throws IOException {
+
+        escritor.flush();
+
+        String parte = texto.toString();
+        texto.getBuffer().setLength(0);
+
+        if (!payloadDirecto && !parte.isEmpty()) {
+            // Escapado como valor de texto JSON, sin las comillas de los extremos
+            String escapado = json.toJson(parte);
+            parte = escapado.substring(1, escapado.length() - 1);
+        }
+
+        return parte.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] unir(byte[] a, byte[] b) {
+
+        byte[] r = new byte[a.length + b.length];
+
+        System.arraycopy(a, 0, r, 0, a.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+
+        return r;
+    }
+}
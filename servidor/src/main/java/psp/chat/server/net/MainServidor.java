@@ -1,15 +1,22 @@
 package psp.chat.server.net;
 
-import psp.chat.general.net.EmpaquetadoDatos;
 import psp.chat.general.net.TipoComando;
 import psp.chat.general.util.JsonUtil;
+import psp.chat.server.app.ConfiguracionServidor;
 import psp.chat.server.modelo.ClienteConectado;
+import psp.chat.server.persistencia.AlmacenConversaciones;
+import psp.chat.server.persistencia.BuzonMensajes;
+import psp.chat.server.persistencia.CacheConversaciones;
+import psp.chat.server.persistencia.EscritorMensajes;
+import psp.chat.server.persistencia.IndiceResumenes;
+import psp.chat.server.persistencia.ModoAlmacen;
 import psp.chat.server.persistencia.RepositorioContacto;
 import psp.chat.server.persistencia.RepositorioConversacion;
 import psp.chat.server.persistencia.RepositorioConversacionArchivo;
+import psp.chat.server.persistencia.RepositorioConversacionSegmentos;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 /**
@@ -17,9 +24,19 @@ import java.util.List;
  *
  * Gestiona:
  *   - Repositorios persistentes
- *   - Lista de clientes conectados
+ *   - Registro de clientes conectados ({@link RegistroClientes})
  *   - Comunicación con la capa UI (ObservadorServidor)
- *   - Difusión de eventos a todos los clientes (lista de conectados)
+ *   - Difusión de eventos a todos los clientes (presencia)
+ *
+ * Presencia: los cambios se entregan a {@link PublicadorPresencia}, que los
+ * agrupa por ventana. Los clientes que piden PRESENCIA_SNAPSHOT reciben
+ * después solo deltas versionados (PRESENCIA_DELTA); el resto sigue
+ * recibiendo la lista completa LISTA_CONTACTOS_CONECTADOS.
+ *
+ * Mensajes: cada NUEVO_MENSAJE se empuja al momento a las sesiones del
+ * destinatario a través de {@link EntregaMensajes}, que mide la latencia;
+ * si no está conectado se guarda en su buzón hasta el siguiente LOGIN.
+ * La entrega y el ACK esperan a que el mensaje esté en disco.
  */
 public class MainServidor {
 
@@ -35,30 +52,58 @@ public class MainServidor {
     }
 
     private final ObservadorServidor observador;
+    private final ConfiguracionServidor configuracion;
     private final JsonUtil json;
 
     private final RepositorioContacto repositorioContacto;
     private final RepositorioConversacion repositorioConversacion;
 
     private final ServidorChat servidorChat;
-    private final List<ClienteConectado> clientesConectados;
+    private final RegistroClientes clientesConectados;
+    private final PublicadorPresencia publicadorPresencia;
+    private final EntregaMensajes entregaMensajes;
 
     public MainServidor(ObservadorServidor observador) {
 
         this.observador = observador;
-        this.clientesConectados = new ArrayList<>();
+        this.configuracion = new ConfiguracionServidor();
+        this.clientesConectados = new RegistroClientes();
 
         this.json = new JsonUtil();
+        this.publicadorPresencia = new PublicadorPresencia(this, json, configuracion.getVentanaPresenciaMs());
 
         this.repositorioContacto = new RepositorioContacto(json);
+        AlmacenConversaciones almacenConversaciones = crearAlmacen();
+        IndiceResumenes indiceResumenes = new IndiceResumenes(json);
+        CacheConversaciones cacheConversaciones = new CacheConversaciones(
+                configuracion.getConversacionesEnCache(),
+                configuracion.getMemoriaCacheBytes()
+        );
+
         this.repositorioConversacion = new RepositorioConversacion(
-                new RepositorioConversacionArchivo(json)
+                almacenConversaciones,
+                indiceResumenes,
+                new EscritorMensajes(
+                        almacenConversaciones,
+                        indiceResumenes,
+                        cacheConversaciones,
+                        configuracion.getPoliticaSincronizacion(),
+                        configuracion.getIntervaloSincronizacionMs(),
+                        configuracion.getMensajesPorLote(),
+                        configuracion.getEscritores()
+                ),
+                cacheConversaciones
         );
 
-        int puerto = 5000;
+        this.entregaMensajes = new EntregaMensajes(
+                clientesConectados,
+                repositorioContacto,
+                new BuzonMensajes(json),
+                json
+        );
 
         this.servidorChat = new ServidorChat(
-                puerto,
+                configuracion,
                 repositorioContacto,
                 repositorioConversacion,
                 json,
@@ -66,11 +111,38 @@ public class MainServidor {
         );
     }
 
+    /**
+     * Crea el motor de almacenamiento elegido en la configuración.
+     * La primera vez que se arranca con SEGMENTOS se importan las
+     * conversaciones que hubiera en data/conversaciones.
+     */
+    private AlmacenConversaciones crearAlmacen() {
+
+        if (configuracion.getModoAlmacen() != ModoAlmacen.SEGMENTOS) {
+            return new RepositorioConversacionArchivo(json);
+        }
+
+        RepositorioConversacionSegmentos segmentos = new RepositorioConversacionSegmentos(
+                json,
+                configuracion.getTamanoSegmentoBytes(),
+                configuracion.getSegmentosPorCompactacion()
+        );
+
+        if (segmentos.estaVacio() && Files.isDirectory(Path.of("data/conversaciones"))) {
+            segmentos.importar(new RepositorioConversacionArchivo(json));
+        }
+
+        return segmentos;
+    }
+
     /**
      * Arranca el servidor y notifica a la UI.
      */
     public void arrancarServidor() {
 
+        publicadorPresencia.iniciar();
+        repositorioConversacion.iniciar();
+
         boolean arrancado = servidorChat.iniciar();
 
         if (arrancado && observador != null) {
@@ -86,6 +158,13 @@ public class MainServidor {
     public void detenerServidor() {
 
         servidorChat.detener();
+        publicadorPresencia.detener();
+        repositorioConversacion.detener();
+
+        escribirLog("Entrega de mensajes: " + entregaMensajes.getMetricas());
+        escribirLog("Persistencia: " + repositorioConversacion.getEscritor());
+        escribirLog("Caché: " + repositorioConversacion.getCache());
+        escribirLog("Almacén: " + repositorioConversacion.getAlmacen());
 
         if (observador != null) {
 
@@ -104,11 +183,13 @@ public class MainServidor {
             return;
         }
 
-        clientesConectados.add(cliente);
+        if (!clientesConectados.registrar(cliente)) {
+            return;
+        }
 
-        notificarClienteConectado(cliente);
+        publicadorPresencia.entra(cliente);
 
-        enviarListaConectadosATodos();
+        notificarClienteConectado(cliente);
     }
 
     void registrarClienteDesconectado(ClienteConectado cliente) {
@@ -117,15 +198,73 @@ public class MainServidor {
             return;
         }
 
-        clientesConectados.remove(cliente);
+        // Solo la primera baja cuenta: detener() puede llegar por varios caminos
+        if (!clientesConectados.eliminar(cliente)) {
+            return;
+        }
+
+        publicadorPresencia.sale(cliente);
+
+        escribirLog("Sesión cerrada: " + cliente.descripcionCorta()
+                + " (sesiones vivas: " + clientesConectados.getSesionesVivas() + ")");
 
         notificarClienteDesconectado(cliente);
+    }
+
+    /**
+     * El cliente ha cambiado su alias (LOGIN).
+     */
+    void registrarCambioAlias(ClienteConectado cliente) {
 
-        enviarListaConectadosATodos();
+        if (cliente == null) {
+            return;
+        }
+
+        publicadorPresencia.cambiaAlias(cliente);
+    }
+
+    /**
+     * La sesión pasa a recibir deltas de presencia (snapshot inmediato).
+     */
+    void suscribirPresencia(SesionCliente sesion) {
+        publicadorPresencia.suscribir(sesion);
+    }
+
+    public PublicadorPresencia getPublicadorPresencia() {
+        return publicadorPresencia;
+    }
+
+    EntregaMensajes getEntregaMensajes() {
+        return entregaMensajes;
+    }
+
+    /**
+     * @return contadores y latencia de la entrega en tiempo real
+     */
+    public MetricasEntrega getMetricasEntrega() {
+        return entregaMensajes.getMetricas();
     }
 
+    ConfiguracionServidor getConfiguracion() {
+        return configuracion;
+    }
+
+    /**
+     * @return copia de los clientes conectados en este momento
+     */
     List<ClienteConectado> obtenerClientesConectados() {
-        return Collections.unmodifiableList(clientesConectados);
+        return clientesConectados.instantanea();
+    }
+
+    RegistroClientes getRegistroClientes() {
+        return clientesConectados;
+    }
+
+    /**
+     * @return nº de sesiones registradas; debe volver a 0 sin clientes
+     */
+    public int getSesionesVivas() {
+        return clientesConectados.getSesionesVivas();
     }
 
     void escribirLog(String texto) {
@@ -160,31 +299,41 @@ public class MainServidor {
      * ========================================================== */
 
     /**
-     * Envía a *todos* los clientes activos la lista completa de contactos conectados.
+     * Envía la lista completa de contactos conectados a los clientes
+     * activos que no se han suscrito a los deltas de presencia.
+     * Lo llama {@link PublicadorPresencia} una vez por ventana.
      *
      * El payload es una lista de objetos Contacto, NO Strings.
      * Esto permite que cada cliente tenga alias/IP actualizados.
+     *
+     * La lista se serializa una vez por formato de trama, no una por cliente.
      */
     public void enviarListaConectadosATodos() {
 
-        // Extraer solo Contacto
-        List<?> contactosParaEnviar = clientesConectados.stream()
-                .map(ClienteConectado::getContacto)
-                .toList();
+        PaqueteDifusion difusion = null;
 
-        EmpaquetadoDatos paquete = new EmpaquetadoDatos(
-                TipoComando.LISTA_CONTACTOS_CONECTADOS,
-                json.toJson(contactosParaEnviar)
-        );
+        for (ClienteConectado c : clientesConectados.todos()) {
 
-        // Enviar a cada cliente con sesión activa
-        for (ClienteConectado c : clientesConectados) {
+            SesionCliente sesion = c.getSesionCliente();
 
-            if (c.getSesionCliente() != null) {
+            if (sesion == null || sesion.isPresenciaIncremental()) {
+                continue;
+            }
+
+            if (difusion == null) {
 
-                c.getSesionCliente().enviarPaquete(paquete);
+                // Extraer solo Contacto
+                List<?> contactosParaEnviar = clientesConectados.todos().stream()
+                        .map(ClienteConectado::getContacto)
+                        .toList();
 
+                difusion = new PaqueteDifusion(json.empaquetar(
+                        TipoComando.LISTA_CONTACTOS_CONECTADOS,
+                        contactosParaEnviar
+                ));
             }
+
+            sesion.enviarDifusion(difusion);
         }
     }
 }
@@ -0,0 +1,154 @@
+package psp.chat.server.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métricas de la entrega en tiempo real de mensajes.
+ *
+ * La latencia se mide desde que el servidor recibe el NUEVO_MENSAJE hasta
+ * que la trama queda escrita en el socket del destinatario (no incluye la
+ * red ni el cliente). Se acumula en un histograma de cubos potencia de 2
+ * en microsegundos, así que registrar es barato y sin bloqueos y los
+ * percentiles salen con un error como mucho del doble del cubo.
+ */
+public class MetricasEntrega {
+
+    /** Cubo i = latencias en [2^(i-1), 2^i) µs; el último recoge el resto */
+    private static final int CUBOS = 32;
+
+    private final LongAdder recibidos = new LongAdder();
+    private final LongAdder entregas = new LongAdder();
+    private final LongAdder sinDestinatario = new LongAdder();
+    private final LongAdder enBuzon = new LongAdder();
+    private final LongAdder pendientesEntregados = new LongAdder();
+
+    private final AtomicLongArray histograma = new AtomicLongArray(CUBOS);
+    private final LongAdder sumaMicros = new LongAdder();
+    private final AtomicLong maximoMicros = new AtomicLong();
+
+    void registrarRecibido() {
+        recibidos.increment();
+    }
+
+    void registrarSinDestinatario() {
+        sinDestinatario.increment();
+    }
+
+    void registrarEnBuzon() {
+        enBuzon.increment();
+    }
+
+    void registrarPendientesEntregados(int cantidad) {
+        pendientesEntregados.add(cantidad);
+    }
+
+    /**
+     * Una trama de NUEVO_MENSAJE ha terminado de escribirse.
+     */
+    void registrarEntrega(long nanos) {
+
+        long micros = Math.max(0, nanos / 1_000);
+
+        entregas.increment();
+        sumaMicros.add(micros);
+        maximoMicros.accumulateAndGet(micros, Math::max);
+
+        int cubo = Math.min(CUBOS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        histograma.incrementAndGet(cubo);
+    }
+
+    /**
+     * @return mensajes recibidos por el servidor
+     */
+    public long getRecibidos() {
+        return recibidos.sum();
+    }
+
+    /**
+     * @return tramas entregadas a sesiones vivas (una por sesión destino)
+     */
+    public long getEntregas() {
+        return entregas.sum();
+    }
+
+    /**
+     * @return mensajes cuyo destinatario no es ningún contacto conocido
+     */
+    public long getSinDestinatario() {
+        return sinDestinatario.sum();
+    }
+
+    /**
+     * @return mensajes guardados en el buzón de un destinatario desconectado
+     */
+    public long getEnBuzon() {
+        return enBuzon.sum();
+    }
+
+    /**
+     * @return mensajes de buzón entregados tras un LOGIN
+     */
+    public long getPendientesEntregados() {
+        return pendientesEntregados.sum();
+    }
+
+    public long getMediaMicros() {
+        long n = entregas.sum();
+        return n == 0 ? 0 : sumaMicros.sum() / n;
+    }
+
+    public long getMaximoMicros() {
+        return maximoMicros.get();
+    }
+
+    /**
+     * Percentil aproximado de la latencia de entrega.
+     *
+     * @param percentil entre 0 y 100
+     * @return límite superior (µs) del cubo en el que cae el percentil
+     */
+    public long getPercentilMicros(double percentil) {
+
+        long total = 0;
+        long[] cuenta = new long[CUBOS];
+
+        for (int i = 0; i < CUBOS; i++) {
+            cuenta[i] = histograma.get(i);
+            total += cuenta[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long objetivo = (long) Math.ceil(total * Math.min(100, Math.max(0, percentil)) / 100.0);
+        long acumulado = 0;
+
+        for (int i = 0; i < CUBOS; i++) {
+
+            acumulado += cuenta[i];
+
+            if (acumulado >= Math.max(1, objetivo)) {
+                return Math.min(1L << i, getMaximoMicros());
+            }
+        }
+
+        return getMaximoMicros();
+    }
+
+    @Override
+    public String toString() {
+        return "MetricasEntrega{recibidos=" + getRecibidos() +
+                ", entregas=" + getEntregas() +
+                ", sinDestinatario=" + getSinDestinatario() +
+                ", enBuzon=" + getEnBuzon() +
+                ", pendientesEntregados=" + getPendientesEntregados() +
+                ", p50=" + getPercentilMicros(50) + "us" +
+                ", p99=" + getPercentilMicros(99) + "us" +
+                ", media=" + getMediaMicros() + "us" +
+                ", max=" + getMaximoMicros() + "us" +
+                "}";
+    }
+}
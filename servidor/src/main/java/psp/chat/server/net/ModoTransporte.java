@@ -0,0 +1,24 @@
+package psp.chat.server.net;
+
+/**
+ * Modos de transporte disponibles para atender a los clientes.
+ */
+public enum ModoTransporte {
+
+    /**
+     * Un hilo de plataforma por socket, con lectura bloqueante línea a línea
+     */
+    HILO_POR_CONEXION,
+
+    /**
+     * Igual que HILO_POR_CONEXION pero cada sesión corre en un hilo virtual:
+     * mismo código bloqueante, sin coste de pila de plataforma por socket
+     */
+    HILOS_VIRTUALES,
+
+    /**
+     * Pocos hilos de bucle de eventos (Selector) que gestionan
+     * todos los SocketChannel en modo no bloqueante
+     */
+    NIO
+}
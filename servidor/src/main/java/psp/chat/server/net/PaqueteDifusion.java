@@ -0,0 +1,67 @@
+package psp.chat.server.net;
+
+import psp.chat.general.net.CodecTramas;
+import psp.chat.general.net.EmpaquetadoDatos;
+import psp.chat.general.net.FormatoTrama;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Paquete que se envía a muchas sesiones a la vez.
+ *
+ * Se codifica una sola vez por {@link FormatoTrama} (como mucho tantas
+ * veces como formatos distintos haya entre los destinatarios) y el mismo
+ * {@link PaqueteSalida} se comparte en las colas de todas las sesiones.
+ * Los bytes compartidos no se modifican nunca: cada canal los envuelve en
+ * su propio buffer para escribirlos.
+ */
+public class PaqueteDifusion {
+
+    private final EmpaquetadoDatos paquete;
+
+    /** Trama ya codificada por formato (índice = ordinal) */
+    private final AtomicReferenceArray<PaqueteSalida> codificados;
+
+    /** Ver {@link PaqueteSalida#getInstanteRecepcion()} */
+    private final long instanteRecepcion;
+
+    public PaqueteDifusion(EmpaquetadoDatos paquete) {
+        this(paquete, 0);
+    }
+
+    public PaqueteDifusion(EmpaquetadoDatos paquete, long instanteRecepcion) {
+
+        if (paquete == null) {
+            throw new IllegalArgumentException("paquete no puede ser null");
+        }
+
+        this.paquete = paquete;
+        this.codificados = new AtomicReferenceArray<>(FormatoTrama.values().length);
+        this.instanteRecepcion = instanteRecepcion;
+    }
+
+    /**
+     * Devuelve la trama en el formato pedido, codificándola solo la primera vez.
+     * Si dos hilos llegan a la vez se queda la primera; la otra se descarta.
+     */
+    PaqueteSalida codificadoPara(FormatoTrama formato, CodecTramas codec) {
+
+        int indice = formato.ordinal();
+        PaqueteSalida salida = codificados.get(indice);
+
+        if (salida == null) {
+
+            salida = new PaqueteSalida(paquete.getComando(), codec.codificar(paquete, formato), instanteRecepcion);
+
+            if (!codificados.compareAndSet(indice, null, salida)) {
+                salida = codificados.get(indice);
+            }
+        }
+
+        return salida;
+    }
+
+    public EmpaquetadoDatos getPaquete() {
+        return paquete;
+    }
+}
@@ -0,0 +1,81 @@
+package psp.chat.server.net;
+
+import psp.chat.general.net.TipoComando;
+
+/**
+ * Paquete ya codificado (trama completa) pendiente de enviar por una sesión.
+ *
+ * Guarda el comando para que la cola de salida pueda decidir qué
+ * descartar o coalescer sin volver a decodificar la trama.
+ *
+ * Una misma instancia puede estar en la cola de varias sesiones
+ * (ver {@link PaqueteDifusion}), así que sus bytes no se modifican.
+ *
+ * Los mensajes que se entregan en tiempo real llevan además el instante
+ * (System.nanoTime()) en que el servidor los recibió, para medir cuánto
+ * tardan en quedar escritos en el socket del destinatario.
+ *
+ * Las tramas muy grandes (historial completo) no llevan bytes sino una
+ * {@link TramaPorTrozos} que el canal va leyendo mientras escribe.
+ */
+public class PaqueteSalida {
+
+    private final TipoComando comando;
+    private final byte[] datos;
+    private final TramaPorTrozos trozos;
+
+    /** 0 = no se mide la latencia de este paquete */
+    private final long instanteRecepcion;
+
+    public PaqueteSalida(TipoComando comando, byte[] datos) {
+        this(comando, datos, 0);
+    }
+
+    public PaqueteSalida(TipoComando comando, byte[] datos, long instanteRecepcion) {
+        this.comando = comando;
+        this.datos = datos;
+        this.trozos = null;
+        this.instanteRecepcion = instanteRecepcion;
+    }
+
+    /**
+     * Paquete que se genera por trozos al escribirlo (no se comparte entre sesiones).
+     */
+    public PaqueteSalida(TipoComando comando, TramaPorTrozos trozos) {
+        this.comando = comando;
+        this.datos = null;
+        this.trozos = trozos;
+        this.instanteRecepcion = 0;
+    }
+
+    public TipoComando getComando() {
+        return comando;
+    }
+
+    /**
+     * @return bytes de la trama tal cual se escriben en el socket
+     *         (null si va por trozos)
+     */
+    public byte[] getDatos() {
+        return datos;
+    }
+
+    public boolean isPorTrozos() {
+        return trozos != null;
+    }
+
+    /**
+     * @return siguiente trozo de una trama por trozos, o null si ha terminado
+     */
+    public byte[] siguienteTrozo() {
+        return (trozos != null) ? trozos.siguienteTrozo() : null;
+    }
+
+    public long getInstanteRecepcion() {
+        return instanteRecepcion;
+    }
+
+    public boolean isMedido() {
+        return instanteRecepcion != 0;
+    }
+}
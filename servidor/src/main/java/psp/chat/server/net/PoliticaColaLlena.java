@@ -0,0 +1,28 @@
+package psp.chat.server.net;
+
+/**
+ * Qué hacer cuando la cola de salida de una sesión está llena
+ * (cliente lento que no consume lo que se le envía).
+ *
+ * En todas las políticas, si no hay forma de hacer hueco para un paquete
+ * que no se puede perder (respuestas, mensajes), se desconecta al cliente.
+ */
+public enum PoliticaColaLlena {
+
+    /**
+     * Se descarta la actualización de presencia entrante; para otros paquetes
+     * se descarta la presencia más antigua encolada
+     */
+    DESCARTAR_PRESENCIA,
+
+    /**
+     * La presencia entrante sustituye a la última presencia encolada
+     * (solo interesa el estado más reciente)
+     */
+    COALESCER_PRESENCIA,
+
+    /**
+     * Cola llena = cliente demasiado lento: se le desconecta
+     */
+    DESCONECTAR
+}
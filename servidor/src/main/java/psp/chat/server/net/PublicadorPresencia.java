@@ -0,0 +1,294 @@
+package psp.chat.server.net;
+
+import psp.chat.general.modelo.PresenciaDelta;
+import psp.chat.general.net.TipoComando;
+import psp.chat.general.util.JsonUtil;
+import psp.chat.server.modelo.ClienteConectado;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Agrupa los cambios de presencia y los publica una vez por ventana.
+ *
+ * Quien acepta o cierra conexiones solo encola el evento (O(1)); el primer
+ * evento de una ventana programa una publicación para dentro de
+ * guasapp.presencia.ventanaMs. Esa publicación, en el hilo del publicador,
+ * resume todos los eventos en un único PRESENCIA_DELTA para los clientes
+ * suscritos y una única LISTA_CONTACTOS_CONECTADOS para el resto.
+ * Durante una avalancha de reconexiones se envía, como mucho, un paquete
+ * de presencia por sesión y ventana.
+ */
+public class PublicadorPresencia {
+
+    private enum TipoEvento { ENTRA, SALE, ALIAS }
+
+    private static class Evento {
+        private final TipoEvento tipo;
+        private final ClienteConectado cliente;
+
+        private Evento(TipoEvento tipo, ClienteConectado cliente) {
+            this.tipo = tipo;
+            this.cliente = cliente;
+        }
+    }
+
+    private final MainServidor mainServidor;
+    private final JsonUtil json;
+    private final long ventanaMs;
+
+    private final ConcurrentLinkedQueue<Evento> pendientes;
+    private final AtomicBoolean publicacionProgramada;
+
+    /** Ordena publicaciones y suscripciones: los deltas salen en orden de versión */
+    private final ReentrantLock lock;
+    private final EstadoPresencia estado;
+
+    private volatile ScheduledExecutorService planificador;
+
+    /* Métricas */
+    private final AtomicLong eventosRecibidos;
+    private final AtomicLong publicaciones;
+    private final AtomicLong eventosPublicados;
+    private final AtomicLong eventosAbsorbidos;
+    private volatile int maxEventosPorPublicacion;
+
+    PublicadorPresencia(MainServidor mainServidor, JsonUtil json, long ventanaMs) {
+
+        this.mainServidor = mainServidor;
+        this.json = json;
+        this.ventanaMs = Math.max(1, ventanaMs);
+
+        this.pendientes = new ConcurrentLinkedQueue<>();
+        this.publicacionProgramada = new AtomicBoolean(false);
+        this.lock = new ReentrantLock();
+        this.estado = new EstadoPresencia();
+
+        this.eventosRecibidos = new AtomicLong();
+        this.publicaciones = new AtomicLong();
+        this.eventosPublicados = new AtomicLong();
+        this.eventosAbsorbidos = new AtomicLong();
+    }
+
+    /* ==========================================================
+     *                      CICLO DE VIDA
+     * ========================================================== */
+
+    void iniciar() {
+
+        if (planificador != null) {
+            return;
+        }
+
+        planificador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "PublicadorPresencia");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+
+        if (!pendientes.isEmpty()) {
+            programarPublicacion();
+        }
+    }
+
+    /**
+     * Publica lo que quede pendiente (p. ej. las salidas del cierre) y para.
+     */
+    void detener() {
+
+        ScheduledExecutorService actual = planificador;
+        planificador = null;
+
+        if (actual != null) {
+            actual.shutdownNow();
+        }
+
+        publicar();
+    }
+
+    /* ==========================================================
+     *                        EVENTOS
+     * ========================================================== */
+
+    void entra(ClienteConectado cliente) {
+        encolar(new Evento(TipoEvento.ENTRA, cliente));
+    }
+
+    void sale(ClienteConectado cliente) {
+        encolar(new Evento(TipoEvento.SALE, cliente));
+    }
+
+    void cambiaAlias(ClienteConectado cliente) {
+        encolar(new Evento(TipoEvento.ALIAS, cliente));
+    }
+
+    /**
+     * La sesión pasa a recibir deltas. El snapshot se envía de inmediato
+     * bajo el lock: todo delta posterior parte de su versión.
+     */
+    void suscribir(SesionCliente sesion) {
+
+        lock.lock();
+        try {
+            sesion.activarPresenciaIncremental();
+            sesion.enviar(json.empaquetar(TipoComando.PRESENCIA_SNAPSHOT, estado.snapshot()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void encolar(Evento evento) {
+
+        pendientes.add(evento);
+        eventosRecibidos.incrementAndGet();
+
+        if (publicacionProgramada.compareAndSet(false, true)) {
+            programarPublicacion();
+        }
+    }
+
+    private void programarPublicacion() {
+
+        ScheduledExecutorService actual = planificador;
+
+        if (actual == null) {
+            // Parado: los eventos se publican al arrancar o al detener
+            publicacionProgramada.set(false);
+            return;
+        }
+
+        try {
+            actual.schedule(this::publicar, ventanaMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            publicacionProgramada.set(false);
+        }
+    }
+
+    /* ==========================================================
+     *                       PUBLICACIÓN
+     * ========================================================== */
+
+    private void publicar() {
+
+        // Antes de vaciar: un evento que llegue ahora programa la siguiente ventana
+        publicacionProgramada.set(false);
+
+        lock.lock();
+        try {
+
+            int eventos = 0;
+            Evento evento;
+
+            while ((evento = pendientes.poll()) != null) {
+                aplicar(evento);
+                eventos++;
+            }
+
+            if (eventos == 0) {
+                return;
+            }
+
+            PresenciaDelta delta = estado.cerrarDelta();
+            int cambios = 0;
+
+            if (delta != null) {
+
+                cambios = delta.getCambios().size();
+                PaqueteDifusion difusion = new PaqueteDifusion(json.empaquetar(TipoComando.PRESENCIA_DELTA, delta));
+
+                for (ClienteConectado c : mainServidor.getRegistroClientes().todos()) {
+
+                    SesionCliente sesion = c.getSesionCliente();
+
+                    if (sesion != null && sesion.isPresenciaIncremental()) {
+                        sesion.enviarDifusion(difusion);
+                    }
+                }
+            }
+
+            mainServidor.enviarListaConectadosATodos();
+
+            registrarPublicacion(eventos, cambios);
+
+        } catch (RuntimeException e) {
+            mainServidor.escribirLog("ERROR publicando presencia: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void aplicar(Evento evento) {
+
+        switch (evento.tipo) {
+
+            case ENTRA:
+                estado.entra(evento.cliente.getContacto());
+                break;
+
+            case SALE:
+                estado.sale(evento.cliente.getContacto());
+                break;
+
+            case ALIAS:
+                estado.cambiaAlias(evento.cliente.getContacto());
+                break;
+        }
+    }
+
+    private void registrarPublicacion(int eventos, int cambios) {
+
+        publicaciones.incrementAndGet();
+        eventosPublicados.addAndGet(eventos);
+        eventosAbsorbidos.addAndGet(eventos - cambios);
+
+        if (eventos > maxEventosPorPublicacion) {
+            maxEventosPorPublicacion = eventos;
+        }
+
+        if (eventos > 1) {
+            mainServidor.escribirLog("Presencia v" + estado.getVersion() + ": " + eventos
+                    + " eventos → " + cambios + " cambios en una publicación");
+        }
+    }
+
+    /* ==========================================================
+     *                        MÉTRICAS
+     * ========================================================== */
+
+    public long getEventosRecibidos() {
+        return eventosRecibidos.get();
+    }
+
+    public long getPublicaciones() {
+        return publicaciones.get();
+    }
+
+    /**
+     * Eventos que no han llegado a los clientes como cambio propio
+     * (agrupados en la misma publicación o anulados entre sí).
+     */
+    public long getEventosAbsorbidos() {
+        return eventosAbsorbidos.get();
+    }
+
+    public int getMaxEventosPorPublicacion() {
+        return maxEventosPorPublicacion;
+    }
+
+    public double getMediaEventosPorPublicacion() {
+
+        long n = publicaciones.get();
+
+        return (n == 0) ? 0 : (double) eventosPublicados.get() / n;
+    }
+
+    public long getVersion() {
+        return estado.getVersion();
+    }
+}
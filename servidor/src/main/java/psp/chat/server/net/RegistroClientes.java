@@ -0,0 +1,152 @@
+package psp.chat.server.net;
+
+import psp.chat.server.modelo.ClienteConectado;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro concurrente de los clientes conectados.
+ *
+ * Índices (búsqueda O(1)):
+ *   - por idContacto → sesiones de ese contacto
+ *   - por IP         → sesiones desde esa IP
+ *
+ * Un mismo contacto puede tener varias sesiones abiertas, por eso cada
+ * índice apunta a un conjunto. Altas y bajas son atómicas por clave y no
+ * bloquean a quien recorre el registro: {@link #todos()} se puede iterar
+ * mientras otros hilos conectan o desconectan (iteración débilmente
+ * consistente, sin copias ni locks).
+ *
+ * {@link #getSesionesVivas()} es el indicador de fugas: tiene que volver
+ * a 0 cuando no queda nadie conectado.
+ */
+public class RegistroClientes {
+
+    /** Cliente → IP con la que se indexó (la del contacto puede cambiar luego) */
+    private final ConcurrentMap<ClienteConectado, String> clientes;
+    private final ConcurrentMap<String, Set<ClienteConectado>> porContacto;
+    private final ConcurrentMap<String, Set<ClienteConectado>> porIp;
+
+    private final AtomicInteger sesionesVivas;
+    private final AtomicLong totalRegistradas;
+
+    public RegistroClientes() {
+
+        this.clientes = new ConcurrentHashMap<>();
+        this.porContacto = new ConcurrentHashMap<>();
+        this.porIp = new ConcurrentHashMap<>();
+
+        this.sesionesVivas = new AtomicInteger();
+        this.totalRegistradas = new AtomicLong();
+    }
+
+    /**
+     * @return true si el cliente no estaba ya registrado
+     */
+    boolean registrar(ClienteConectado cliente) {
+
+        String ip = cliente.getContacto().getIpRemota();
+
+        if (clientes.putIfAbsent(cliente, ip) != null) {
+            return false;
+        }
+
+        indexar(porContacto, cliente.getContacto().getIdContacto(), cliente);
+        indexar(porIp, ip, cliente);
+
+        sesionesVivas.incrementAndGet();
+        totalRegistradas.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * @return true si el cliente estaba registrado (solo la primera baja cuenta)
+     */
+    boolean eliminar(ClienteConectado cliente) {
+
+        String ip = clientes.remove(cliente);
+
+        if (ip == null) {
+            return false;
+        }
+
+        desindexar(porContacto, cliente.getContacto().getIdContacto(), cliente);
+        desindexar(porIp, ip, cliente);
+
+        sesionesVivas.decrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Vista de solo lectura para recorrer sin copiar (difusiones).
+     */
+    public Collection<ClienteConectado> todos() {
+        return Collections.unmodifiableSet(clientes.keySet());
+    }
+
+    /**
+     * Copia en un momento dado (para la UI o para cerrar todas las sesiones).
+     */
+    public List<ClienteConectado> instantanea() {
+        return new ArrayList<>(clientes.keySet());
+    }
+
+    public Collection<ClienteConectado> buscarPorContacto(String idContacto) {
+        return buscar(porContacto, idContacto);
+    }
+
+    public Collection<ClienteConectado> buscarPorIp(String ip) {
+        return buscar(porIp, ip);
+    }
+
+    public int getSesionesVivas() {
+        return sesionesVivas.get();
+    }
+
+    public long getTotalRegistradas() {
+        return totalRegistradas.get();
+    }
+
+    private void indexar(ConcurrentMap<String, Set<ClienteConectado>> indice, String clave, ClienteConectado cliente) {
+
+        indice.compute(clave, (k, sesiones) -> {
+
+            if (sesiones == null) {
+                sesiones = ConcurrentHashMap.newKeySet();
+            }
+
+            sesiones.add(cliente);
+            return sesiones;
+        });
+    }
+
+    private void desindexar(ConcurrentMap<String, Set<ClienteConectado>> indice, String clave, ClienteConectado cliente) {
+
+        // Si era la última sesión de la clave, la entrada desaparece
+        indice.computeIfPresent(clave, (k, sesiones) -> {
+            sesiones.remove(cliente);
+            return sesiones.isEmpty() ? null : sesiones;
+        });
+    }
+
+    private Collection<ClienteConectado> buscar(ConcurrentMap<String, Set<ClienteConectado>> indice, String clave) {
+
+        if (clave == null) {
+            return Collections.emptySet();
+        }
+
+        Set<ClienteConectado> sesiones = indice.get(clave);
+
+        return (sesiones != null) ? Collections.unmodifiableSet(sesiones) : Collections.emptySet();
+    }
+}
@@ -1,13 +1,17 @@
 package psp.chat.server.net;
 
 import psp.chat.general.util.JsonUtil;
+import psp.chat.server.app.ConfiguracionServidor;
 import psp.chat.server.modelo.ClienteConectado;
 import psp.chat.server.persistencia.RepositorioContacto;
 import psp.chat.server.persistencia.RepositorioConversacion;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,44 +21,58 @@ import java.util.List;
  *  - Crear una SesionCliente por cada cliente.
  *  - Notificar eventos a MainServidor.
  *
- * La lectura de mensajes se hace línea a línea (un JSON por línea).
+ * La lectura de mensajes se hace línea a línea (un JSON por línea),
+ * con uno de los transportes de {@link ModoTransporte}:
+ *  - HILO_POR_CONEXION: un hilo bloqueante por socket.
+ *  - HILOS_VIRTUALES: el mismo esquema, con un hilo virtual por socket.
+ *  - NIO: un hilo aceptador y unos pocos {@link BucleEventosNio}.
  */
 public class ServidorChat {
 
     private final int puerto;
+    private final ModoTransporte modoTransporte;
+    private final int hilosBucleEventos;
+    private final int capacidadColaSalida;
+    private final PoliticaColaLlena politicaColaLlena;
     private final RepositorioContacto repoContacto;
     private final RepositorioConversacion repoConversacion;
     private final JsonUtil jsonUtil;
     private final MainServidor mainServidor;
 
     private ServerSocket serverSocket;
-    private boolean activo;
+    private ServerSocketChannel serverChannel;
+    private final List<BucleEventosNio> buclesNio;
+    private int siguienteBucle;
 
-    /**
-     * Lista de sesiones activas.
-     * Permite cerrar limpiamente TODAS las conexiones cuando el servidor se detiene.
-     */
-    private final List<SesionCliente> sesionesActivas;
+    private volatile boolean activo;
 
-    public ServidorChat(int puerto,
+    public ServidorChat(ConfiguracionServidor configuracion,
                         RepositorioContacto repoContacto,
                         RepositorioConversacion repoConversacion,
                         JsonUtil jsonUtil,
                         MainServidor mainServidor) {
 
-        this.puerto = puerto;
+        this.puerto = configuracion.getPuerto();
+        this.modoTransporte = configuracion.getModoTransporte();
+        this.hilosBucleEventos = configuracion.getHilosBucleEventos();
+        this.capacidadColaSalida = configuracion.getCapacidadColaSalida();
+        this.politicaColaLlena = configuracion.getPoliticaColaLlena();
         this.repoContacto = repoContacto;
         this.repoConversacion = repoConversacion;
         this.jsonUtil = jsonUtil;
         this.mainServidor = mainServidor;
 
-        this.sesionesActivas = new ArrayList<>();
+        this.buclesNio = new ArrayList<>();
     }
 
     public int getPuerto() {
         return puerto;
     }
 
+    public ModoTransporte getModoTransporte() {
+        return modoTransporte;
+    }
+
     /**
      * Inicia el servidor si no está ya activo.
      */
@@ -70,12 +88,29 @@ public class ServidorChat {
 
         try {
 
-            mainServidor.escribirLog("Intentando arrancar servidor en puerto " + puerto + "...");
+            mainServidor.escribirLog("Intentando arrancar servidor en puerto " + puerto
+                    + " (transporte " + modoTransporte + ")...");
+
+            Runnable aceptador;
+
+            if (modoTransporte == ModoTransporte.NIO) {
+
+                arrancarBuclesNio();
+
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(puerto), 1024);
+                aceptador = this::aceptarClientesNio;
+
+            } else {
+
+                serverSocket = new ServerSocket(puerto);
+                aceptador = this::aceptarClientes;
+
+            }
 
-            serverSocket = new ServerSocket(puerto);
             activo = true;
 
-            Thread hiloAceptacion = new Thread(this::aceptarClientes, "Hilo-Aceptacion-Servidor");
+            Thread hiloAceptacion = new Thread(aceptador, "Hilo-Aceptacion-Servidor");
             hiloAceptacion.setDaemon(true);
             hiloAceptacion.start();
 
@@ -86,15 +121,26 @@ public class ServidorChat {
 
             mainServidor.escribirLog("ERROR iniciando servidor: " + e.getMessage());
             activo = false;
+            detenerBuclesNio();
 
             return false;
 
         }
     }
 
+    private void arrancarBuclesNio() throws IOException {
+
+        for (int i = 0; i < hilosBucleEventos; i++) {
+
+            BucleEventosNio bucle = new BucleEventosNio("BucleNio-" + i);
+            bucle.arrancar();
+            buclesNio.add(bucle);
+        }
+    }
+
 
     /**
-     * Hilo principal que acepta conexiones entrantes.
+     * Hilo principal que acepta conexiones entrantes (modo bloqueante).
      */
     private void aceptarClientes() {
         while (activo) {
@@ -102,30 +148,46 @@ public class ServidorChat {
 
                 Socket socket = serverSocket.accept();
 
-                // Crear contacto provisional según la IP:
-                String ip = socket.getInetAddress().getHostAddress();
-                var contacto = repoContacto.crearContactoSiNoExiste(ip);
-                ClienteConectado cliente = new ClienteConectado(contacto);
-
-                // Sesión dedicada:
-                SesionCliente sesion = new SesionCliente(
-                        socket,
-                        cliente,
-                        repoContacto,
-                        repoConversacion,
-                        jsonUtil,
-                        mainServidor
-                );
-                cliente.setSesionCliente(sesion);
-
-                // Guardamos sesión activa
-                synchronized (sesionesActivas) {
-                    sesionesActivas.add(sesion);
+                CanalSocket canal = new CanalSocket(socket, crearConstructorHilos());
+                crearSesion(canal);
+
+            } catch (IOException e) {
+                if (activo) {
+                    mainServidor.escribirLog("ERROR aceptando cliente: " + e.getMessage());
                 }
+            }
+        }
+    }
 
-                mainServidor.registrarClienteConectado(cliente);
+    /**
+     * Constructor de los hilos de lectura y escritura de una sesión
+     * bloqueante: de plataforma o virtuales según el modo de transporte.
+     */
+    private Thread.Builder crearConstructorHilos() {
 
-                new Thread(sesion, "SesionCliente-" + ip).start();
+        if (modoTransporte == ModoTransporte.HILOS_VIRTUALES) {
+            return Thread.ofVirtual();
+        }
+
+        return Thread.ofPlatform();
+    }
+
+    /**
+     * Hilo que acepta SocketChannel y los reparte entre los bucles NIO.
+     */
+    private void aceptarClientesNio() {
+        while (activo) {
+            try {
+
+                SocketChannel socketChannel = serverChannel.accept();
+                socketChannel.configureBlocking(false);
+                socketChannel.socket().setTcpNoDelay(true);
+
+                BucleEventosNio bucle = buclesNio.get(siguienteBucle);
+                siguienteBucle = (siguienteBucle + 1) % buclesNio.size();
+
+                CanalNio canal = new CanalNio(socketChannel, bucle);
+                crearSesion(canal);
 
             } catch (IOException e) {
                 if (activo) {
@@ -135,6 +197,36 @@ public class ServidorChat {
         }
     }
 
+    /**
+     * Crea el contacto, el cliente conectado y la sesión para un canal recién
+     * aceptado. Se registra ANTES de arrancar el canal: así una desconexión
+     * inmediata siempre encuentra la sesión que tiene que dar de baja.
+     */
+    private void crearSesion(CanalSesion canal) {
+
+        // Crear contacto provisional según la IP:
+        String ip = canal.getIpRemota();
+        var contacto = repoContacto.crearContactoSiNoExiste(ip);
+        ClienteConectado cliente = new ClienteConectado(contacto);
+
+        // Sesión dedicada:
+        SesionCliente sesion = new SesionCliente(
+                canal,
+                new ColaSalida(capacidadColaSalida, politicaColaLlena),
+                cliente,
+                repoContacto,
+                repoConversacion,
+                jsonUtil,
+                mainServidor
+        );
+        cliente.setSesionCliente(sesion);
+
+        // Registro de clientes conectados (también permite cerrarlas todas al parar)
+        mainServidor.registrarClienteConectado(cliente);
+
+        sesion.iniciar();
+    }
+
     /**
      * Detiene el servidor y todas las sesiones activas.
      */
@@ -142,18 +234,13 @@ public class ServidorChat {
 
         activo = false;
 
-        // 1) Cerrar todas las sesiones activas
-        synchronized (sesionesActivas) {
-
-            for (SesionCliente sesion : sesionesActivas) {
+        // 1) Cerrar todas las sesiones activas (cada una se da de baja del registro)
+        for (ClienteConectado cliente : mainServidor.obtenerClientesConectados()) {
 
-                try {
-                    sesion.detener();
-                } catch (Exception ignored) {}
-
-            }
+            try {
+                cliente.getSesionCliente().detener();
+            } catch (Exception ignored) {}
 
-            sesionesActivas.clear();
         }
 
         // 2) Cerrar el servidor
@@ -163,9 +250,24 @@ public class ServidorChat {
                 serverSocket.close();
             }
 
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+
         } catch (IOException ignored) {}
 
+        detenerBuclesNio();
+
         mainServidor.escribirLog("Servidor detenido.");
     }
 
+    private void detenerBuclesNio() {
+
+        for (BucleEventosNio bucle : buclesNio) {
+            bucle.detener();
+        }
+
+        buclesNio.clear();
+    }
+
 }
@@ -1,106 +1,147 @@
 package psp.chat.server.net;
 
-import psp.chat.general.modelo.Conversacion;
 import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+import psp.chat.general.modelo.PeticionHistorial;
 import psp.chat.general.modelo.ResumenConversacion;
+import psp.chat.general.net.CodecTramas;
 import psp.chat.general.net.EmpaquetadoDatos;
+import psp.chat.general.net.FormatoTrama;
 import psp.chat.general.net.TipoComando;
 import psp.chat.general.util.JsonUtil;
+import psp.chat.server.app.ConfiguracionServidor;
 import psp.chat.server.modelo.ClienteConectado;
+import psp.chat.server.persistencia.PaginaCodificada;
 import psp.chat.server.persistencia.RepositorioContacto;
 import psp.chat.server.persistencia.RepositorioConversacion;
 
-import java.io.*;
-import java.net.Socket;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Gestiona la comunicación con UN solo cliente.
+ * Gestiona el protocolo con UN solo cliente.
  *
- * Un hilo por sesión:
- *   - Lee JSON línea a línea
+ * El transporte lo pone el {@link CanalSesion} (hilo por socket o NIO),
+ * que entrega cada paquete recibido a {@link #procesarPaquete(EmpaquetadoDatos)}:
  *   - Decodifica comandos
  *   - Interactúa con repositorios
  *   - Envía respuestas JSON empaquetadas
  *
  * Esta clase NUNCA toca la capa de UI (JavaFX).
  */
-public class SesionCliente implements Runnable {
+public class SesionCliente {
 
-    private final Socket socket;
+    /** Mensajes nuevos a partir de los cuales SINCRONIZAR manda solo la última página */
+    private static final long MAXIMO_SINCRONIZACION = 10_000;
+
+    private final CanalSesion canal;
+    private final ColaSalida colaSalida;
     private final ClienteConectado cliente;
     private final RepositorioContacto repoContacto;
     private final RepositorioConversacion repoConversacion;
     private final JsonUtil json;
     private final MainServidor mainServidor;
 
-    private BufferedReader entrada;
-    private PrintWriter salida;
-    private boolean activa;
+    private final CodecTramas codec;
+    private final AtomicBoolean activa;
+
+    /** Formato en el que se codifica todo lo que se envía (se negocia) */
+    private volatile FormatoTrama formatoSalida;
+
+    /** true si el cliente ha pedido PRESENCIA_SNAPSHOT y recibe deltas */
+    private volatile boolean presenciaIncremental;
 
     public SesionCliente(
-            Socket socket,
+            CanalSesion canal,
+            ColaSalida colaSalida,
             ClienteConectado cliente,
             RepositorioContacto repoContacto,
             RepositorioConversacion repoConversacion,
             JsonUtil jsonUtil,
             MainServidor mainServidor) {
 
-        this.socket = socket;
+        this.canal = canal;
+        this.colaSalida = colaSalida;
         this.cliente = cliente;
         this.repoContacto = repoContacto;
         this.repoConversacion = repoConversacion;
         this.json = jsonUtil;
         this.mainServidor = mainServidor;
+        this.codec = new CodecTramas(jsonUtil, new TiposPayloadServidor());
+        this.activa = new AtomicBoolean(true);
+        this.formatoSalida = FormatoTrama.LINEA_JSON;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Pone en marcha el transporte (lectura y escritor de la cola de salida).
+     * La sesión ya debe estar registrada: si el canal falla enseguida,
+     * {@link #detener()} la da de baja.
+     */
+    void iniciar() {
 
-        try {
+        canal.iniciar(this);
 
-            entrada = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            salida = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
-            activa = true;
+        mainServidor.escribirLog("Nueva sesión creada: " + cliente.descripcionCorta()
+                + " (sesiones vivas: " + mainServidor.getSesionesVivas() + ")");
+    }
 
-            mainServidor.escribirLog("Nueva sesión creada: " + cliente.descripcionCorta());
+    ColaSalida getColaSalida() {
+        return colaSalida;
+    }
 
-            while (activa) {
+    CodecTramas getCodec() {
+        return codec;
+    }
 
-                String linea = entrada.readLine();
+    public int getProfundidadColaSalida() {
+        return colaSalida.tamano();
+    }
 
-                // Cliente cerró socket
-                if (linea == null) {
-                    detener();
-                    break;
-                }
+    public int getProfundidadMaximaColaSalida() {
+        return colaSalida.getProfundidadMaxima();
+    }
 
-                procesarLinea(linea);
-            }
+    public ClienteConectado getCliente() {
+        return cliente;
+    }
 
-        } catch (IOException e) {
+    public boolean isActiva() {
+        return activa.get();
+    }
 
-            if (activa) {
-                mainServidor.escribirLog("ERROR en sesión cliente: " + e.getMessage());
-            }
+    FormatoTrama getFormatoSalida() {
+        return formatoSalida;
+    }
 
-        } finally {
-            detener();
-        }
+    public boolean isPresenciaIncremental() {
+        return presenciaIncremental;
     }
 
-    private void procesarLinea(String linea) {
+    void activarPresenciaIncremental() {
+        this.presenciaIncremental = true;
+    }
 
-        if (linea == null) {
-            return;
-        }
+    /**
+     * El canal avisa de que un paquete medido ya está escrito en el socket.
+     */
+    void paqueteEscrito(PaqueteSalida paquete) {
+        mainServidor.getEntregaMensajes().registrarEscrito(paquete);
+    }
 
-        String texto = linea.trim();
-        if (texto.isEmpty()) {
-            return;
+    /**
+     * El canal informa de un error de E/S o de protocolo.
+     */
+    void notificarErrorCanal(Exception e) {
+
+        if (isActiva()) {
+            mainServidor.escribirLog("ERROR en sesión cliente: " + e.getMessage());
         }
+    }
 
-        EmpaquetadoDatos paquete = json.fromJson(texto, EmpaquetadoDatos.class);
+    /**
+     * Despacha un paquete recibido al comando correspondiente.
+     */
+    void procesarPaquete(EmpaquetadoDatos paquete) {
 
         if (paquete == null) {
             mainServidor.escribirLog("JSON inválido recibido de cliente.");
@@ -116,7 +157,7 @@ public class SesionCliente implements Runnable {
         switch (comando) {
 
             case LOGIN:
-                procesarLogin(paquete.getPayloadJson());
+                procesarLogin(paquete);
                 break;
 
             case LISTA_CONVERSACIONES:
@@ -124,11 +165,27 @@ public class SesionCliente implements Runnable {
                 break;
 
             case HISTORIAL_CONVERSACION:
-                procesarHistorialConversacion(paquete.getPayloadJson());
+                procesarHistorialConversacion(paquete);
+                break;
+
+            case HISTORIAL_PAGINA:
+                procesarHistorialPagina(paquete);
+                break;
+
+            case SINCRONIZAR:
+                procesarSincronizar(paquete);
                 break;
 
             case NUEVO_MENSAJE:
-                procesarNuevoMensaje(paquete.getPayloadJson());
+                procesarNuevoMensaje(paquete);
+                break;
+
+            case NEGOCIAR_FORMATO:
+                procesarNegociarFormato(paquete);
+                break;
+
+            case PRESENCIA_SNAPSHOT:
+                mainServidor.suscribirPresencia(this);
                 break;
 
             default:
@@ -145,9 +202,9 @@ public class SesionCliente implements Runnable {
     /**
      * LOGIN → se recibe alias, se guarda en Contacto y se notifica a TODOS.
      */
-    private void procesarLogin(String payloadJson) {
+    private void procesarLogin(EmpaquetadoDatos paquete) {
 
-        String alias = json.fromJson(payloadJson, String.class);
+        String alias = json.leerPayload(paquete, String.class);
 
         if (alias == null || alias.isBlank()) {
             alias = "";
@@ -160,27 +217,138 @@ public class SesionCliente implements Runnable {
         mainServidor.escribirLog("LOGIN → " + cliente.getContacto().descripcionCorta());
 
         // NECESARIO → reenvía alias actualizados a todos
-        mainServidor.enviarListaConectadosATodos();
+        mainServidor.registrarCambioAlias(cliente);
+
+        // Lo que le llegó mientras estaba desconectado, en un solo envío
+        mainServidor.getEntregaMensajes().entregarPendientes(cliente.getContacto());
     }
 
 
-    private void procesarHistorialConversacion(String payloadJson) {
+    /**
+     * HISTORIAL_CONVERSACION → la conversación completa. No se monta en
+     * memoria: se encola una {@link HistorialPorTrozos} que el canal va
+     * leyendo del repositorio y escribiendo por tramos.
+     */
+    private void procesarHistorialConversacion(EmpaquetadoDatos paquete) {
 
-        String idConversacion = json.fromJson(payloadJson, String.class);
+        String idConversacion = json.leerPayload(paquete, String.class);
 
         if (idConversacion == null || idConversacion.isBlank()) {
             mainServidor.escribirLog("ID de conversación inválido en HISTORIAL_CONVERSACION");
             return;
         }
 
-        Conversacion conversacion = repoConversacion.obtenerConversacion(idConversacion);
+        long total = repoConversacion.contarMensajes(idConversacion);
 
-        EmpaquetadoDatos respuesta = new EmpaquetadoDatos(
-                TipoComando.HISTORIAL_CONVERSACION,
-                json.toJson(conversacion)
-        );
+        repoConversacion.marcarLeida(cliente.getContacto().getIpRemota(), idConversacion);
 
-        enviar(respuesta);
+        if (!isActiva()) {
+            return;
+        }
+
+        HistorialPorTrozos historial = new HistorialPorTrozos(json, codec, repoConversacion,
+                idConversacion, total, formatoSalida != FormatoTrama.LINEA_JSON);
+
+        encolar(new PaqueteSalida(TipoComando.HISTORIAL_CONVERSACION, historial));
+    }
+
+
+    /**
+     * HISTORIAL_PAGINA → solo el trozo de historial que indica el cursor.
+     */
+    private void procesarHistorialPagina(EmpaquetadoDatos paquete) {
+
+        PeticionHistorial peticion = json.leerPayload(paquete, PeticionHistorial.class);
+
+        if (peticion == null || peticion.getIdConversacion() == null || peticion.getIdConversacion().isBlank()) {
+            mainServidor.escribirLog("ID de conversación inválido en HISTORIAL_PAGINA");
+            return;
+        }
+
+        enviarPagina(peticion);
+
+        // Abrir la conversación (última página) la marca como leída
+        if (peticion.getAntesDe() == null && peticion.getDespuesDe() == null) {
+            repoConversacion.marcarLeida(cliente.getContacto().getIpRemota(), peticion.getIdConversacion());
+        }
+    }
+
+    /**
+     * Envía una página de historial. Si el almacén la da ya serializada
+     * (registros copiados de disco) va al socket sin crear ningún Mensaje.
+     *
+     * @return nº de mensajes enviados
+     */
+    private int enviarPagina(PeticionHistorial peticion) {
+
+        PaginaCodificada codificada = repoConversacion.obtenerPaginaCodificada(peticion);
+
+        if (codificada != null) {
+            enviarPayloadJson(TipoComando.HISTORIAL_PAGINA, codificada.getJson());
+            return codificada.getNumeroMensajes();
+        }
+
+        PaginaHistorial pagina = repoConversacion.obtenerPagina(peticion);
+        enviar(json.empaquetar(TipoComando.HISTORIAL_PAGINA, pagina));
+
+        return pagina.getMensajes().size();
+    }
+
+
+    /**
+     * SINCRONIZAR → para cada conversación, solo los mensajes posteriores
+     * a la última posición que tiene el cliente, en páginas seguidas.
+     * Se cierra con SINCRONIZAR y el nº total de mensajes enviados.
+     */
+    private void procesarSincronizar(EmpaquetadoDatos paquete) {
+
+        List<PeticionHistorial> cursores = json.leerPayloadLista(paquete, PeticionHistorial.class);
+        long enviados = 0;
+
+        if (cursores != null) {
+
+            for (PeticionHistorial cursor : cursores) {
+
+                if (cursor == null || cursor.getDespuesDe() == null) {
+                    continue;
+                }
+
+                enviados += enviarPosteriores(cursor.getIdConversacion(), cursor.getDespuesDe());
+            }
+        }
+
+        enviar(json.empaquetar(TipoComando.SINCRONIZAR, enviados));
+    }
+
+    private long enviarPosteriores(String idConversacion, long despuesDe) {
+
+        long total = repoConversacion.contarMensajes(idConversacion);
+
+        if (total - (despuesDe + 1) > MAXIMO_SINCRONIZACION) {
+
+            // Demasiado atrás para ponerse al día: solo la última página,
+            // que el cliente usa para sustituir su historial (hay hueco)
+            return enviarPagina(PeticionHistorial.ultimos(idConversacion, 0));
+        }
+
+        long enviados = 0;
+        long cursor = despuesDe;
+
+        // Lo que llegue después se entrega en tiempo real
+        while (isActiva() && cursor < total - 1) {
+
+            int n = enviarPagina(new PeticionHistorial(
+                    idConversacion, null, cursor, RepositorioConversacion.PAGINA_MAXIMA));
+
+            if (n == 0) {
+                break;
+            }
+
+            enviados += n;
+            cursor += n;
+        }
+
+        return enviados;
     }
 
 
@@ -188,32 +356,85 @@ public class SesionCliente implements Runnable {
 
         List<ResumenConversacion> res = repoConversacion.obtenerResumenes(cliente);
 
-        EmpaquetadoDatos respuesta = new EmpaquetadoDatos(
+        EmpaquetadoDatos respuesta = json.empaquetar(
                 TipoComando.LISTA_CONVERSACIONES,
-                json.toJson(res)
+                res
         );
 
         enviar(respuesta);
     }
 
 
-    private void procesarNuevoMensaje(String payloadJson) {
+    /**
+     * NUEVO_MENSAJE → se persiste, se empuja al destinatario si está
+     * conectado ({@link EntregaMensajes}) y se confirma con ACK.
+     *
+     * Guardar es asíncrono (group commit): la entrega y el ACK se hacen
+     * desde el escritor en cuanto el mensaje está en disco, sin bloquear
+     * este hilo mientras tanto.
+     */
+    private void procesarNuevoMensaje(EmpaquetadoDatos paquete) {
+
+        long recibidoEn = System.nanoTime();
 
-        Mensaje m = json.fromJson(payloadJson, Mensaje.class);
+        Mensaje m = json.leerPayload(paquete, Mensaje.class);
 
         if (m == null) {
             mainServidor.escribirLog("Mensaje inválido recibido de cliente.");
             return;
         }
 
-        repoConversacion.guardarMensaje(m);
+        // Entrega y ACK cuando el lote que lo contiene ya está en disco
+        repoConversacion.guardarMensaje(m).whenComplete((guardado, error) -> {
 
-        EmpaquetadoDatos ack = new EmpaquetadoDatos(
-                TipoComando.ACK,
-                "\"ok\""
-        );
+            if (error != null) {
+
+                mainServidor.escribirLog("No se pudo guardar el mensaje de " + cliente.descripcionCorta() + ": " + error.getMessage());
+                enviar(json.empaquetar(TipoComando.ERROR, "No se pudo guardar el mensaje"));
+                return;
+            }
+
+            mainServidor.getEntregaMensajes().entregar(guardado, this, recibidoEn);
+
+            EmpaquetadoDatos ack = json.empaquetar(
+                    TipoComando.ACK,
+                    "ok"
+            );
 
-        enviar(ack);
+            enviar(ack);
+        });
+    }
+
+
+    /**
+     * NEGOCIAR_FORMATO → el cliente pide un formato de trama. Se responde
+     * en el formato actual y, a partir de ahí, se envía en el acordado.
+     * Si no se acepta, se responde LINEA_JSON y todo sigue igual.
+     *
+     * Quien pide BINARIO también sabe leer LINEA_JSON_DIRECTO, que es lo que
+     * se le da si las tramas binarias están desactivadas.
+     */
+    private void procesarNegociarFormato(EmpaquetadoDatos paquete) {
+
+        FormatoTrama pedido = json.leerPayload(paquete, FormatoTrama.class);
+        FormatoTrama acordado = FormatoTrama.LINEA_JSON;
+        ConfiguracionServidor configuracion = mainServidor.getConfiguracion();
+
+        boolean binario = pedido == FormatoTrama.BINARIO || pedido == FormatoTrama.BINARIO_COMPACTO;
+
+        if (binario && configuracion.isTramasBinarias()) {
+            acordado = (pedido == FormatoTrama.BINARIO_COMPACTO && configuracion.isTramasCompactas())
+                    ? FormatoTrama.BINARIO_COMPACTO
+                    : FormatoTrama.BINARIO;
+        } else if (binario || pedido == FormatoTrama.LINEA_JSON_DIRECTO) {
+            acordado = FormatoTrama.LINEA_JSON_DIRECTO;
+        }
+
+        enviar(json.empaquetar(TipoComando.NEGOCIAR_FORMATO, acordado));
+
+        formatoSalida = acordado;
+
+        mainServidor.escribirLog("Formato de trama " + acordado + " → " + cliente.descripcionCorta());
     }
 
 
@@ -221,13 +442,79 @@ public class SesionCliente implements Runnable {
      *                       ENVÍO
      * ========================================================== */
 
-    public void enviar(EmpaquetadoDatos paquete) {
+    /**
+     * Serializa el paquete y lo deja en la cola de salida; nunca escribe
+     * en el socket desde el hilo que llama. Si la cola está llena se aplica
+     * la {@link PoliticaColaLlena} configurada.
+     *
+     * @return true si el paquete ha quedado en la cola
+     */
+    public boolean enviar(EmpaquetadoDatos paquete) {
 
-        if (paquete == null) {
+        if (paquete == null || !isActiva()) {
+            return false;
+        }
+
+        return encolar(new PaqueteSalida(paquete.getComando(), codec.codificar(paquete, formatoSalida)));
+    }
+
+    /**
+     * Envía un payload que ya es JSON (UTF-8) sin volver a serializarlo.
+     */
+    public void enviarPayloadJson(TipoComando comando, byte[] payloadJson) {
+
+        if (payloadJson == null || !isActiva()) {
             return;
         }
 
-        salida.println(json.toJson(paquete));
+        encolar(new PaqueteSalida(comando, codec.codificarPayloadJson(comando, payloadJson, formatoSalida)));
+    }
+
+    /**
+     * Igual que {@link #enviar(EmpaquetadoDatos)} pero reutiliza la trama
+     * que ya se codificó para otras sesiones con el mismo formato.
+     *
+     * @return true si el paquete ha quedado en la cola
+     */
+    public boolean enviarDifusion(PaqueteDifusion difusion) {
+
+        if (difusion == null || !isActiva()) {
+            return false;
+        }
+
+        return encolar(difusion.codificadoPara(formatoSalida, codec));
+    }
+
+    /**
+     * @return true si el paquete ha quedado en la cola (COALESCIDO incluido:
+     *         lo que se descarta es otro paquete de presencia)
+     */
+    private boolean encolar(PaqueteSalida salida) {
+
+        switch (colaSalida.ofrecer(salida)) {
+
+            case ENCOLADO:
+                canal.avisarPendientes();
+                return true;
+
+            case COALESCIDO:
+                cliente.registrarPaqueteDescartado();
+                canal.avisarPendientes();
+                return true;
+
+            case DESCARTADO:
+                cliente.registrarPaqueteDescartado();
+                return false;
+
+            case RECHAZADO:
+                mainServidor.escribirLog("Cliente lento (cola de salida llena, "
+                        + colaSalida.getCapacidad() + " paquetes): " + cliente.descripcionCorta());
+                detener();
+                return false;
+
+            default:
+                return false;
+        }
     }
 
     public void enviarPaquete(EmpaquetadoDatos paquete) {
@@ -241,13 +528,10 @@ public class SesionCliente implements Runnable {
 
     public void detener() {
 
-        if (!activa) return;
-
-        activa = false;
+        if (!activa.compareAndSet(true, false)) return;
 
-        try {
-            socket.close();
-        } catch (IOException ignored) {}
+        colaSalida.cerrar();
+        canal.cerrar();
 
         mainServidor.registrarClienteDesconectado(cliente);
     }
@@ -0,0 +1,47 @@
+package psp.chat.server.net;
+
+import com.google.gson.reflect.TypeToken;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PeticionHistorial;
+import psp.chat.general.net.FormatoTrama;
+import psp.chat.general.net.TipoComando;
+import psp.chat.general.net.TiposPayload;
+
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Tipos de payload de los comandos que recibe el servidor.
+ */
+class TiposPayloadServidor implements TiposPayload {
+
+    private final Type listaPeticiones = TypeToken.getParameterized(List.class, PeticionHistorial.class).getType();
+
+    @Override
+    public Type tipoPayload(TipoComando comando) {
+
+        switch (comando) {
+
+            case LOGIN:
+            case LISTA_CONVERSACIONES:
+            case HISTORIAL_CONVERSACION:
+            case PRESENCIA_SNAPSHOT:
+                return String.class;
+
+            case NUEVO_MENSAJE:
+                return Mensaje.class;
+
+            case HISTORIAL_PAGINA:
+                return PeticionHistorial.class;
+
+            case SINCRONIZAR:
+                return listaPeticiones;
+
+            case NEGOCIAR_FORMATO:
+                return FormatoTrama.class;
+
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package psp.chat.server.net;
+
+/**
+ * Trama que no se codifica entera antes de encolarla: el canal pide el
+ * siguiente trozo cuando ha terminado de escribir el anterior, así que
+ * en memoria solo hay uno cada vez, sea cual sea el tamaño total.
+ *
+ * Tiene estado (por dónde va), de modo que solo puede estar en la cola
+ * de UNA sesión y la lee un único hilo: el escritor de su canal o, con
+ * NIO, el {@link TrozosAdelantados} que genera los trozos fuera del bucle.
+ */
+public interface TramaPorTrozos {
+
+    /**
+     * @return siguiente trozo (nunca vacío) o null si la trama ha terminado
+     */
+    byte[] siguienteTrozo();
+}
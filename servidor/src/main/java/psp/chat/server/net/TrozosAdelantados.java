@@ -0,0 +1,192 @@
+package psp.chat.server.net;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Trozos de un {@link PaqueteSalida} por trozos generados por adelantado
+ * en un hilo virtual, para que el bucle NIO no lea del almacén.
+ *
+ * El hilo genera como mucho {@link #TROZOS_LISTOS} trozos por delante de
+ * lo que el bucle ha escrito y espera a que haya hueco; el bucle solo
+ * recoge los que ya están listos y, si no hay ninguno, deja de escribir
+ * hasta que {@code alHaberTrozo} le avisa. La memoria sigue acotada a unos
+ * pocos trozos por sesión.
+ */
+class TrozosAdelantados {
+
+    /** Trozos generados que pueden esperar a ser escritos */
+    static final int TROZOS_LISTOS = 4;
+
+    private final PaqueteSalida paquete;
+    private final Runnable alHaberTrozo;
+
+    private final ArrayDeque<byte[]> listos;
+    private final ReentrantLock cerrojo;
+    private final Condition hayHueco;
+
+    private boolean terminada;
+    private boolean cancelada;
+    private boolean esperando;
+    private RuntimeException error;
+
+    /**
+     * @param alHaberTrozo se llama (desde el hilo generador) cuando el bucle
+     *                     esperaba y ya hay un trozo o la trama ha acabado
+     */
+    TrozosAdelantados(PaqueteSalida paquete, Runnable alHaberTrozo) {
+
+        this.paquete = paquete;
+        this.alHaberTrozo = alHaberTrozo;
+
+        this.listos = new ArrayDeque<>();
+        this.cerrojo = new ReentrantLock();
+        this.hayHueco = cerrojo.newCondition();
+    }
+
+    void arrancar(String nombre) {
+        Thread.ofVirtual().name(nombre).start(this::generar);
+    }
+
+    /**
+     * @return siguiente trozo ya generado, o null si todavía no hay
+     *         ninguno (o la trama ha terminado: ver {@link #isTerminada()})
+     * @throws RuntimeException el error con el que falló la generación
+     */
+    byte[] sondear() {
+
+        cerrojo.lock();
+        try {
+
+            byte[] trozo = listos.pollFirst();
+
+            if (trozo != null) {
+                hayHueco.signal();
+                return trozo;
+            }
+
+            if (error != null) {
+                throw error;
+            }
+
+            esperando = !terminada;
+            return null;
+
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * @return true si ya se han generado y recogido todos los trozos
+     */
+    boolean isTerminada() {
+
+        cerrojo.lock();
+        try {
+            return terminada && listos.isEmpty() && error == null;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Detiene el hilo generador (el canal se ha cerrado).
+     */
+    void cancelar() {
+
+        cerrojo.lock();
+        try {
+            cancelada = true;
+            listos.clear();
+            hayHueco.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void generar() {
+
+        try {
+
+            byte[] trozo = paquete.siguienteTrozo();
+
+            while (trozo != null) {
+
+                if (!dejar(trozo)) {
+                    return;
+                }
+
+                trozo = paquete.siguienteTrozo();
+            }
+
+            acabar(null);
+
+        } catch (RuntimeException e) {
+
+            acabar(e);
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+        }
+    }
+
+    /**
+     * @return false si se ha cancelado mientras esperaba hueco
+     */
+    private boolean dejar(byte[] trozo) throws InterruptedException {
+
+        boolean avisar;
+
+        cerrojo.lock();
+        try {
+
+            while (listos.size() >= TROZOS_LISTOS && !cancelada) {
+                hayHueco.await();
+            }
+
+            if (cancelada) {
+                return false;
+            }
+
+            listos.addLast(trozo);
+
+            avisar = esperando;
+            esperando = false;
+
+        } finally {
+            cerrojo.unlock();
+        }
+
+        if (avisar) {
+            alHaberTrozo.run();
+        }
+
+        return true;
+    }
+
+    private void acabar(RuntimeException e) {
+
+        boolean avisar;
+
+        cerrojo.lock();
+        try {
+
+            terminada = true;
+            error = e;
+
+            avisar = esperando;
+            esperando = false;
+
+        } finally {
+            cerrojo.unlock();
+        }
+
+        if (avisar) {
+            alHaberTrozo.run();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package psp.chat.server.persistencia;
+
+import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Motor de almacenamiento de conversaciones que hay detrás de
+ * {@link RepositorioConversacion}. Se elige con guasapp.almacen
+ * ({@link ModoAlmacen}).
+ *
+ * Reglas comunes:
+ *  - Los mensajes solo se añaden al final; la posición de cada uno es su
+ *    orden dentro de la conversación (0 = el más antiguo) y no cambia.
+ *  - Solo escribe el {@link EscritorMensajes}: varios hilos a la vez, pero
+ *    cada conversación siempre desde el mismo. Las lecturas pueden llegar
+ *    a la vez desde cualquier sesión.
+ *  - Lo añadido con {@link #anadirLote} no está garantizado en disco hasta
+ *    que vuelve {@link #forzar(Collection)}.
+ */
+public interface AlmacenConversaciones {
+
+    /**
+     * @return conversación con todos sus mensajes o null si no existe
+     */
+    Conversacion cargar(String id);
+
+    /**
+     * @return datos de la conversación sin mensajes o null si no existe
+     */
+    Conversacion cargarCabecera(String id);
+
+    /**
+     * @return nº de mensajes guardados (0 si no existe)
+     */
+    long contarMensajes(String id);
+
+    /**
+     * @return bytes que ocupan sus mensajes en disco (0 si no existe)
+     */
+    long tamanoMensajes(String id);
+
+    /**
+     * @return mensajes en las posiciones [desde, hasta) o null si no existe
+     */
+    PaginaHistorial cargarPagina(String id, long desde, long hasta);
+
+    /**
+     * Como {@link #cargarPagina} pero ya serializada, sin crear Mensajes.
+     *
+     * @return null si la conversación no existe o el motor no lo admite
+     */
+    default PaginaCodificada cargarPaginaCodificada(String id, long desde, long hasta) {
+        return null;
+    }
+
+    /**
+     * @return todas las conversaciones (solo para reconstrucciones)
+     */
+    List<Conversacion> cargarTodas();
+
+    /**
+     * Añade mensajes de UNA conversación asignándoles posiciones
+     * consecutivas. Si la conversación no existe se crea con la cabecera.
+     *
+     * @return posición del primer mensaje
+     */
+    long anadirLote(Conversacion cabecera, List<Mensaje> mensajes);
+
+    /**
+     * Lleva a disco (fsync) lo añadido hasta ahora a esas conversaciones.
+     * Cada carril del escritor fuerza solo lo suyo.
+     */
+    void forzar(Collection<String> ids);
+}
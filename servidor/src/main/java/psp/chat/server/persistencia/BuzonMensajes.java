@@ -0,0 +1,334 @@
+package psp.chat.server.persistencia;
+
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.net.CodecMensaje;
+import psp.chat.general.util.JsonUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buzón persistente de mensajes pendientes por contacto:
+ *   data/buzones/<idContacto>.buzon
+ *
+ * Cuando un mensaje llega para alguien sin ninguna sesión conectada se
+ * añade un registro al final de su buzón (solo append, sin reescribir
+ * nada): [longitud: int32 big-endian][mensaje en forma de CodecMensaje].
+ * Al hacer LOGIN el servidor lee el buzón y se lo entrega de una vez,
+ * sin tener que cargar las conversaciones completas. Lo leído solo se
+ * borra cuando la trama ya está en la cola de salida de alguna sesión
+ * ({@link #terminar(Pendientes, boolean)}); si no, sigue ahí para el
+ * siguiente LOGIN.
+ *
+ * Los buzones antiguos (<idContacto>.jsonl, una línea JSON por mensaje)
+ * se siguen leyendo y se entregan antes que los registros nuevos.
+ *
+ * El mensaje ya está guardado en su conversación, así que el buzón solo
+ * indica QUÉ falta por entregar: si se pierde el envío, el historial
+ * sigue teniéndolo.
+ *
+ * Cada contacto tiene su propio cerrojo: un registro añadido mientras se
+ * lee o se recorta el buzón no se pierde, y los buzones de contactos
+ * distintos no se esperan entre sí.
+ */
+public class BuzonMensajes {
+
+    private final Path carpeta;
+    private final JsonUtil json;
+
+    private final ConcurrentMap<String, ReentrantLock> cerrojos = new ConcurrentHashMap<>();
+
+    /** Contactos con una extracción sin terminar: no se vuelve a leer su buzón */
+    private final Set<String> enEntrega = ConcurrentHashMap.newKeySet();
+
+    public BuzonMensajes(JsonUtil json) {
+        this(Path.of("data/buzones"), json);
+    }
+
+    public BuzonMensajes(Path carpeta, JsonUtil json) {
+
+        this.carpeta = carpeta;
+        this.json = json;
+
+        try {
+            Files.createDirectories(carpeta);
+        } catch (IOException e) {
+            throw new RuntimeException("No se pudo preparar la carpeta de buzones", e);
+        }
+    }
+
+    /**
+     * Añade un mensaje al final del buzón del contacto.
+     */
+    public void anadir(String idContacto, Mensaje mensaje) {
+
+        if (!esIdValido(idContacto) || mensaje == null) {
+            return;
+        }
+
+        byte[] compacto = CodecMensaje.codificar(mensaje);
+        byte[] registro = new byte[4 + compacto.length];
+
+        registro[0] = (byte) (compacto.length >>> 24);
+        registro[1] = (byte) (compacto.length >>> 16);
+        registro[2] = (byte) (compacto.length >>> 8);
+        registro[3] = (byte) compacto.length;
+        System.arraycopy(compacto, 0, registro, 4, compacto.length);
+
+        ReentrantLock cerrojo = cerrojoDe(idContacto);
+        cerrojo.lock();
+
+        // Un solo write por registro: si el servidor cae, como mucho queda la cola a medias
+        try (OutputStream out = Files.newOutputStream(rutaDe(idContacto),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+
+            out.write(registro);
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error guardando en el buzón de " + idContacto, e);
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Lee todos los mensajes pendientes del contacto, en orden de llegada,
+     * sin borrarlos todavía: hay que llamar después a
+     * {@link #terminar(Pendientes, boolean)}. Mientras tanto otra extracción
+     * del mismo contacto devuelve vacío, para no entregar dos veces.
+     *
+     * @return pendientes (vacío si no tenía nada o ya se está entregando)
+     */
+    public Pendientes extraer(String idContacto) {
+
+        List<Mensaje> mensajes = new ArrayList<>();
+
+        if (!esIdValido(idContacto) || !enEntrega.add(idContacto)) {
+            return new Pendientes(null, mensajes, false, 0);
+        }
+
+        Path ruta = rutaDe(idContacto);
+        Path rutaAntigua = rutaAntiguaDe(idContacto);
+
+        boolean antiguoLeido = false;
+        long bytesLeidos = 0;
+
+        ReentrantLock cerrojo = cerrojoDe(idContacto);
+        cerrojo.lock();
+
+        try {
+
+            if (Files.exists(rutaAntigua)) {
+                leerAntiguo(rutaAntigua, mensajes);
+                antiguoLeido = true;
+            }
+
+            if (Files.exists(ruta)) {
+                byte[] datos = Files.readAllBytes(ruta);
+                leerRegistros(datos, mensajes);
+                bytesLeidos = datos.length;
+            }
+
+        } catch (IOException e) {
+            enEntrega.remove(idContacto);
+            throw new RuntimeException("Error leyendo el buzón de " + idContacto, e);
+        } finally {
+            cerrojo.unlock();
+        }
+
+        return new Pendientes(idContacto, mensajes, antiguoLeido, bytesLeidos);
+    }
+
+    /**
+     * Cierra una extracción. Si se ha entregado se borra del buzón lo que se
+     * leyó (lo que se haya añadido después se conserva); si no, se deja
+     * todo para la próxima vez.
+     *
+     * @param entregado true si la trama ha quedado en la cola de alguna sesión
+     * @return true si, tras borrar lo entregado, el buzón tiene mensajes nuevos
+     */
+    public boolean terminar(Pendientes pendientes, boolean entregado) {
+
+        if (pendientes == null || pendientes.idContacto == null) {
+            return false;
+        }
+
+        String idContacto = pendientes.idContacto;
+        Path ruta = rutaDe(idContacto);
+
+        ReentrantLock cerrojo = cerrojoDe(idContacto);
+        cerrojo.lock();
+
+        try {
+
+            if (!entregado) {
+                return false;
+            }
+
+            if (pendientes.antiguoLeido) {
+                Files.deleteIfExists(rutaAntiguaDe(idContacto));
+            }
+
+            if (pendientes.bytesLeidos > 0) {
+                quitarPrincipio(ruta, pendientes.bytesLeidos);
+            }
+
+            return Files.exists(ruta);
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error vaciando el buzón de " + idContacto, e);
+        } finally {
+            enEntrega.remove(idContacto);
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Quita los primeros {@code bytes} del buzón. Lo normal es que no se
+     * haya añadido nada desde la lectura y se borre entero; si no, se
+     * reescribe el resto y se sustituye de forma atómica.
+     */
+    private void quitarPrincipio(Path ruta, long bytes) throws IOException {
+
+        if (!Files.exists(ruta)) {
+            return;
+        }
+
+        if (Files.size(ruta) <= bytes) {
+            Files.delete(ruta);
+            return;
+        }
+
+        byte[] datos = Files.readAllBytes(ruta);
+        Path temporal = ruta.resolveSibling(ruta.getFileName() + ".tmp");
+
+        try (OutputStream out = Files.newOutputStream(temporal)) {
+            out.write(datos, (int) bytes, datos.length - (int) bytes);
+        }
+
+        Files.move(temporal, ruta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Lee los registros compactos. Un registro incompleto o dañado al final
+     * (caída del servidor a mitad de escritura) se ignora.
+     */
+    private void leerRegistros(byte[] datos, List<Mensaje> destino) {
+
+        int pos = 0;
+
+        while (pos + 4 <= datos.length) {
+
+            int longitud = ((datos[pos] & 0xFF) << 24)
+                    | ((datos[pos + 1] & 0xFF) << 16)
+                    | ((datos[pos + 2] & 0xFF) << 8)
+                    | (datos[pos + 3] & 0xFF);
+
+            if (longitud <= 0 || longitud > datos.length - pos - 4) {
+                return;
+            }
+
+            try {
+                destino.add(CodecMensaje.decodificar(datos, pos + 4, longitud));
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+
+            pos += 4 + longitud;
+        }
+    }
+
+    /**
+     * Lee un buzón en el formato anterior (una línea JSON por mensaje).
+     */
+    private void leerAntiguo(Path ruta, List<Mensaje> destino) throws IOException {
+
+        try (BufferedReader br = Files.newBufferedReader(ruta, StandardCharsets.UTF_8)) {
+
+            String linea;
+
+            while ((linea = br.readLine()) != null) {
+
+                if (linea.isBlank()) {
+                    continue;
+                }
+
+                try {
+                    destino.add(json.fromJson(linea, Mensaje.class));
+                } catch (RuntimeException e) {
+                    // Línea a medio escribir (caída del servidor): se ignora
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true si el contacto tiene algo pendiente (sin leerlo)
+     */
+    public boolean tienePendientes(String idContacto) {
+        return esIdValido(idContacto)
+                && (Files.exists(rutaDe(idContacto)) || Files.exists(rutaAntiguaDe(idContacto)));
+    }
+
+    private ReentrantLock cerrojoDe(String idContacto) {
+        return cerrojos.computeIfAbsent(idContacto, k -> new ReentrantLock());
+    }
+
+    private Path rutaDe(String idContacto) {
+        return carpeta.resolve(idContacto + ".buzon");
+    }
+
+    private Path rutaAntiguaDe(String idContacto) {
+        return carpeta.resolve(idContacto + ".jsonl");
+    }
+
+    /**
+     * El id se usa como nombre de fichero: nada de rutas.
+     */
+    private boolean esIdValido(String idContacto) {
+        return idContacto != null
+                && !idContacto.isBlank()
+                && idContacto.indexOf('/') < 0
+                && idContacto.indexOf('\\') < 0
+                && !idContacto.contains("..");
+    }
+
+    /**
+     * Mensajes leídos de un buzón y hasta dónde se leyó, para borrar
+     * exactamente eso al terminar la entrega.
+     */
+    public static final class Pendientes {
+
+        private final String idContacto;
+        private final List<Mensaje> mensajes;
+        private final boolean antiguoLeido;
+        private final long bytesLeidos;
+
+        private Pendientes(String idContacto, List<Mensaje> mensajes, boolean antiguoLeido, long bytesLeidos) {
+            this.idContacto = idContacto;
+            this.mensajes = mensajes;
+            this.antiguoLeido = antiguoLeido;
+            this.bytesLeidos = bytesLeidos;
+        }
+
+        public List<Mensaje> getMensajes() {
+            return mensajes;
+        }
+
+        public boolean isEmpty() {
+            return mensajes.isEmpty();
+        }
+    }
+}
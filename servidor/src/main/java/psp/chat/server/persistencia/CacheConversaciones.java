@@ -0,0 +1,429 @@
+package psp.chat.server.persistencia;
+
+import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Caché LRU de conversaciones completas, acotada por número de conversaciones
+ * y por peso (bytes estimados de sus mensajes en memoria).
+ *
+ * Lo que sale de la caché es siempre una copia (Conversacion nueva o página):
+ * el escritor puede seguir añadiendo mensajes a la entrada mientras una
+ * sesión serializa lo que se le ha dado.
+ *
+ * Escritura directa: el {@link EscritorMensajes} añade aquí cada lote ya
+ * guardado, solo si la conversación está en caché. Los mensajes se añaden
+ * por posición, de modo que un lote que ya venía en una carga reciente del
+ * disco no se duplica.
+ *
+ * Una carga desde disco solo entra en caché si, al terminar, el disco no
+ * tiene más mensajes que los leídos; si no, el escritor podría haber añadido
+ * algo entre medias que la entrada nunca vería.
+ *
+ * Un único ReentrantLock protege el mapa (LinkedHashMap en orden de acceso);
+ * dentro solo se copian referencias.
+ */
+public class CacheConversaciones {
+
+    /** Coste fijo estimado de un Mensaje (objeto, fecha, enum, cabeceras de String) */
+    private static final int BYTES_POR_MENSAJE = 160;
+
+    private static class Entrada {
+        private final Conversacion cabecera;
+        private final ArrayList<Mensaje> mensajes;
+        private long peso;
+
+        private Entrada(Conversacion cabecera, List<Mensaje> mensajes) {
+            this.cabecera = cabecera;
+            this.mensajes = new ArrayList<>(mensajes);
+        }
+    }
+
+    private final int maxConversaciones;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entrada> entradas;
+    private final ReentrantLock lock;
+    private long bytes;
+
+    /* Métricas */
+    private final LongAdder aciertos;
+    private final LongAdder fallos;
+    private final LongAdder expulsiones;
+    private final LongAdder rechazadas;
+
+    /**
+     * @param maxConversaciones conversaciones en caché como mucho
+     * @param maxBytes techo de memoria estimada para todos los mensajes
+     */
+    public CacheConversaciones(int maxConversaciones, long maxBytes) {
+
+        this.maxConversaciones = Math.max(0, maxConversaciones);
+        this.maxBytes = Math.max(0, maxBytes);
+
+        this.entradas = new LinkedHashMap<>(16, 0.75f, true);
+        this.lock = new ReentrantLock();
+
+        this.aciertos = new LongAdder();
+        this.fallos = new LongAdder();
+        this.expulsiones = new LongAdder();
+        this.rechazadas = new LongAdder();
+    }
+
+    /* ==========================================================
+     *                       LECTURA
+     * ========================================================== */
+
+    /**
+     * Consulta de entrada de cada petición: cuenta acierto o fallo.
+     * Lo demás (obtener, obtenerPagina, contar) no cuenta, porque una
+     * misma petición puede consultar varias veces.
+     */
+    public boolean contiene(String id) {
+
+        lock.lock();
+
+        try {
+            boolean esta = entradas.get(id) != null;
+
+            if (esta) {
+                aciertos.increment();
+            } else {
+                fallos.increment();
+            }
+
+            return esta;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return nº de mensajes en caché o -1 si no está
+     */
+    public long contar(String id) {
+
+        lock.lock();
+
+        try {
+            Entrada e = entradas.get(id);
+            return (e == null) ? -1 : e.mensajes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return copia de la conversación completa o null si no está en caché
+     */
+    public Conversacion obtener(String id) {
+
+        lock.lock();
+
+        try {
+            Entrada e = entradas.get(id);
+
+            if (e == null) {
+                return null;
+            }
+
+            Conversacion copia = copiarCabecera(e.cabecera);
+            copia.setMensajes(e.mensajes);
+
+            return copia;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return página [desde, hasta) o null si la conversación no está en caché
+     */
+    public PaginaHistorial obtenerPagina(String id, long desde, long hasta) {
+
+        lock.lock();
+
+        try {
+            Entrada e = entradas.get(id);
+
+            if (e == null) {
+                return null;
+            }
+
+            int total = e.mensajes.size();
+            int inicio = (int) Math.min(Math.max(0, desde), total);
+            int fin = (int) Math.min(Math.max(inicio, hasta), total);
+
+            return new PaginaHistorial(id, e.cabecera.getIpRemota(), e.cabecera.getAliasVisible(),
+                    inicio, total, new ArrayList<>(e.mensajes.subList(inicio, fin)));
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cabecera sin contar acierto ni fallo (la usa el escritor).
+     *
+     * @return copia de la cabecera o null si no está en caché
+     */
+    public Conversacion obtenerCabecera(String id) {
+
+        lock.lock();
+
+        try {
+            Entrada e = entradas.get(id);
+            return (e == null) ? null : copiarCabecera(e.cabecera);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true si una conversación de ese tamaño en disco tiene sitio
+     *         (como mucho 1/8 del techo, para no vaciar la caché por una sola)
+     */
+    public boolean cabe(long bytesEnDisco) {
+        return maxConversaciones > 0 && bytesEnDisco * 2 <= maxBytes / 8;
+    }
+
+    /**
+     * @return true si además cabe sin expulsar a nadie
+     */
+    public boolean cabeSinExpulsar(long bytesEnDisco) {
+
+        if (!cabe(bytesEnDisco)) {
+            return false;
+        }
+
+        lock.lock();
+
+        try {
+            return entradas.size() < maxConversaciones && bytes + bytesEnDisco * 2 <= maxBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* ==========================================================
+     *                       ESCRITURA
+     * ========================================================== */
+
+    /**
+     * Guarda una conversación recién cargada de disco.
+     *
+     * @param totalEnDisco nº de mensajes en disco, consultado con el cerrojo
+     *                     cogido; si no coincide con lo cargado, la carga ya
+     *                     está vieja y no se guarda
+     */
+    public void poner(Conversacion c, LongSupplier totalEnDisco) {
+
+        if (c == null || c.getIdConversacion() == null || maxConversaciones == 0) {
+            return;
+        }
+
+        Entrada nueva = new Entrada(copiarCabecera(c), c.getMensajes());
+        nueva.peso = estimar(nueva.mensajes);
+
+        if (nueva.peso > maxBytes / 8) {
+            rechazadas.increment();
+            return;
+        }
+
+        lock.lock();
+
+        try {
+            if (nueva.mensajes.size() != totalEnDisco.getAsLong()) {
+                rechazadas.increment();
+                return;
+            }
+
+            Entrada anterior = entradas.put(c.getIdConversacion(), nueva);
+
+            if (anterior != null) {
+                bytes -= anterior.peso;
+            }
+
+            bytes += nueva.peso;
+            expulsar();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Escritura directa: añade mensajes ya guardados si la conversación
+     * está en caché (si no, no hace nada). Se ignoran los que ya tenga.
+     */
+    public void anadir(String id, List<Mensaje> mensajes) {
+
+        lock.lock();
+
+        try {
+            Entrada e = entradas.get(id);
+
+            if (e == null) {
+                return;
+            }
+
+            for (Mensaje m : mensajes) {
+
+                if (m.getPosicion() == e.mensajes.size()) {
+                    e.mensajes.add(m);
+                    e.peso += estimar(m);
+                    bytes += estimar(m);
+                }
+            }
+
+            if (e.peso > maxBytes / 8) {
+                quitar(id);
+            } else {
+                expulsar();
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saca una conversación de la caché; la siguiente lectura va al disco.
+     */
+    public void descartar(String id) {
+
+        lock.lock();
+
+        try {
+            quitar(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* ==========================================================
+     *                       INTERNOS
+     * ========================================================== */
+
+    /**
+     * Expulsa las menos usadas hasta cumplir los dos límites.
+     */
+    private void expulsar() {
+
+        Iterator<Map.Entry<String, Entrada>> it = entradas.entrySet().iterator();
+
+        while ((entradas.size() > maxConversaciones || bytes > maxBytes) && it.hasNext()) {
+
+            Entrada e = it.next().getValue();
+            it.remove();
+
+            bytes -= e.peso;
+            expulsiones.increment();
+        }
+    }
+
+    private void quitar(String id) {
+
+        Entrada e = entradas.remove(id);
+
+        if (e != null) {
+            bytes -= e.peso;
+            expulsiones.increment();
+        }
+    }
+
+    private long estimar(List<Mensaje> mensajes) {
+
+        long total = 0;
+
+        for (Mensaje m : mensajes) {
+            total += estimar(m);
+        }
+
+        return total;
+    }
+
+    /**
+     * Peso aproximado en memoria: coste fijo + 2 bytes por carácter
+     * (peor caso de String sin compactar).
+     */
+    private long estimar(Mensaje m) {
+        return BYTES_POR_MENSAJE + 2L * (longitud(m.getContenido()) + longitud(m.getRemitente())
+                + longitud(m.getDestinatario()) + longitud(m.getIdConversacion()));
+    }
+
+    private int longitud(String s) {
+        return (s == null) ? 0 : s.length();
+    }
+
+    private Conversacion copiarCabecera(Conversacion c) {
+        return new Conversacion(c.getIdConversacion(), c.getIpRemota(), c.getAliasVisible());
+    }
+
+    /* ==========================================================
+     *                       MÉTRICAS
+     * ========================================================== */
+
+    public long getAciertos() {
+        return aciertos.sum();
+    }
+
+    public long getFallos() {
+        return fallos.sum();
+    }
+
+    public long getExpulsiones() {
+        return expulsiones.sum();
+    }
+
+    public long getBytes() {
+
+        lock.lock();
+
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        int n;
+        long b;
+
+        lock.lock();
+
+        try {
+            n = entradas.size();
+            b = bytes;
+        } finally {
+            lock.unlock();
+        }
+
+        long a = aciertos.sum();
+        long f = fallos.sum();
+
+        return "CacheConversaciones{conversaciones=" + n + "/" + maxConversaciones +
+                ", memoria=" + (b / 1024) + "/" + (maxBytes / 1024) + "KB" +
+                ", aciertos=" + a +
+                ", fallos=" + f +
+                ", tasa=" + (a + f == 0 ? 0 : a * 100 / (a + f)) + "%" +
+                ", expulsiones=" + expulsiones.sum() +
+                ", rechazadas=" + rechazadas.sum() +
+                "}";
+    }
+}
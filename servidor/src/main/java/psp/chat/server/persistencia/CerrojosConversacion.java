@@ -0,0 +1,77 @@
+package psp.chat.server.persistencia;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cerrojos por conversación repartidos en un número fijo de franjas
+ * (lock striping). Dos conversaciones solo comparten cerrojo si caen en la
+ * misma franja, y la memoria no crece con el número de conversaciones,
+ * como pasaba con un cerrojo por id en un mapa.
+ *
+ * Cuenta cuántas veces hubo que esperar a que otro hilo soltase la franja:
+ * es la contención real entre escrituras y migraciones.
+ */
+public class CerrojosConversacion {
+
+    private final ReentrantLock[] franjas;
+    private final int mascara;
+
+    /* Métricas */
+    private final LongAdder adquisiciones;
+    private final LongAdder esperas;
+
+    /**
+     * @param franjas nº mínimo de franjas (se redondea a potencia de dos)
+     */
+    public CerrojosConversacion(int franjas) {
+
+        int n = Integer.highestOneBit(Math.max(1, franjas - 1)) << 1;
+
+        this.franjas = new ReentrantLock[n];
+        this.mascara = n - 1;
+
+        for (int i = 0; i < n; i++) {
+            this.franjas[i] = new ReentrantLock();
+        }
+
+        this.adquisiciones = new LongAdder();
+        this.esperas = new LongAdder();
+    }
+
+    /**
+     * Coge el cerrojo de la conversación. Se suelta con unlock() en un finally.
+     */
+    public ReentrantLock bloquear(String id) {
+
+        ReentrantLock cerrojo = franjas[franja(id)];
+        adquisiciones.increment();
+
+        if (!cerrojo.tryLock()) {
+            esperas.increment();
+            cerrojo.lock();
+        }
+
+        return cerrojo;
+    }
+
+    private int franja(String id) {
+
+        int h = (id == null) ? 0 : id.hashCode();
+
+        return (h ^ (h >>> 16)) & mascara;
+    }
+
+    public long getAdquisiciones() {
+        return adquisiciones.sum();
+    }
+
+    public long getEsperas() {
+        return esperas.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "franjas=" + franjas.length + ", esperas=" + esperas.sum() + "/" + adquisiciones.sum();
+    }
+}
@@ -0,0 +1,555 @@
+package psp.chat.server.persistencia;
+
+import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Escritor de mensajes con confirmación agrupada (group commit).
+ *
+ * Las sesiones no escriben en disco: {@link #guardar(Mensaje)} encola el
+ * mensaje y devuelve un CompletableFuture. Cada carril (un hilo con su cola)
+ * recoge lo que haya en su cola según la {@link PoliticaSincronizacion}, lo
+ * agrupa por conversación, lo añade al {@link AlmacenConversaciones}, lo
+ * fuerza a disco una vez por lote y solo entonces completa los futuros. Así
+ * cien remitentes concurrentes comparten un fsync en lugar de pagar cien.
+ *
+ * Carriles: cada conversación va siempre al mismo (por hash de su id), así
+ * que sus mensajes se escriben en orden y nunca a la vez desde dos hilos,
+ * sin cerrojo alguno; conversaciones de carriles distintos se escriben y
+ * fuerzan en paralelo. La contención se mide como la espera en cola: lo
+ * que tarda un mensaje desde que se encola hasta que su carril lo escribe.
+ *
+ * El futuro se completa con el propio mensaje, ya con su posición; si la
+ * escritura falla se completa con la excepción y el mensaje NO está guardado.
+ *
+ * Los futuros se completan en el hilo del carril: quien encadene trabajo
+ * con whenComplete debe limitarse a encolar (ACK, entrega).
+ *
+ * Solo se acepta un mensaje con los carriles en marcha: antes de
+ * {@link #iniciar()} o tras {@link #detener()} el futuro falla con
+ * IllegalStateException y no se escribe nada. Comprobar el estado y
+ * encolar van bajo el mismo cerrojo, así que detener() no vacía las colas
+ * hasta que ya no puede entrar ningún mensaje más.
+ */
+public class EscritorMensajes {
+
+    /** Tope de mensajes por lote, pase lo que pase en la cola */
+    private static final int LOTE_MAXIMO = 4096;
+
+    private static class Pendiente {
+        private final Mensaje mensaje;
+        private final CompletableFuture<Mensaje> resultado;
+        private final long encolado;
+
+        private Pendiente(Mensaje mensaje) {
+            this.mensaje = mensaje;
+            this.resultado = new CompletableFuture<>();
+            this.encolado = System.nanoTime();
+        }
+    }
+
+    /** Marca de fin en la cola: el carril vacía lo que quede y termina */
+    private static final Pendiente FIN = new Pendiente(null);
+
+    /**
+     * Un hilo escritor con su cola, para las conversaciones que le tocan.
+     */
+    private class Carril {
+
+        private final int numero;
+        private final LinkedBlockingQueue<Pendiente> cola;
+        private volatile Thread hilo;
+
+        private Carril(int numero) {
+            this.numero = numero;
+            this.cola = new LinkedBlockingQueue<>();
+        }
+
+        private void iniciar() {
+
+            Thread nuevo = new Thread(this::bucle, "EscritorMensajes-" + numero);
+            nuevo.setDaemon(true);
+
+            hilo = nuevo;
+            nuevo.start();
+        }
+
+        private void pedirFin() {
+
+            if (hilo != null) {
+                cola.add(FIN);
+            }
+        }
+
+        /**
+         * Espera a que el hilo termine. Si salió antes de llegar a la marca
+         * de fin (interrumpido), escribe aquí lo que quedase: ya no entra
+         * nada y el carril ya no escribe, así que sigue habiendo un solo
+         * escritor por conversación.
+         */
+        private void esperarFin() {
+
+            Thread actual = hilo;
+            hilo = null;
+
+            if (actual == null) {
+                return;
+            }
+
+            try {
+                actual.join();
+            } catch (InterruptedException e) {
+                // El carril sigue vivo y vaciará su cola hasta la marca
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            List<Pendiente> restantes = new ArrayList<>();
+            cola.drainTo(restantes);
+            restantes.remove(FIN);
+
+            if (!restantes.isEmpty()) {
+                procesarLote(restantes);
+            }
+        }
+
+        private void bucle() {
+
+            List<Pendiente> lote = new ArrayList<>();
+            boolean seguir = true;
+
+            while (seguir) {
+
+                try {
+                    Pendiente primero = cola.take();
+
+                    if (primero == FIN) {
+                        break;
+                    }
+
+                    lote.add(primero);
+                    seguir = reunir(cola, lote);
+
+                } catch (InterruptedException e) {
+                    seguir = false;
+                }
+
+                if (!lote.isEmpty()) {
+                    procesarLote(lote);
+                    lote.clear();
+                }
+            }
+        }
+    }
+
+    private final AlmacenConversaciones almacen;
+    private final IndiceResumenes indice;
+    private final CacheConversaciones cache;
+
+    private final PoliticaSincronizacion politica;
+    private final long intervaloMs;
+    private final int mensajesPorLote;
+
+    private final Carril[] carriles;
+
+    /**
+     * Lectura: encolar un mensaje. Escritura: arrancar o parar los carriles.
+     * Así ningún mensaje se encola en un carril que ya se ha vaciado.
+     */
+    private final ReentrantReadWriteLock cerrojoEstado;
+
+    /* Protegido por cerrojoEstado */
+    private boolean enMarcha;
+
+    /* Métricas */
+    private final LongAdder lotes;
+    private final LongAdder mensajes;
+    private final LongAdder fsyncs;
+    private final LongAdder fallosDerivados;
+    private final LongAdder nanosEscritura;
+    private final AtomicLong maxLote;
+    private final LongAdder nanosEspera;
+    private final AtomicLong maxEspera;
+
+    /**
+     * @param carriles nº de hilos escritores (conversaciones repartidas por hash)
+     */
+    public EscritorMensajes(AlmacenConversaciones almacen, IndiceResumenes indice, CacheConversaciones cache,
+                            PoliticaSincronizacion politica, long intervaloMs, int mensajesPorLote, int carriles) {
+
+        this.almacen = almacen;
+        this.indice = indice;
+        this.cache = cache;
+        this.politica = (politica != null) ? politica : PoliticaSincronizacion.SIEMPRE;
+        this.intervaloMs = Math.max(1, intervaloMs);
+        this.mensajesPorLote = Math.max(1, Math.min(mensajesPorLote, LOTE_MAXIMO));
+
+        this.carriles = new Carril[Math.max(1, carriles)];
+
+        for (int i = 0; i < this.carriles.length; i++) {
+            this.carriles[i] = new Carril(i);
+        }
+
+        this.cerrojoEstado = new ReentrantReadWriteLock();
+
+        this.lotes = new LongAdder();
+        this.mensajes = new LongAdder();
+        this.fsyncs = new LongAdder();
+        this.fallosDerivados = new LongAdder();
+        this.nanosEscritura = new LongAdder();
+        this.maxLote = new AtomicLong();
+        this.nanosEspera = new LongAdder();
+        this.maxEspera = new AtomicLong();
+    }
+
+    /* ==========================================================
+     *                      CICLO DE VIDA
+     * ========================================================== */
+
+    public void iniciar() {
+
+        cerrojoEstado.writeLock().lock();
+
+        try {
+            if (enMarcha) {
+                return;
+            }
+
+            for (Carril c : carriles) {
+                c.iniciar();
+            }
+
+            enMarcha = true;
+
+        } finally {
+            cerrojoEstado.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deja de aceptar mensajes, escribe lo que quede en cola y para los carriles.
+     */
+    public void detener() {
+
+        cerrojoEstado.writeLock().lock();
+
+        try {
+            if (!enMarcha) {
+                return;
+            }
+
+            enMarcha = false;
+
+        } finally {
+            cerrojoEstado.writeLock().unlock();
+        }
+
+        // Ya no entra nada: la marca de fin queda detrás del último mensaje
+        for (Carril c : carriles) {
+            c.pedirFin();
+        }
+
+        for (Carril c : carriles) {
+            c.esperarFin();
+        }
+    }
+
+    /* ==========================================================
+     *                       ESCRITURA
+     * ========================================================== */
+
+    /**
+     * Encola un mensaje para guardarlo.
+     *
+     * @return futuro que se completa cuando el mensaje está en disco, o que
+     *         falla con IllegalStateException si el escritor no está en marcha
+     */
+    public CompletableFuture<Mensaje> guardar(Mensaje m) {
+
+        Pendiente p = new Pendiente(m);
+
+        cerrojoEstado.readLock().lock();
+
+        try {
+            if (!enMarcha) {
+                p.resultado.completeExceptionally(
+                        new IllegalStateException("El escritor de mensajes está detenido"));
+            } else {
+                carrilDe(m.getIdConversacion()).cola.add(p);
+            }
+
+        } finally {
+            cerrojoEstado.readLock().unlock();
+        }
+
+        return p.resultado;
+    }
+
+    private Carril carrilDe(String idConversacion) {
+
+        int h = idConversacion.hashCode();
+
+        return carriles[Math.floorMod(h ^ (h >>> 16), carriles.length)];
+    }
+
+    /**
+     * Completa el lote según la política.
+     *
+     * @return false si se ha encontrado la marca de fin
+     */
+    private boolean reunir(LinkedBlockingQueue<Pendiente> cola, List<Pendiente> lote) throws InterruptedException {
+
+        if (politica == PoliticaSincronizacion.SIEMPRE) {
+
+            cola.drainTo(lote, LOTE_MAXIMO - lote.size());
+            return !lote.remove(FIN);
+        }
+
+        int tope = (politica == PoliticaSincronizacion.CADA_N_MENSAJES) ? mensajesPorLote : LOTE_MAXIMO;
+        long plazo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervaloMs);
+
+        while (lote.size() < tope) {
+
+            long restante = plazo - System.nanoTime();
+
+            if (restante <= 0) {
+                break;
+            }
+
+            Pendiente p = cola.poll(restante, TimeUnit.NANOSECONDS);
+
+            if (p == null) {
+                break;
+            }
+
+            if (p == FIN) {
+                return false;
+            }
+
+            lote.add(p);
+        }
+
+        return true;
+    }
+
+    /**
+     * {@link #escribirLote} sin dejar escapar nada hacia el carril: lo que
+     * no se haya completado falla y el carril sigue con el siguiente lote.
+     */
+    private void procesarLote(List<Pendiente> lote) {
+
+        try {
+            escribirLote(lote);
+        } catch (RuntimeException e) {
+            fallar(lote, e);
+        }
+    }
+
+    /**
+     * Añade cada conversación del lote al almacén, lo fuerza a disco una
+     * vez, y solo entonces actualiza índice de resúmenes y caché, fuerza el
+     * diario del índice y completa los futuros.
+     *
+     * Índice y caché son datos derivados: si fallan, los mensajes ya están
+     * en disco y se confirman igual (un ERROR haría que el cliente lo
+     * reenviase y quedaría duplicado). La conversación sale de la caché, el
+     * diario del índice se descarta para reconstruirlo al arrancar y el
+     * fallo queda en {@link #getFallosDerivados()}.
+     */
+    private void escribirLote(List<Pendiente> lote) {
+
+        long inicio = System.nanoTime();
+
+        Map<String, List<Pendiente>> porConversacion = new LinkedHashMap<>();
+
+        for (Pendiente p : lote) {
+            porConversacion.computeIfAbsent(p.mensaje.getIdConversacion(), k -> new ArrayList<>()).add(p);
+
+            long espera = inicio - p.encolado;
+            nanosEspera.add(espera);
+            maxEspera.accumulateAndGet(espera, Math::max);
+        }
+
+        Map<Conversacion, List<Pendiente>> escritos = new LinkedHashMap<>();
+
+        for (Map.Entry<String, List<Pendiente>> grupo : porConversacion.entrySet()) {
+
+            List<Pendiente> pendientes = grupo.getValue();
+
+            try {
+
+                Conversacion cabecera = cache.obtenerCabecera(grupo.getKey());
+
+                if (cabecera == null) {
+                    cabecera = almacen.cargarCabecera(grupo.getKey());
+                }
+
+                if (cabecera == null) {
+                    cabecera = new Conversacion(grupo.getKey(), "", "");
+                }
+
+                almacen.anadirLote(cabecera, mensajesDe(pendientes));
+                escritos.put(cabecera, pendientes);
+
+            } catch (RuntimeException e) {
+                fallar(pendientes, e);
+            }
+        }
+
+        try {
+            almacen.forzar(idsDe(escritos.keySet()));
+            fsyncs.increment();
+        } catch (RuntimeException e) {
+            escritos.values().forEach(pendientes -> fallar(pendientes, e));
+            escritos.clear();
+        }
+
+        for (Map.Entry<Conversacion, List<Pendiente>> escrito : escritos.entrySet()) {
+
+            String id = escrito.getKey().getIdConversacion();
+            List<Mensaje> guardados = mensajesDe(escrito.getValue());
+
+            try {
+                indice.registrarMensajes(escrito.getKey(), guardados);
+            } catch (RuntimeException e) {
+                fallosDerivados.increment();
+                indice.descartarDiario();
+            }
+
+            try {
+                cache.anadir(id, guardados);
+            } catch (RuntimeException e) {
+                // Con un hueco en las posiciones la caché ya no sirve
+                fallosDerivados.increment();
+                cache.descartar(id);
+            }
+        }
+
+        // El diario del índice también, antes de confirmar: si no, tras una
+        // caída faltarían en LISTA_CONVERSACIONES mensajes ya confirmados
+        if (!escritos.isEmpty()) {
+            try {
+                indice.forzar();
+            } catch (RuntimeException e) {
+                fallosDerivados.increment();
+                indice.descartarDiario();
+            }
+        }
+
+        lotes.increment();
+        mensajes.add(lote.size());
+        maxLote.accumulateAndGet(lote.size(), Math::max);
+        nanosEscritura.add(System.nanoTime() - inicio);
+
+        for (List<Pendiente> pendientes : escritos.values()) {
+            for (Pendiente p : pendientes) {
+                p.resultado.complete(p.mensaje);
+            }
+        }
+    }
+
+    private List<Mensaje> mensajesDe(List<Pendiente> pendientes) {
+
+        List<Mensaje> lista = new ArrayList<>(pendientes.size());
+
+        for (Pendiente p : pendientes) {
+            lista.add(p.mensaje);
+        }
+
+        return lista;
+    }
+
+    private List<String> idsDe(Collection<Conversacion> conversaciones) {
+
+        List<String> ids = new ArrayList<>(conversaciones.size());
+
+        for (Conversacion c : conversaciones) {
+            ids.add(c.getIdConversacion());
+        }
+
+        return ids;
+    }
+
+    private void fallar(List<Pendiente> pendientes, RuntimeException e) {
+
+        for (Pendiente p : pendientes) {
+            p.resultado.completeExceptionally(e);
+        }
+    }
+
+    /* ==========================================================
+     *                       MÉTRICAS
+     * ========================================================== */
+
+    public PoliticaSincronizacion getPolitica() {
+        return politica;
+    }
+
+    public long getLotes() {
+        return lotes.sum();
+    }
+
+    public long getMensajes() {
+        return mensajes.sum();
+    }
+
+    public long getFsyncs() {
+        return fsyncs.sum();
+    }
+
+    /**
+     * @return fallos del índice de resúmenes o de la caché después de
+     *         guardar un lote (sus mensajes se confirmaron igual)
+     */
+    public long getFallosDerivados() {
+        return fallosDerivados.sum();
+    }
+
+    public int getCarriles() {
+        return carriles.length;
+    }
+
+    /**
+     * @return espera media en cola por mensaje, en microsegundos
+     */
+    public long getEsperaMediaMicros() {
+        long n = mensajes.sum();
+        return n == 0 ? 0 : nanosEspera.sum() / n / 1000;
+    }
+
+    public double getMediaPorLote() {
+        long n = lotes.sum();
+        return n == 0 ? 0 : (double) mensajes.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+
+        long n = lotes.sum();
+
+        return "EscritorMensajes{politica=" + politica +
+                ", carriles=" + carriles.length +
+                ", mensajes=" + mensajes.sum() +
+                ", lotes=" + n +
+                ", fsyncs=" + fsyncs.sum() +
+                ", fallosDerivados=" + fallosDerivados.sum() +
+                ", mediaLote=" + String.format("%.1f", getMediaPorLote()) +
+                ", maxLote=" + maxLote.get() +
+                ", escrituraMedia=" + (n == 0 ? 0 : nanosEscritura.sum() / n / 1000) + "us" +
+                ", esperaMedia=" + getEsperaMediaMicros() + "us" +
+                ", esperaMax=" + (maxEspera.get() / 1000) + "us" +
+                "}";
+    }
+}
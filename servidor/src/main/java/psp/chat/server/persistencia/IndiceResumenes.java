@@ -0,0 +1,484 @@
+package psp.chat.server.persistencia;
+
+import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.ResumenConversacion;
+import psp.chat.general.util.JsonUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Índice persistente de resúmenes de conversación por participante:
+ *   participante → (idConversacion → último mensaje, fecha, no leídos)
+ *
+ * Participantes de un mensaje = su remitente y su destinatario, los mismos
+ * valores con los que se buscaba antes recorriendo todas las conversaciones.
+ * Así LISTA_CONVERSACIONES es una consulta al índice y cuesta lo que tenga
+ * ese participante, no lo que haya en disco.
+ *
+ * En disco es un diario (data/indice/resumenes.jsonl): cada cambio añade una
+ * línea con el resumen nuevo de un participante y, al cargar, gana la última
+ * línea de cada par. Al arrancar se compacta (una línea por par). Si el
+ * diario no existe se reconstruye una vez desde las conversaciones.
+ *
+ * {@link EscritorMensajes} llama a {@link #forzar()} en el mismo lote que
+ * el fsync de los mensajes y antes de confirmarlos: un mensaje confirmado
+ * nunca falta en el índice tras una caída, aunque el diario ya existiera
+ * y no se reconstruya.
+ *
+ * El índice se deriva de las conversaciones: si el diario no se puede
+ * escribir o forzar, el escritor confirma los mensajes igual y llama a
+ * {@link #descartarDiario()}. El índice en memoria sigue al día, el diario
+ * se borra y en el siguiente arranque se reconstruye desde el almacén.
+ *
+ * Los resúmenes guardados no se modifican nunca: cada cambio crea uno nuevo,
+ * de modo que las listas devueltas se pueden serializar sin copiar.
+ */
+public class IndiceResumenes {
+
+    /**
+     * Línea del diario.
+     */
+    private static class Entrada {
+
+        private String participante;
+        private ResumenConversacion resumen;
+
+        Entrada(String participante, ResumenConversacion resumen) {
+            this.participante = participante;
+            this.resumen = resumen;
+        }
+    }
+
+    private final Path archivo;
+    private final JsonUtil json;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, ResumenConversacion>> porParticipante;
+
+    /**
+     * Aplica cada cambio en memoria y lo anota en el diario en el mismo
+     * orden, para que al recargar gane el último. Las consultas no lo cogen.
+     */
+    private final ReentrantLock lockDiario;
+
+    private final boolean existia;
+
+    /* Protegidos por lockDiario */
+    private FileChannel diario;
+    private boolean sinForzar;
+    private boolean descartado;
+
+    public IndiceResumenes(JsonUtil json) {
+        this(Path.of("data/indice/resumenes.jsonl"), json);
+    }
+
+    public IndiceResumenes(Path archivo, JsonUtil json) {
+
+        this.archivo = archivo;
+        this.json = json;
+        this.porParticipante = new ConcurrentHashMap<>();
+        this.lockDiario = new ReentrantLock();
+        this.existia = Files.exists(archivo);
+
+        try {
+            Files.createDirectories(archivo.getParent());
+        } catch (IOException e) {
+            throw new RuntimeException("No se pudo preparar la carpeta del índice", e);
+        }
+
+        if (existia) {
+            cargar();
+            compactar();
+        }
+    }
+
+    /**
+     * @return true si el diario no existía y hay que llamar a {@link #reconstruir(List)}
+     */
+    public boolean necesitaReconstruir() {
+        return !existia;
+    }
+
+    /**
+     * Crea el índice desde cero a partir de las conversaciones guardadas
+     * (migración desde la versión sin índice).
+     */
+    public void reconstruir(List<Conversacion> todas) {
+
+        porParticipante.clear();
+
+        for (Conversacion conv : todas) {
+
+            if (conv == null || conv.getMensajes() == null) {
+                continue;
+            }
+
+            for (Mensaje m : conv.getMensajes()) {
+                aplicarMensaje(conv, m);
+            }
+        }
+
+        compactar();
+    }
+
+    /**
+     * Actualiza los resúmenes de los participantes de un mensaje recién guardado.
+     *
+     * @param conv conversación a la que pertenece (para ipRemota / aliasVisible)
+     */
+    public void registrarMensaje(Conversacion conv, Mensaje m) {
+
+        // Mismo orden en memoria y en el diario: al recargar gana el último
+        lockDiario.lock();
+
+        try {
+            anotar(aplicarMensaje(conv, m));
+        } finally {
+            lockDiario.unlock();
+        }
+    }
+
+    /**
+     * Igual que {@link #registrarMensaje} para varios mensajes de una misma
+     * conversación, con una sola escritura en el diario.
+     */
+    public void registrarMensajes(Conversacion conv, List<Mensaje> mensajes) {
+
+        lockDiario.lock();
+
+        try {
+            List<Entrada> cambios = new ArrayList<>();
+
+            for (Mensaje m : mensajes) {
+                cambios.addAll(aplicarMensaje(conv, m));
+            }
+
+            anotar(cambios);
+        } finally {
+            lockDiario.unlock();
+        }
+    }
+
+    /**
+     * @return resúmenes del participante, el más reciente primero
+     */
+    public List<ResumenConversacion> obtener(String participante) {
+
+        List<ResumenConversacion> lista = new ArrayList<>();
+
+        if (participante == null || participante.isBlank()) {
+            return lista;
+        }
+
+        Map<String, ResumenConversacion> suyos = porParticipante.get(participante);
+
+        if (suyos != null) {
+            lista.addAll(suyos.values());
+        }
+
+        lista.sort(Comparator.comparing(ResumenConversacion::getFechaUltimoMensaje).reversed());
+
+        return lista;
+    }
+
+    /**
+     * El participante ha abierto la conversación: sus no leídos vuelven a 0.
+     */
+    public void marcarLeida(String participante, String idConversacion) {
+
+        if (participante == null || idConversacion == null) {
+            return;
+        }
+
+        Map<String, ResumenConversacion> suyos = porParticipante.get(participante);
+
+        if (suyos == null) {
+            return;
+        }
+
+        lockDiario.lock();
+
+        try {
+
+            ResumenConversacion actual = suyos.get(idConversacion);
+
+            if (actual == null || actual.getMensajesNoLeidos() == 0) {
+                return;
+            }
+
+            ResumenConversacion leido = copiar(actual);
+            leido.setMensajesNoLeidos(0);
+
+            suyos.put(idConversacion, leido);
+            anotar(List.of(new Entrada(participante, leido)));
+
+        } finally {
+            lockDiario.unlock();
+        }
+    }
+
+    private List<Entrada> aplicarMensaje(Conversacion conv, Mensaje m) {
+
+        List<Entrada> cambios = new ArrayList<>(2);
+
+        if (conv == null || m == null) {
+            return cambios;
+        }
+
+        String remitente = m.getRemitente();
+        String destinatario = m.getDestinatario();
+
+        if (remitente != null && !remitente.isBlank()) {
+            cambios.add(new Entrada(remitente, actualizar(remitente, conv, m, false)));
+        }
+
+        if (destinatario != null && !destinatario.isBlank() && !destinatario.equals(remitente)) {
+            cambios.add(new Entrada(destinatario, actualizar(destinatario, conv, m, true)));
+        }
+
+        return cambios;
+    }
+
+    private ResumenConversacion actualizar(String participante, Conversacion conv, Mensaje m, boolean noLeido) {
+
+        ConcurrentMap<String, ResumenConversacion> suyos =
+                porParticipante.computeIfAbsent(participante, k -> new ConcurrentHashMap<>());
+
+        return suyos.compute(conv.getIdConversacion(), (id, anterior) -> {
+
+            ResumenConversacion r = new ResumenConversacion(
+                    id,
+                    conv.getIpRemota(),
+                    conv.getAliasVisible(),
+                    m.getContenido() != null ? m.getContenido() : "",
+                    m.getFechaHora() != null ? m.getFechaHora().toString() : ""
+            );
+
+            int noLeidos = (anterior != null) ? anterior.getMensajesNoLeidos() : 0;
+            r.setMensajesNoLeidos(noLeido ? noLeidos + 1 : noLeidos);
+
+            return r;
+        });
+    }
+
+    private ResumenConversacion copiar(ResumenConversacion r) {
+
+        ResumenConversacion copia = new ResumenConversacion(
+                r.getIdConversacion(),
+                r.getIpRemota(),
+                r.getAliasVisible(),
+                r.getUltimoMensaje(),
+                r.getFechaUltimoMensaje()
+        );
+
+        copia.setMensajesNoLeidos(r.getMensajesNoLeidos());
+
+        return copia;
+    }
+
+    /* ==========================================================
+     *                       DIARIO
+     * ========================================================== */
+
+    /**
+     * Añade los cambios al final del diario (sin fsync: ver {@link #forzar()}).
+     * Se llama con lockDiario cogido.
+     */
+    private void anotar(List<Entrada> cambios) {
+
+        if (cambios.isEmpty() || descartado) {
+            return;
+        }
+
+        StringBuilder lineas = new StringBuilder();
+
+        for (Entrada e : cambios) {
+            lineas.append(json.toJson(e)).append('\n');
+        }
+
+        ByteBuffer datos = ByteBuffer.wrap(lineas.toString().getBytes(StandardCharsets.UTF_8));
+
+        try {
+
+            if (diario == null) {
+                diario = FileChannel.open(archivo, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+
+            while (datos.hasRemaining()) {
+                diario.write(datos);
+            }
+
+            sinForzar = true;
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error escribiendo el índice de resúmenes", e);
+        }
+    }
+
+    /**
+     * Deja de usar el diario y lo borra, para que el siguiente arranque
+     * reconstruya el índice (un diario al que le faltan líneas daría
+     * resúmenes atrasados sin que nadie lo notase). No lanza nada: se
+     * llama cuando el disco ya ha fallado.
+     */
+    public void descartarDiario() {
+
+        lockDiario.lock();
+
+        try {
+
+            descartado = true;
+            sinForzar = false;
+
+            if (diario != null) {
+                try {
+                    diario.close();
+                } catch (IOException ignorada) {
+                    // Se va a borrar igualmente
+                }
+                diario = null;
+            }
+
+            try {
+                Files.deleteIfExists(archivo);
+            } catch (IOException ignorada) {
+                // Sin poder borrar no hay más que hacer hasta el próximo arranque
+            }
+
+        } finally {
+            lockDiario.unlock();
+        }
+    }
+
+    /**
+     * @return true si el diario se ha descartado y se reconstruirá al arrancar
+     */
+    public boolean isDescartado() {
+
+        lockDiario.lock();
+
+        try {
+            return descartado;
+        } finally {
+            lockDiario.unlock();
+        }
+    }
+
+    /**
+     * Fuerza a disco lo anotado desde el último fsync.
+     */
+    public void forzar() {
+
+        lockDiario.lock();
+
+        try {
+
+            if (diario != null && sinForzar) {
+                diario.force(false);
+                sinForzar = false;
+            }
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error forzando a disco el índice de resúmenes", e);
+        } finally {
+            lockDiario.unlock();
+        }
+    }
+
+    private void cargar() {
+
+        try (BufferedReader br = Files.newBufferedReader(archivo, StandardCharsets.UTF_8)) {
+
+            String linea;
+
+            while ((linea = br.readLine()) != null) {
+
+                if (linea.isBlank()) {
+                    continue;
+                }
+
+                Entrada e;
+
+                try {
+                    e = json.fromJson(linea, Entrada.class);
+                } catch (RuntimeException ex) {
+                    // Línea a medio escribir (caída del servidor): se ignora
+                    continue;
+                }
+
+                if (e == null || e.participante == null || e.resumen == null) {
+                    continue;
+                }
+
+                porParticipante
+                        .computeIfAbsent(e.participante, k -> new ConcurrentHashMap<>())
+                        .put(e.resumen.getIdConversacion(), e.resumen);
+            }
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error leyendo el índice de resúmenes", e);
+        }
+    }
+
+    /**
+     * Reescribe el diario con una sola línea por participante y conversación.
+     */
+    private void compactar() {
+
+        Path temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+
+        lockDiario.lock();
+
+        try {
+
+            try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer w = Channels.newWriter(canal, StandardCharsets.UTF_8)) {
+
+                for (Map.Entry<String, ConcurrentMap<String, ResumenConversacion>> p : porParticipante.entrySet()) {
+
+                    for (ResumenConversacion r : p.getValue().values()) {
+                        w.write(json.toJson(new Entrada(p.getKey(), r)));
+                        w.write('\n');
+                    }
+                }
+
+                w.flush();
+                canal.force(false);
+            }
+
+            Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // El canal abierto apunta al fichero sustituido
+            if (diario != null) {
+                diario.close();
+                diario = null;
+            }
+
+            sinForzar = false;
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error compactando el índice de resúmenes", e);
+        } finally {
+            lockDiario.unlock();
+        }
+    }
+}
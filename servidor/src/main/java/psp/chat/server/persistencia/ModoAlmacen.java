@@ -0,0 +1,20 @@
+package psp.chat.server.persistencia;
+
+/**
+ * Motor de almacenamiento de conversaciones del servidor.
+ */
+public enum ModoAlmacen {
+
+    /**
+     * Una carpeta por conversación con su log y su índice
+     * ({@link RepositorioConversacionArchivo})
+     */
+    ARCHIVOS,
+
+    /**
+     * Todos los mensajes en segmentos rotatorios compartidos, con índice en
+     * memoria y compactación en segundo plano
+     * ({@link RepositorioConversacionSegmentos})
+     */
+    SEGMENTOS
+}
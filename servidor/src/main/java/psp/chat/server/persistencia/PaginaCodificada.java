@@ -0,0 +1,30 @@
+package psp.chat.server.persistencia;
+
+/**
+ * Página de historial ya serializada: el JSON (UTF-8) de un
+ * {@link psp.chat.general.modelo.PaginaHistorial}, montado copiando los
+ * registros tal como están en disco, sin crear ningún objeto Mensaje.
+ *
+ * Se envía al cliente sin pasar por Gson.
+ */
+public class PaginaCodificada {
+
+    private final byte[] json;
+    private final int numeroMensajes;
+
+    public PaginaCodificada(byte[] json, int numeroMensajes) {
+        this.json = json;
+        this.numeroMensajes = numeroMensajes;
+    }
+
+    /**
+     * @return payload JSON en UTF-8 (no se modifica)
+     */
+    public byte[] getJson() {
+        return json;
+    }
+
+    public int getNumeroMensajes() {
+        return numeroMensajes;
+    }
+}
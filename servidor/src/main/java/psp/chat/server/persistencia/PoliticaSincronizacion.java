@@ -0,0 +1,28 @@
+package psp.chat.server.persistencia;
+
+/**
+ * Cuándo fuerza a disco (fsync) el {@link EscritorMensajes} los mensajes
+ * que ha ido acumulando. En todas las políticas el ACK al remitente sale
+ * solo cuando su mensaje ya está en disco: lo que cambia es cuántos
+ * mensajes comparten cada fsync y cuánto espera el primero de ellos.
+ */
+public enum PoliticaSincronizacion {
+
+    /**
+     * Se escribe y se fuerza todo lo que haya en cola en cuanto el escritor
+     * queda libre (lotes del tamaño que dé la carga)
+     */
+    SIEMPRE,
+
+    /**
+     * Se acumula durante guasapp.persistencia.intervaloMs desde el primer
+     * mensaje del lote y se escribe todo con un único fsync
+     */
+    CADA_N_MS,
+
+    /**
+     * Se acumula hasta guasapp.persistencia.mensajesPorLote mensajes (o hasta
+     * que pasen intervaloMs, para que nadie espere indefinidamente)
+     */
+    CADA_N_MENSAJES
+}
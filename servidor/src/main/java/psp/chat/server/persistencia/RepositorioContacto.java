@@ -4,11 +4,21 @@ import psp.chat.general.modelo.Contacto;
 import psp.chat.general.util.JsonUtil;
 import psp.chat.general.util.ArchivoUtil;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Repositorio encargado de gestionar la lista de contactos del servidor.
@@ -18,18 +28,65 @@ import java.util.List;
  * Cada IP corresponde a un único Contacto.
  * Si se conecta alguien con la misma IP, se reutiliza el contacto
  * y se actualiza el alias en LOGIN.
+ *
+ * En memoria hay un índice por IP y otro por idContacto: buscar no
+ * recorre la lista y las lecturas no bloquean.
+ *
+ * En disco:
+ *   data.contactos/contactos.json  → instantánea (lista JSON, formato de siempre)
+ *   data.contactos/contactos.jsonl → diario: una línea por contacto nuevo o
+ *                                    cambiado; al cargar gana la última de cada IP
+ *
+ * Un LOGIN que no cambia nada no escribe; uno que cambia el alias añade una
+ * línea. Cuando el diario crece más que la lista de contactos se vuelca una
+ * instantánea nueva y se vacía. Al arrancar se aplica el diario y se vuelca.
  */
 public class RepositorioContacto {
 
-    private final Path archivoContactos = Path.of("data.contactos/contactos.json");
+    /** Líneas de diario que se toleran aunque haya pocos contactos */
+    private static final int DIARIO_MINIMO = 1000;
+
+    private final Path archivoContactos;
+    private final Path archivoDiario;
 
     private final JsonUtil jsonUtil;
-    private final List<Contacto> contactos;
+
+    private final ConcurrentMap<String, Contacto> porIp;
+    private final ConcurrentMap<String, Contacto> porId;
+
+    /** Último JSON escrito de cada IP, para no anotar lo que no ha cambiado */
+    private final Map<String, String> guardados;
+
+    /**
+     * Protege guardados, lineasDiario y los ficheros: alta, anotación en el
+     * diario y volcado de la instantánea van de uno en uno. Los índices en
+     * memoria se leen sin él.
+     */
+    private final ReentrantLock lockDiario;
+
+    private int lineasDiario;
 
     public RepositorioContacto(JsonUtil jsonUtil) {
+        this(Path.of("data.contactos/contactos.json"), jsonUtil);
+    }
+
+    public RepositorioContacto(Path archivoContactos, JsonUtil jsonUtil) {
+
+        this.archivoContactos = archivoContactos;
+        this.archivoDiario = archivoContactos.resolveSibling("contactos.jsonl");
         this.jsonUtil = jsonUtil;
+        this.porIp = new ConcurrentHashMap<>();
+        this.porId = new ConcurrentHashMap<>();
+        this.guardados = new HashMap<>();
+        this.lockDiario = new ReentrantLock();
+
         asegurarEstructuraArchivos();
-        this.contactos = cargarDesdeArchivo();
+        cargarDesdeArchivo();
+
+        if (Files.exists(archivoDiario)) {
+            cargarDiario();
+            volcarInstantanea();
+        }
     }
 
     private void asegurarEstructuraArchivos() {
@@ -56,12 +113,16 @@ public class RepositorioContacto {
     public Contacto buscarPorIp(String ip) {
         if (ip == null || ip.isBlank()) return null;
 
-        for (Contacto c : contactos) {
-            if (c != null && ip.equals(c.getIpRemota())) {
-                return c;
-            }
-        }
-        return null;
+        return porIp.get(ip);
+    }
+
+    /**
+     * Busca un contacto por su idContacto.
+     */
+    public Contacto buscarPorId(String idContacto) {
+        if (idContacto == null || idContacto.isBlank()) return null;
+
+        return porId.get(idContacto);
     }
 
     /**
@@ -70,46 +131,159 @@ public class RepositorioContacto {
     public Contacto crearContactoSiNoExiste(String ip) {
         if (ip == null || ip.isBlank()) return null;
 
-        Contacto existente = buscarPorIp(ip);
+        Contacto existente = porIp.get(ip);
         if (existente != null) return existente;
 
-        Contacto nuevo = new Contacto(ip, "");
-        contactos.add(nuevo);
-        guardarEnArchivo();
-        return nuevo;
+        lockDiario.lock();
+
+        try {
+            // Otra sesión de la misma IP puede haberlo creado mientras tanto
+            existente = porIp.get(ip);
+            if (existente != null) return existente;
+
+            Contacto nuevo = new Contacto(ip, "");
+            registrar(nuevo);
+            return nuevo;
+
+        } finally {
+            lockDiario.unlock();
+        }
     }
 
     /**
      * Guarda o actualiza un contacto (identidad = IP).
+     * Si no ha cambiado nada desde la última vez no toca el disco.
      */
     public void guardar(Contacto contacto) {
-        if (contacto == null) return;
+        if (contacto == null || contacto.getIpRemota() == null || contacto.getIpRemota().isBlank()) return;
 
-        for (int i = 0; i < contactos.size(); i++) {
-            if (contacto.getIpRemota().equals(contactos.get(i).getIpRemota())) {
-                contactos.set(i, contacto);
-                guardarEnArchivo();
-                return;
-            }
-        }
+        lockDiario.lock();
 
-        contactos.add(contacto);
-        guardarEnArchivo();
+        try {
+            registrar(contacto);
+        } finally {
+            lockDiario.unlock();
+        }
     }
 
     public List<Contacto> obtenerTodos() {
-        return new ArrayList<>(contactos);
+        return new ArrayList<>(porIp.values());
     }
 
-    private void guardarEnArchivo() {
-        ArchivoUtil.guardarTexto(archivoContactos, jsonUtil.toJson(contactos));
+    /**
+     * Actualiza los índices y anota el contacto en el diario si ha cambiado.
+     * Se llama con lockDiario cogido.
+     */
+    private void registrar(Contacto contacto) {
+
+        String ip = contacto.getIpRemota();
+        String linea = jsonUtil.toJson(contacto);
+
+        indexar(contacto);
+
+        if (linea.equals(guardados.get(ip))) {
+            return;
+        }
+
+        try (Writer w = Files.newBufferedWriter(archivoDiario, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+
+            w.write(linea);
+            w.write('\n');
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error escribiendo el diario de contactos", e);
+        }
+
+        guardados.put(ip, linea);
+
+        if (++lineasDiario > Math.max(DIARIO_MINIMO, porIp.size())) {
+            volcarInstantanea();
+        }
+    }
+
+    private void indexar(Contacto contacto) {
+
+        Contacto anterior = porIp.put(contacto.getIpRemota(), contacto);
+
+        if (anterior != null && anterior != contacto && anterior.getIdContacto() != null) {
+            porId.remove(anterior.getIdContacto(), anterior);
+        }
+
+        if (contacto.getIdContacto() != null) {
+            porId.put(contacto.getIdContacto(), contacto);
+        }
+    }
+
+    /**
+     * Escribe la lista completa en contactos.json (por fichero temporal y
+     * renombrado) y vacía el diario. Si el servidor cae entre medias, el
+     * diario se vuelve a aplicar sobre la instantánea sin cambiar nada.
+     */
+    private void volcarInstantanea() {
+
+        lockDiario.lock();
+
+        try {
+            Path temporal = archivoContactos.resolveSibling(archivoContactos.getFileName() + ".tmp");
+
+            ArchivoUtil.guardarTexto(temporal, jsonUtil.toJson(new ArrayList<>(porIp.values())));
+            Files.move(temporal, archivoContactos, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(archivoDiario);
+
+            lineasDiario = 0;
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error guardando la instantánea de contactos", e);
+        } finally {
+            lockDiario.unlock();
+        }
     }
 
-    private List<Contacto> cargarDesdeArchivo() {
+    private void cargarDesdeArchivo() {
         String json = ArchivoUtil.leerTexto(archivoContactos);
-        if (json == null || json.isBlank()) return new ArrayList<>();
+        if (json == null || json.isBlank()) return;
 
         List<Contacto> lista = jsonUtil.fromJsonLista(json, Contacto.class);
-        return (lista != null) ? lista : new ArrayList<>();
+        if (lista == null) return;
+
+        for (Contacto c : lista) {
+            if (c != null && c.getIpRemota() != null && !c.getIpRemota().isBlank()) {
+                indexar(c);
+                guardados.put(c.getIpRemota(), jsonUtil.toJson(c));
+            }
+        }
+    }
+
+    private void cargarDiario() {
+
+        try (BufferedReader br = Files.newBufferedReader(archivoDiario, StandardCharsets.UTF_8)) {
+
+            String linea;
+
+            while ((linea = br.readLine()) != null) {
+
+                if (linea.isBlank()) {
+                    continue;
+                }
+
+                Contacto c;
+
+                try {
+                    c = jsonUtil.fromJson(linea, Contacto.class);
+                } catch (RuntimeException ex) {
+                    // Línea a medio escribir (caída del servidor): se ignora
+                    continue;
+                }
+
+                if (c != null && c.getIpRemota() != null && !c.getIpRemota().isBlank()) {
+                    indexar(c);
+                    guardados.put(c.getIpRemota(), linea);
+                }
+            }
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error leyendo el diario de contactos", e);
+        }
     }
 }
@@ -2,29 +2,56 @@ package psp.chat.server.persistencia;
 
 import psp.chat.general.modelo.Conversacion;
 import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+import psp.chat.general.modelo.PeticionHistorial;
 import psp.chat.general.modelo.ResumenConversacion;
 import psp.chat.server.modelo.ClienteConectado;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Capa de gestión de conversaciones en el servidor.
  *
- * Delegamos toda la persistencia real en {@link RepositorioConversacionArchivo}.
+ * Delegamos toda la persistencia real en un {@link AlmacenConversaciones}
+ * y los resúmenes por participante en {@link IndiceResumenes}. Los mensajes
+ * nuevos se escriben a través de {@link EscritorMensajes}, que los agrupa y
+ * confirma cuando están en disco. Las conversaciones activas se sirven desde
+ * {@link CacheConversaciones}, que el escritor mantiene al día.
  *
  * Responsabilidades:
  *  - Cargar una conversación por ID.
  *  - Crear conversación nueva si no existía.
- *  - Guardar mensajes dentro de una conversación.
+ *  - Añadir mensajes al final de una conversación (sin reescribirla).
+ *  - Servir el historial por páginas (cursor = posición del mensaje).
  *  - Generar resúmenes para el cliente.
  */
 public class RepositorioConversacion {
 
-    private final RepositorioConversacionArchivo archivo;
+    /** Mensajes por página si el cliente no pide un tamaño */
+    public static final int PAGINA_POR_DEFECTO = 50;
 
-    public RepositorioConversacion(RepositorioConversacionArchivo archivo) {
-        this.archivo = archivo;
+    /** Tope de mensajes por página, pida lo que pida el cliente */
+    public static final int PAGINA_MAXIMA = 500;
+
+    private final AlmacenConversaciones almacen;
+    private final IndiceResumenes indice;
+    private final EscritorMensajes escritor;
+    private final CacheConversaciones cache;
+
+    public RepositorioConversacion(AlmacenConversaciones almacen, IndiceResumenes indice,
+                                   EscritorMensajes escritor, CacheConversaciones cache) {
+
+        this.almacen = almacen;
+        this.indice = indice;
+        this.escritor = escritor;
+        this.cache = cache;
+
+        // Primera vez con índice: se construye desde las conversaciones guardadas
+        if (indice.necesitaReconstruir()) {
+            indice.reconstruir(almacen.cargarTodas());
+        }
     }
 
     /**
@@ -38,9 +65,23 @@ public class RepositorioConversacion {
             return new Conversacion("", "", "");
         }
 
-        Conversacion c = archivo.cargar(id);
+        if (cache.contiene(id)) {
+
+            Conversacion enCache = cache.obtener(id);
+
+            if (enCache != null) {
+                return enCache;
+            }
+        }
+
+        Conversacion c = almacen.cargar(id);
 
         if (c != null) {
+
+            if (cache.cabe(almacen.tamanoMensajes(id))) {
+                cache.poner(c, () -> almacen.contarMensajes(id));
+            }
+
             return c;
         }
 
@@ -49,87 +90,218 @@ public class RepositorioConversacion {
     }
 
     /**
-     * Guarda un mensaje en la conversación correspondiente.
+     * Datos de la conversación sin mensajes, sin cargarla entera.
+     *
+     * @return cabecera (vacía con ese id si la conversación no existe)
      */
-    public void guardarMensaje(Mensaje m) {
+    public Conversacion obtenerCabecera(String id) {
 
-        if (m == null || m.getIdConversacion() == null) {
-            return;
+        Conversacion cabecera = cache.obtenerCabecera(id);
+
+        if (cabecera == null) {
+            cabecera = almacen.cargarCabecera(id);
+        }
+
+        return (cabecera != null) ? cabecera : new Conversacion(id, "", "");
+    }
+
+    /**
+     * Mensajes en las posiciones [desde, hasta), de la caché si la
+     * conversación está en ella o del disco si no. No carga nada en caché:
+     * es como se recorre por tramos una conversación que puede ser enorme.
+     *
+     * @return lista (vacía si no hay nada en ese tramo)
+     */
+    public List<Mensaje> obtenerMensajes(String id, long desde, long hasta) {
+
+        PaginaHistorial tramo = cache.obtenerPagina(id, desde, hasta);
+
+        if (tramo == null) {
+            tramo = almacen.cargarPagina(id, desde, hasta);
         }
 
-        Conversacion c = obtenerConversacion(m.getIdConversacion());
+        return (tramo != null) ? tramo.getMensajes() : new ArrayList<>();
+    }
+
+    /**
+     * Devuelve una página del historial según el cursor de la petición.
+     * Sin cursor se devuelven los mensajes más recientes.
+     */
+    public PaginaHistorial obtenerPagina(PeticionHistorial peticion) {
+
+        if (peticion == null || peticion.getIdConversacion() == null || peticion.getIdConversacion().isBlank()) {
+            return new PaginaHistorial();
+        }
+
+        String id = peticion.getIdConversacion();
 
-        // Insertamos el mensaje
-        c.anadirMensaje(m);
+        // Las conversaciones pequeñas se cargan enteras en caché; las
+        // grandes se leen por páginas del disco
+        boolean enCache = cache.contiene(id) || cargarEnCache(id);
+
+        long[] rango = rango(peticion, id);
+
+        PaginaHistorial pagina = enCache ? cache.obtenerPagina(id, rango[0], rango[1]) : null;
+
+        if (pagina == null) {
+            pagina = almacen.cargarPagina(id, rango[0], rango[1]);
+        }
+
+        if (pagina != null) {
+            return pagina;
+        }
 
-        // Persistimos en archivo
-        archivo.guardar(c);
+        // Si la conversación no existe → página vacía
+        return new PaginaHistorial(id, "", "", 0, 0, new ArrayList<>());
     }
 
     /**
-     * Devuelve un listado de resúmenes de conversación
-     * pertenecientes al cliente que acaba de conectarse.
+     * Igual que {@link #obtenerPagina} pero ya serializada por el almacén,
+     * copiando los registros de disco sin crear Mensajes. Es el camino de
+     * las conversaciones que no están en caché ni van a entrar en ella.
      *
-     * Para ello:
-     *  - Se obtienen TODAS las conversaciones guardadas.
-     *  - Filtramos solo las que contengan mensajes donde el cliente está
-     *    como remitente o como destinatario.
-     *  - Creamos un ResumenConversacion para cada una.
+     * @return null si hay que usar {@link #obtenerPagina}: la conversación
+     *         está (o cabe) en caché, no existe o el almacén no lo admite
      */
-    public List<ResumenConversacion> obtenerResumenes(ClienteConectado cliente) {
+    public PaginaCodificada obtenerPaginaCodificada(PeticionHistorial peticion) {
+
+        if (peticion == null || peticion.getIdConversacion() == null || peticion.getIdConversacion().isBlank()) {
+            return null;
+        }
 
-        List<ResumenConversacion> lista = new ArrayList<>();
+        String id = peticion.getIdConversacion();
 
-        if (cliente == null || cliente.getContacto() == null) {
-            return lista;
+        if (cache.contar(id) >= 0 || cache.cabeSinExpulsar(almacen.tamanoMensajes(id))) {
+            return null;
         }
 
-        String ipCliente = cliente.getContacto().getIpRemota();
+        long[] rango = rango(peticion, id);
 
-        // Cargar TODAS las conversaciones guardadas
-        List<Conversacion> todas = archivo.cargarTodas();
+        return almacen.cargarPaginaCodificada(id, rango[0], rango[1]);
+    }
 
-        for (Conversacion conv : todas) {
+    /**
+     * @return nº de mensajes guardados en la conversación
+     */
+    public long contarMensajes(String id) {
 
-            if (conv == null || conv.getMensajes() == null) {
-                continue;
-            }
+        long enMemoria = cache.contar(id);
 
-            boolean pertenece = conv.getMensajes()
-                    .stream()
-                    .anyMatch(m ->
-                            ipCliente.equals(m.getRemitente()) ||
-                                    ipCliente.equals(m.getDestinatario())
-                    );
+        return (enMemoria >= 0) ? enMemoria : almacen.contarMensajes(id);
+    }
 
-            if (!pertenece) {
-                continue;
-            }
+    /**
+     * Traduce el cursor de la petición a posiciones [desde, hasta).
+     */
+    private long[] rango(PeticionHistorial peticion, String id) {
 
-            // Construimos el resumen
-            Mensaje ultimo = conv.obtenerUltimoMensaje();
+        int limite = peticion.getLimite() > 0 ? peticion.getLimite() : PAGINA_POR_DEFECTO;
+        limite = Math.min(limite, PAGINA_MAXIMA);
 
-            String preview = "";
-            String fecha = "";
-            String aliasVisible = conv.getAliasVisible();
-            String ipRemota = conv.getIpRemota();
+        if (peticion.getDespuesDe() != null) {
 
-            if (ultimo != null) {
-                preview = ultimo.getContenido() != null ? ultimo.getContenido() : "";
-                fecha = ultimo.getFechaHora() != null ? ultimo.getFechaHora().toString() : "";
-            }
+            long desde = Math.max(0, peticion.getDespuesDe() + 1);
+            return new long[]{desde, desde + limite};
+        }
+
+        // Sin cursor, los más recientes: primero hay que saber cuántos hay
+        Long antesDe = peticion.getAntesDe();
+        long hasta = Math.max(0, (antesDe != null) ? antesDe : contarMensajes(id));
+
+        return new long[]{Math.max(0, hasta - limite), hasta};
+    }
+
+    /**
+     * Guarda un mensaje en la conversación correspondiente.
+     *
+     * El mensaje se añade al final del registro (la posición la asigna el
+     * archivo y es el cursor con el que se pagina y sincroniza).
+     *
+     * @return futuro que se completa con el mensaje cuando ya está en disco
+     */
+    public CompletableFuture<Mensaje> guardarMensaje(Mensaje m) {
+
+        if (m == null || m.getIdConversacion() == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Mensaje sin conversación"));
+        }
+
+        return escritor.guardar(m);
+    }
+
+    /**
+     * Carga la conversación entera en caché si hay hueco libre para ella.
+     * Una página no expulsa a nadie: con la caché llena, cargar entera cada
+     * conversación que falla costaría más que leer solo la página del disco.
+     *
+     * @return true si ha quedado en caché
+     */
+    private boolean cargarEnCache(String id) {
+
+        if (!cache.cabeSinExpulsar(almacen.tamanoMensajes(id))) {
+            return false;
+        }
+
+        Conversacion c = almacen.cargar(id);
+
+        if (c == null) {
+            return false;
+        }
+
+        cache.poner(c, () -> almacen.contarMensajes(id));
+
+        return cache.contar(id) >= 0;
+    }
+
+    public void iniciar() {
+        escritor.iniciar();
+    }
+
+    /**
+     * Escribe los mensajes que queden en cola.
+     */
+    public void detener() {
+        escritor.detener();
+    }
+
+    /**
+     * @return aciertos, fallos, expulsiones y memoria de la caché
+     */
+    public CacheConversaciones getCache() {
+        return cache;
+    }
+
+    public AlmacenConversaciones getAlmacen() {
+        return almacen;
+    }
 
-            ResumenConversacion r = new ResumenConversacion(
-                    conv.getIdConversacion(),
-                    ipRemota,
-                    aliasVisible,
-                    preview,
-                    fecha
-            );
+    /**
+     * @return lotes, fsyncs y tamaño medio de lote del escritor
+     */
+    public EscritorMensajes getEscritor() {
+        return escritor;
+    }
+
+    /**
+     * El participante ha abierto la conversación: se ponen a 0 sus no leídos.
+     */
+    public void marcarLeida(String participante, String idConversacion) {
+        indice.marcarLeida(participante, idConversacion);
+    }
 
-            lista.add(r);
+    /**
+     * Devuelve los resúmenes de conversación del cliente que acaba de
+     * conectarse: las conversaciones en las que su IP aparece como
+     * remitente o destinatario de algún mensaje.
+     *
+     * Es una consulta a {@link IndiceResumenes}; ya no se cargan todas
+     * las conversaciones de disco.
+     */
+    public List<ResumenConversacion> obtenerResumenes(ClienteConectado cliente) {
+
+        if (cliente == null || cliente.getContacto() == null) {
+            return new ArrayList<>();
         }
 
-        return lista;
+        return indice.obtener(cliente.getContacto().getIpRemota());
     }
 }
@@ -1,115 +1,604 @@
 package psp.chat.server.persistencia;
 
 import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+import psp.chat.general.util.ArchivoUtil;
 import psp.chat.general.util.JsonUtil;
 
-import java.io.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 /**
- * Persistencia en disco de conversaciones:
- *   data/conversaciones/<id>.json
+ * Persistencia en disco de conversaciones, un registro de solo-añadir por
+ * conversación:
+ *   data/conversaciones/<id>/cabecera.json  → idConversacion, ipRemota, aliasVisible
+ *   data/conversaciones/<id>/mensajes.log   → un Mensaje JSON por línea
+ *   data/conversaciones/<id>/mensajes.idx   → fin (long) de cada línea del log
  *
- * Se encarga de:
- *  - Guardar una conversación completa en archivo
- *  - Cargar una conversación individual
- *  - Cargar TODAS las conversaciones desde disco (necesario para los resúmenes)
+ * Guardar un mensaje es añadir una línea y 8 bytes: nada se reescribe.
+ * La posición de un mensaje es su nº de entrada en el .idx, así que una
+ * página se lee con un acceso directo sin recorrer el resto.
+ *
+ * Se escribe primero el log y luego el .idx: si el servidor cae entre
+ * ambos, la siguiente escritura indexa las líneas completas que falten y
+ * corta la que quedase a medias. Las lecturas solo ven lo indexado.
+ *
+ * Es el motor ARCHIVOS ({@link ModoAlmacen}): sencillo de inspeccionar,
+ * pero con muchas conversaciones son muchos ficheros y cada lote del
+ * escritor cuesta un fsync por conversación tocada.
+ *
+ * Los antiguos data/conversaciones/<id>.json se migran al arrancar
+ * (quedan renombrados como <id>.json.migrado).
+ *
+ * No usa synchronized: se llama desde los hilos de sesión, que pueden ser
+ * virtuales, y la E/S de fichero dentro de un monitor los fijaría al portador.
  */
-public class RepositorioConversacionArchivo {
+public class RepositorioConversacionArchivo implements AlmacenConversaciones {
 
-    private final String carpeta = "data/conversaciones/";
+    private static final String CABECERA = "cabecera.json";
+    private static final String LOG = "mensajes.log";
+    private static final String IDX = "mensajes.idx";
+
+    private final Path carpeta;
     private final JsonUtil json;
 
+    /** Cerrojos de escritura por conversación, en franjas */
+    private final CerrojosConversacion cerrojos = new CerrojosConversacion(64);
+
+    /** Conversaciones cuyo final ya se ha comprobado en este arranque */
+    private final Set<String> revisadas = ConcurrentHashMap.newKeySet();
+
     public RepositorioConversacionArchivo(JsonUtil json) {
+        this(Path.of("data/conversaciones"), json);
+    }
+
+    public RepositorioConversacionArchivo(Path carpeta, JsonUtil json) {
+
+        this.carpeta = carpeta;
         this.json = json;
 
-        File dir = new File(carpeta);
-        if (!dir.exists()) {
-            dir.mkdirs();
+        try {
+            Files.createDirectories(carpeta);
+        } catch (IOException e) {
+            throw new RuntimeException("No se pudo preparar la carpeta de conversaciones", e);
         }
+
+        migrarAntiguas();
     }
 
+    /* ==========================================================
+     *                       LECTURA
+     * ========================================================== */
+
     /**
-     * Carga una conversación concreta por su ID.
+     * Carga una conversación concreta por su ID, con todos sus mensajes.
      *
      * @param id identificador único
      * @return objeto Conversacion o null si no existe
      */
+    @Override
     public Conversacion cargar(String id) {
 
-        String ruta = carpeta + id + ".json";
+        Conversacion c = cargarCabecera(id);
 
-        if (!Files.exists(Paths.get(ruta))) {
+        if (c == null) {
             return null;
         }
 
-        try {
+        long total = contarMensajes(id);
+
+        try (BufferedReader br = Files.newBufferedReader(carpetaDe(id).resolve(LOG), StandardCharsets.UTF_8)) {
 
-            String contenido = Files.readString(Paths.get(ruta));
-            return json.fromJson(contenido, Conversacion.class);
+            String linea;
+
+            for (long i = 0; i < total && (linea = br.readLine()) != null; i++) {
+                c.anadirMensaje(leerMensaje(linea, i));
+            }
 
         } catch (IOException ex) {
 
             return null;
 
         }
+
+        return c;
     }
 
     /**
-     * Guarda una conversación completa en disco.
+     * Carga solo los datos de la conversación, sin mensajes.
+     *
+     * @return cabecera o null si la conversación no existe
      */
-    public void guardar(Conversacion c) {
+    @Override
+    public Conversacion cargarCabecera(String id) {
 
-        if (c == null || c.getIdConversacion() == null) {
-            return;
+        if (!esIdValido(id)) {
+            return null;
+        }
+
+        Path ruta = carpetaDe(id).resolve(CABECERA);
+
+        if (!Files.exists(ruta)) {
+            return null;
+        }
+
+        try {
+            Conversacion c = json.fromJson(Files.readString(ruta, StandardCharsets.UTF_8), Conversacion.class);
+            c.setMensajes(new ArrayList<>());
+            return c;
+        } catch (IOException | RuntimeException ex) {
+            return null;
         }
+    }
 
-        String ruta = carpeta + c.getIdConversacion() + ".json";
+    /**
+     * @return nº de mensajes guardados (0 si no existe)
+     */
+    @Override
+    public long contarMensajes(String id) {
 
-        String texto = json.toJson(c);
+        if (!esIdValido(id)) {
+            return 0;
+        }
 
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(ruta))) {
+        try {
+            Path idx = carpetaDe(id).resolve(IDX);
+            return Files.exists(idx) ? Files.size(idx) / Long.BYTES : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 
-            bw.write(texto);
+    /**
+     * @return bytes del log de mensajes (0 si no existe)
+     */
+    @Override
+    public long tamanoMensajes(String id) {
 
-        } catch (IOException ignored) {}
+        if (!esIdValido(id)) {
+            return 0;
+        }
+
+        try {
+            Path log = carpetaDe(id).resolve(LOG);
+            return Files.exists(log) ? Files.size(log) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Carga solo los mensajes en las posiciones [desde, hasta). Se leen
+     * del .idx los límites del trozo y del log solo esos bytes.
+     *
+     * @return página (total = nº de mensajes guardados) o null si no existe
+     */
+    @Override
+    public PaginaHistorial cargarPagina(String id, long desde, long hasta) {
+
+        Conversacion cabecera = cargarCabecera(id);
+
+        if (cabecera == null) {
+            return null;
+        }
+
+        long total = contarMensajes(id);
+        long inicio = Math.min(Math.max(0, desde), total);
+        long fin = Math.min(Math.max(inicio, hasta), total);
+
+        List<Mensaje> mensajes = new ArrayList<>();
+
+        if (fin > inicio) {
+
+            Path dir = carpetaDe(id);
+
+            try (FileChannel idx = FileChannel.open(dir.resolve(IDX), StandardOpenOption.READ);
+                 FileChannel log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.READ)) {
+
+                long byteInicio = (inicio == 0) ? 0 : leerFin(idx, inicio - 1);
+                long byteFin = leerFin(idx, fin - 1);
+
+                ByteBuffer datos = ByteBuffer.allocate(Math.toIntExact(byteFin - byteInicio));
+
+                while (datos.hasRemaining()) {
+                    if (log.read(datos, byteInicio + datos.position()) < 0) {
+                        break;
+                    }
+                }
+
+                String texto = new String(datos.array(), 0, datos.position(), StandardCharsets.UTF_8);
+                long posicion = inicio;
+
+                for (String linea : texto.split("\n")) {
+
+                    if (!linea.isBlank()) {
+                        mensajes.add(leerMensaje(linea, posicion++));
+                    }
+                }
+
+            } catch (IOException | RuntimeException ex) {
+
+                return null;
+
+            }
+        }
+
+        return new PaginaHistorial(id, cabecera.getIpRemota(), cabecera.getAliasVisible(), inicio, total, mensajes);
     }
 
     /**
      * Carga TODAS las conversaciones existentes en carpeta.
      *
-     * Es fundamental para poder generar:
-     *  - lista de conversaciones del cliente
-     *  - resúmenes
-     *  - últimos mensajes
+     * Solo se usa para construir el índice de resúmenes la primera vez.
      */
+    @Override
     public List<Conversacion> cargarTodas() {
 
         List<Conversacion> todas = new ArrayList<>();
 
+        try (Stream<Path> dirs = Files.list(carpeta)) {
+
+            dirs.filter(Files::isDirectory).forEach(dir -> {
+
+                Conversacion c = cargar(dir.getFileName().toString());
+
+                if (c != null) {
+                    todas.add(c);
+                }
+            });
+
+        } catch (IOException ignored) {}
+
+        return todas;
+    }
+
+    /* ==========================================================
+     *                       ESCRITURA
+     * ========================================================== */
+
+    /**
+     * Añade varios mensajes de UNA conversación con una sola escritura en el
+     * log y otra en el índice, asignando posiciones consecutivas.
+     *
+     * No fuerza nada a disco: la carpeta queda apuntada para {@link #forzar(Collection)}.
+     *
+     * @param cabecera datos de la conversación (solo se usan si es nueva)
+     * @return posición asignada al primer mensaje
+     */
+    @Override
+    public long anadirLote(Conversacion cabecera, List<Mensaje> mensajes) {
+
+        String id = mensajes.get(0).getIdConversacion();
+
+        if (!esIdValido(id)) {
+            throw new IllegalArgumentException("ID de conversación no válido: " + id);
+        }
+
+        ReentrantLock cerrojo = cerrojos.bloquear(id);
+
         try {
 
-            Files.list(Path.of(carpeta))
-                    .filter(p -> p.toString().endsWith(".json"))
-                    .forEach(path -> {
+            Path dir = carpetaDe(id);
 
-                        String nombre = path.getFileName().toString()
-                                .replace(".json", "");
+            if (!Files.exists(dir.resolve(CABECERA))) {
+                Files.createDirectories(dir);
+                escribirCabecera(cabecera != null ? cabecera : new Conversacion(id, "", ""));
+            }
 
-                        Conversacion c = cargar(nombre);
+            if (revisadas.add(id)) {
+                repararFinal(dir);
+            }
 
-                        if (c != null) {
-                            todas.add(c);
-                        }
 
-                    });
+            long primera = contarMensajes(id);
+            long posicion = primera;
 
-        } catch (IOException ignored) {}
+            StringBuilder registros = new StringBuilder();
+            int[] longitudes = new int[mensajes.size()];
 
-        return todas;
+            for (int i = 0; i < mensajes.size(); i++) {
+
+                Mensaje m = mensajes.get(i);
+                m.setPosicion(posicion++);
+
+                String linea = json.toJson(m) + "\n";
+                longitudes[i] = linea.getBytes(StandardCharsets.UTF_8).length;
+                registros.append(linea);
+            }
+
+            ByteBuffer fines = ByteBuffer.allocate(Long.BYTES * mensajes.size());
+
+            try (FileChannel log = FileChannel.open(dir.resolve(LOG),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+
+                long fin = log.size();
+
+                for (int longitud : longitudes) {
+                    fin += longitud;
+                    fines.putLong(fin);
+                }
+
+                escribirTodo(log, ByteBuffer.wrap(registros.toString().getBytes(StandardCharsets.UTF_8)));
+            }
+
+            try (FileChannel idx = FileChannel.open(dir.resolve(IDX),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+
+                fines.flip();
+                escribirTodo(idx, fines);
+            }
+
+            return primera;
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error guardando mensajes en " + id, e);
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Fsync de las conversaciones indicadas: primero todos los logs y
+     * después todos los índices, para que un índice en disco casi nunca
+     * apunte más allá de su log (si pasa, se recorta al repararlo).
+     */
+    @Override
+    public void forzar(Collection<String> ids) {
+
+        try {
+            for (String id : ids) {
+                forzarFichero(carpetaDe(id).resolve(LOG));
+            }
+
+            for (String id : ids) {
+                forzarFichero(carpetaDe(id).resolve(IDX));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error forzando a disco las conversaciones", e);
+        }
+    }
+
+    private void forzarFichero(Path ruta) throws IOException {
+
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.WRITE)) {
+            canal.force(false);
+        }
+    }
+
+    /**
+     * Guarda una conversación completa en disco, sustituyendo lo que hubiera.
+     * Se usa en la migración; para mensajes nuevos, {@link #anadirLote}.
+     */
+    public void guardar(Conversacion c) {
+
+        if (c == null || !esIdValido(c.getIdConversacion())) {
+            return;
+        }
+
+        String id = c.getIdConversacion();
+
+        ReentrantLock cerrojo = cerrojos.bloquear(id);
+
+        try {
+
+            Path dir = carpetaDe(id);
+            Files.createDirectories(dir);
+
+            escribirCabecera(c);
+
+            try (FileChannel log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel idx = FileChannel.open(dir.resolve(IDX), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+                long fin = 0;
+                long posicion = 0;
+
+                ByteBuffer fines = ByteBuffer.allocate(Long.BYTES * Math.max(1, c.getMensajes().size()));
+
+                for (Mensaje m : c.getMensajes()) {
+
+                    m.setPosicion(posicion++);
+
+                    byte[] registro = (json.toJson(m) + "\n").getBytes(StandardCharsets.UTF_8);
+                    escribirTodo(log, ByteBuffer.wrap(registro));
+
+                    fin += registro.length;
+                    fines.putLong(fin);
+                }
+
+                fines.flip();
+                escribirTodo(idx, fines);
+            }
+
+            revisadas.add(id);
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error guardando conversación " + id, e);
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void escribirCabecera(Conversacion c) {
+
+        Conversacion cabecera = new Conversacion(c.getIdConversacion(), c.getIpRemota(), c.getAliasVisible());
+
+        ArchivoUtil.guardarTexto(carpetaDe(c.getIdConversacion()).resolve(CABECERA), json.toJson(cabecera));
+    }
+
+    /**
+     * Deja log e índice coherentes tras una posible caída: indexa las líneas
+     * completas que se escribieron sin llegar al .idx y corta lo demás.
+     * Se llama con el cerrojo de la conversación cogido.
+     */
+    private void repararFinal(Path dir) throws IOException {
+
+        Path rutaLog = dir.resolve(LOG);
+        Path rutaIdx = dir.resolve(IDX);
+
+        if (!Files.exists(rutaLog)) {
+            Files.deleteIfExists(rutaIdx);
+            return;
+        }
+
+        try (FileChannel log = FileChannel.open(rutaLog, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel idx = FileChannel.open(rutaIdx, StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            // Un long a medias no vale, ni entradas que apunten más allá
+            // del log (el índice llegó a disco antes que el log)
+            long entradas = idx.size() / Long.BYTES;
+
+            while (entradas > 0 && leerFin(idx, entradas - 1) > log.size()) {
+                entradas--;
+            }
+
+            idx.truncate(entradas * Long.BYTES);
+
+            long finIndexado = (entradas == 0) ? 0 : leerFin(idx, entradas - 1);
+
+            if (finIndexado == log.size()) {
+                return;
+            }
+
+            ByteBuffer resto = ByteBuffer.allocate(Math.toIntExact(log.size() - finIndexado));
+
+            while (resto.hasRemaining() && log.read(resto, finIndexado + resto.position()) >= 0) {
+                // leer hasta el final
+            }
+
+            ByteBuffer fines = ByteBuffer.allocate(Long.BYTES * resto.position());
+            long finValido = finIndexado;
+
+            for (int i = 0; i < resto.position(); i++) {
+
+                if (resto.get(i) == '\n') {
+                    finValido = finIndexado + i + 1;
+                    fines.putLong(finValido);
+                }
+            }
+
+            fines.flip();
+            idx.position(idx.size());
+            escribirTodo(idx, fines);
+
+            log.truncate(finValido);
+        }
+    }
+
+    /* ==========================================================
+     *                       MIGRACIÓN
+     * ========================================================== */
+
+    /**
+     * Convierte los antiguos <id>.json (conversación completa en un fichero)
+     * al formato de registro.
+     */
+    private void migrarAntiguas() {
+
+        List<Path> antiguas = new ArrayList<>();
+
+        try (Stream<Path> ficheros = Files.list(carpeta)) {
+
+            ficheros.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().endsWith(".json"))
+                    .forEach(antiguas::add);
+
+        } catch (IOException e) {
+            throw new RuntimeException("No se pudo listar " + carpeta, e);
+        }
+
+        for (Path antigua : antiguas) {
+
+            try {
+
+                Conversacion c = json.fromJson(Files.readString(antigua, StandardCharsets.UTF_8), Conversacion.class);
+
+                if (c == null) {
+                    continue;
+                }
+
+                String nombre = antigua.getFileName().toString();
+
+                if (c.getIdConversacion() == null || c.getIdConversacion().isBlank()) {
+                    c.setIdConversacion(nombre.substring(0, nombre.length() - ".json".length()));
+                }
+
+                guardar(c);
+
+                Files.move(antigua, antigua.resolveSibling(nombre + ".migrado"), StandardCopyOption.REPLACE_EXISTING);
+
+            } catch (IOException | RuntimeException e) {
+                // Se deja como estaba; se reintentará en el próximo arranque
+            }
+        }
+    }
+
+    /* ==========================================================
+     *                       UTILIDADES
+     * ========================================================== */
+
+    private Mensaje leerMensaje(String linea, long posicion) {
+
+        Mensaje m = json.fromJson(linea, Mensaje.class);
+        m.setPosicion(posicion);
+
+        return m;
+    }
+
+    private long leerFin(FileChannel idx, long entrada) throws IOException {
+
+        ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+
+        while (b.hasRemaining()) {
+            if (idx.read(b, entrada * Long.BYTES + b.position()) < 0) {
+                throw new IOException("Índice truncado");
+            }
+        }
+
+        return b.getLong(0);
+    }
+
+    private void escribirTodo(FileChannel canal, ByteBuffer datos) throws IOException {
+
+        while (datos.hasRemaining()) {
+            canal.write(datos);
+        }
+    }
+
+    private Path carpetaDe(String id) {
+        return carpeta.resolve(id);
+    }
+
+    /**
+     * El id se usa como nombre de carpeta: nada de rutas.
+     */
+    private boolean esIdValido(String id) {
+        return id != null
+                && !id.isBlank()
+                && id.indexOf('/') < 0
+                && id.indexOf('\\') < 0
+                && !id.contains("..");
+    }
+
+    @Override
+    public String toString() {
+        return "RepositorioConversacionArchivo{carpeta=" + carpeta + ", cerrojos: " + cerrojos + "}";
     }
 }
@@ -0,0 +1,1202 @@
+package psp.chat.server.persistencia;
+
+import psp.chat.general.modelo.Conversacion;
+import psp.chat.general.modelo.Mensaje;
+import psp.chat.general.modelo.PaginaHistorial;
+import psp.chat.general.util.JsonUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Motor SEGMENTOS ({@link ModoAlmacen}): todos los mensajes de todas las
+ * conversaciones se añaden, en orden de llegada, a un único segmento activo
+ * (data/segmentos/segmento-NNNNNN.log). Al pasar de guasapp.segmentos.tamanoMb
+ * se cierra y se abre otro. Escribir un lote es siempre una escritura
+ * secuencial y un único fsync, toque las conversaciones que toque.
+ *
+ * Registro: [longitud: int][crc32: int][tipo: byte][JSON UTF-8]
+ *   tipo 1 → cabecera de conversación (la primera vez que aparece)
+ *   tipo 2 → Mensaje, con su idConversacion y su posicion
+ *
+ * En memoria se guarda, por conversación, dónde está cada mensaje
+ * (segmento, desplazamiento, longitud). Al arrancar se reconstruye leyendo
+ * los segmentos. Solo el segmento activo del arranque anterior (el
+ * segmento-NNNNNN.log más alto) puede acabar a medias tras una caída: ahí
+ * un registro incompleto o con CRC erróneo marca el final válido y se
+ * corta. Los sellados se forzaron al rotar y los compactados antes de
+ * renombrarlos, así que un registro dañado en ellos es corrupción y el
+ * arranque se detiene sin tocar nada. Cada arranque abre un segmento
+ * activo nuevo.
+ *
+ * Compactación en segundo plano: cuando hay guasapp.segmentos.compactarCada
+ * segmentos cerrados sin compactar, se reescriben juntos en compactado-NNNNNN.log
+ * ordenados por conversación y posición (una página antigua pasa a ser una
+ * sola lectura contigua) y se borran los originales. Cada compactado mide
+ * como mucho lo mismo que un segmento; si no cabe todo, se reparte en varios.
+ * Los registros se copian tal cual; el índice se cambia de golpe con el
+ * cerrojo de escritura, así que ningún lector ve un segmento borrado.
+ *
+ * Los segmentos cerrados ya no cambian y se proyectan en memoria
+ * (MappedByteBuffer): leerlos es copiar de la caché de páginas del sistema,
+ * sin llamadas al sistema. Como cada registro guarda el JSON del mensaje,
+ * una página de historial se puede montar ya serializada
+ * ({@link #cargarPaginaCodificada}) sin crear ningún Mensaje.
+ *
+ * Un cerrojo de lectura/escritura protege el índice y la lista de
+ * segmentos: las sesiones leen en paralelo y los carriles del
+ * {@link EscritorMensajes} (y el cambio de índice al compactar) escriben
+ * de uno en uno.
+ */
+public class RepositorioConversacionSegmentos implements AlmacenConversaciones {
+
+    private static final byte TIPO_CABECERA = 1;
+    private static final byte TIPO_MENSAJE = 2;
+
+    /** longitud + crc + tipo */
+    private static final int CABECERA_REGISTRO = 9;
+
+    /** Tope de una lectura contigua de varios registros */
+    private static final int LECTURA_MAXIMA = 8 * 1024 * 1024;
+
+    private static final String PREFIJO = "segmento-";
+    private static final String PREFIJO_COMPACTADO = "compactado-";
+    private static final String EXTENSION = ".log";
+
+    private static class Segmento {
+        private final int id;
+        private final Path ruta;
+        private final FileChannel canal;
+        private final boolean compactado;
+
+        /** Proyección en memoria; solo cuando ya no crece (null en el activo) */
+        private MappedByteBuffer mapa;
+
+        private Segmento(int id, Path ruta, FileChannel canal, boolean compactado) {
+            this.id = id;
+            this.ruta = ruta;
+            this.canal = canal;
+            this.compactado = compactado;
+        }
+
+        /**
+         * Proyecta en memoria el segmento, que ya no va a cambiar. Uno de más
+         * de 2 GB (compactados de versiones anteriores) no se puede proyectar
+         * entero y se sigue leyendo con pread.
+         */
+        private void sellar() throws IOException {
+
+            long tamano = canal.size();
+
+            if (tamano <= Integer.MAX_VALUE) {
+                mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, tamano);
+            }
+        }
+
+        /**
+         * Copia bytes del segmento en destino: de la proyección si está
+         * sellado (sin llamada al sistema), con pread si es el activo.
+         */
+        private void copiar(long desplazamiento, byte[] destino, int inicio, int longitud) throws IOException {
+
+            if (mapa != null) {
+                mapa.get((int) desplazamiento, destino, inicio, longitud);
+                return;
+            }
+
+            ByteBuffer b = ByteBuffer.wrap(destino, inicio, longitud);
+
+            while (b.hasRemaining()) {
+                if (canal.read(b, desplazamiento + (b.position() - inicio)) < 0) {
+                    throw new IOException("Registro truncado en " + ruta);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dónde está cada mensaje de una conversación, por posición.
+     */
+    private static class IndiceConversacion {
+
+        private Conversacion cabecera;
+        private int segmentoCabecera;
+
+        /** (segmento << 32) | desplazamiento */
+        private long[] ubicaciones = new long[16];
+
+        /** bytes del registro completo; 0 = hueco */
+        private int[] longitudes = new int[16];
+
+        private int total;
+        private long bytes;
+
+        private void poner(int posicion, long ubicacion, int longitud) {
+
+            if (posicion >= ubicaciones.length) {
+                int capacidad = Math.max(posicion + 1, ubicaciones.length * 2);
+                ubicaciones = Arrays.copyOf(ubicaciones, capacidad);
+                longitudes = Arrays.copyOf(longitudes, capacidad);
+            }
+
+            bytes += longitud - longitudes[posicion];
+
+            ubicaciones[posicion] = ubicacion;
+            longitudes[posicion] = longitud;
+
+            total = Math.max(total, posicion + 1);
+        }
+    }
+
+    /**
+     * Lo que una compactación tiene que mover de una conversación.
+     */
+    private static class Traslado {
+        private final String id;
+        private final Conversacion cabecera;
+        private final int[] posiciones;
+        private final long[] origen;
+        private final int[] longitudes;
+        private final long[] destino;
+
+        /** Primer compactado en el que se escribe su cabecera */
+        private int segmentoCabecera;
+
+        private Traslado(String id, Conversacion cabecera, int[] posiciones, long[] origen, int[] longitudes) {
+            this.id = id;
+            this.cabecera = cabecera;
+            this.posiciones = posiciones;
+            this.origen = origen;
+            this.longitudes = longitudes;
+            this.destino = new long[posiciones.length];
+        }
+    }
+
+    private final Path carpeta;
+    private final JsonUtil json;
+    private final long tamanoSegmento;
+    private final int compactarCada;
+
+    private final ReentrantReadWriteLock lock;
+
+    /* Protegidos por lock */
+    private final Map<String, IndiceConversacion> conversaciones;
+    private final TreeMap<Integer, Segmento> segmentos;
+    private Segmento activo;
+    private long tamanoActivo;
+
+    private final AtomicInteger siguienteId;
+
+    private final ExecutorService compactador;
+    private final AtomicBoolean compactando;
+
+    /* Métricas */
+    private final LongAdder compactaciones;
+    private final LongAdder compactacionesFallidas;
+    private final LongAdder bytesLiberados;
+    private final LongAdder registrosCortados;
+
+    /** Motivo del último fallo de compactación (null si nunca ha fallado) */
+    private volatile String ultimoFalloCompactacion;
+
+    public RepositorioConversacionSegmentos(JsonUtil json, long tamanoSegmento, int compactarCada) {
+        this(Path.of("data/segmentos"), json, tamanoSegmento, compactarCada);
+    }
+
+    /**
+     * @param tamanoSegmento bytes a partir de los que se abre un segmento nuevo
+     * @param compactarCada  segmentos cerrados que disparan una compactación (0 = nunca)
+     */
+    public RepositorioConversacionSegmentos(Path carpeta, JsonUtil json, long tamanoSegmento, int compactarCada) {
+
+        this.carpeta = carpeta;
+        this.json = json;
+        this.tamanoSegmento = Math.max(64 * 1024, Math.min(tamanoSegmento, Integer.MAX_VALUE));
+        this.compactarCada = Math.max(0, compactarCada);
+
+        this.lock = new ReentrantReadWriteLock();
+        this.conversaciones = new HashMap<>();
+        this.segmentos = new TreeMap<>();
+        this.siguienteId = new AtomicInteger(1);
+
+        this.compactando = new AtomicBoolean(false);
+        this.compactador = Executors.newSingleThreadExecutor(r -> {
+            Thread hilo = new Thread(r, "CompactadorSegmentos");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+
+        this.compactaciones = new LongAdder();
+        this.compactacionesFallidas = new LongAdder();
+        this.bytesLiberados = new LongAdder();
+        this.registrosCortados = new LongAdder();
+
+        try {
+            Files.createDirectories(carpeta);
+            recuperar();
+            rotar();
+        } catch (IOException e) {
+            throw new RuntimeException("No se pudieron abrir los segmentos de " + carpeta, e);
+        }
+
+        programarCompactacion();
+    }
+
+    /* ==========================================================
+     *                       ARRANQUE
+     * ========================================================== */
+
+    /**
+     * Abre los segmentos existentes y reconstruye el índice en memoria.
+     *
+     * @throws IOException también si un segmento sellado o compactado tiene
+     *                     un registro dañado (no se borra ni se corta nada)
+     */
+    private void recuperar() throws IOException {
+
+        List<Path> ficheros;
+
+        try (Stream<Path> s = Files.list(carpeta)) {
+            ficheros = s.toList();
+        }
+
+        // Compactados a medio escribir de una compactación que no terminó:
+        // los originales siguen ahí
+        for (Path ruta : ficheros) {
+
+            if (esTemporalCompactado(ruta)) {
+                Files.delete(ruta);
+            }
+        }
+
+        ficheros = ficheros.stream().filter(p -> idDe(p) > 0).sorted((a, b) -> Integer.compare(idDe(a), idDe(b))).toList();
+
+        int ultimoActivo = -1;
+
+        for (Path ruta : ficheros) {
+
+            if (ruta.getFileName().toString().startsWith(PREFIJO)) {
+                ultimoActivo = Math.max(ultimoActivo, idDe(ruta));
+            }
+        }
+
+        for (Path ruta : ficheros) {
+
+            int id = idDe(ruta);
+            boolean compactado = ruta.getFileName().toString().startsWith(PREFIJO_COMPACTADO);
+
+            // Segmento activo de un arranque anterior que no llegó a usarse
+            if (Files.size(ruta) == 0) {
+                Files.delete(ruta);
+                continue;
+            }
+
+            long valido = recorrer(id, ruta);
+
+            FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            if (canal.size() > valido) {
+
+                if (id != ultimoActivo) {
+                    canal.close();
+                    throw new IOException("Registro dañado en " + ruta + " (byte " + valido + " de "
+                            + Files.size(ruta) + "): no es el segmento activo anterior y no se corta."
+                            + " Hay que revisarlo o apartarlo a mano antes de arrancar");
+                }
+
+                // Cola a medio escribir del segmento activo anterior
+                registrosCortados.increment();
+                canal.truncate(valido);
+
+                if (valido == 0) {
+                    canal.close();
+                    Files.delete(ruta);
+                    continue;
+                }
+            }
+
+            Segmento segmento = new Segmento(id, ruta, canal, compactado);
+            segmento.sellar();
+
+            segmentos.put(id, segmento);
+            siguienteId.set(Math.max(siguienteId.get(), id + 1));
+        }
+
+        // Un hueco (no debería haberlo) deja la conversación hasta el hueco
+        for (IndiceConversacion ic : conversaciones.values()) {
+
+            for (int i = 0; i < ic.total; i++) {
+
+                if (ic.longitudes[i] == 0) {
+                    ic.total = i;
+                    break;
+                }
+            }
+
+            if (ic.cabecera == null) {
+                ic.cabecera = new Conversacion("", "", "");
+            }
+        }
+    }
+
+    /**
+     * Lee un segmento de principio a fin aplicando cada registro válido.
+     *
+     * @return bytes válidos (donde empieza lo que haya que cortar)
+     */
+    private long recorrer(int idSegmento, Path ruta) throws IOException {
+
+        long valido = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(ruta), 1 << 16))) {
+
+            while (true) {
+
+                int longitud;
+                int crc;
+                byte tipo;
+
+                try {
+                    longitud = in.readInt();
+                    crc = in.readInt();
+                    tipo = in.readByte();
+                } catch (EOFException fin) {
+                    break;
+                }
+
+                if (longitud < 0 || longitud > LECTURA_MAXIMA || (tipo != TIPO_CABECERA && tipo != TIPO_MENSAJE)) {
+                    break;
+                }
+
+                byte[] datos = new byte[longitud];
+
+                try {
+                    in.readFully(datos);
+                } catch (EOFException fin) {
+                    break;
+                }
+
+                if (crc(tipo, datos, 0, longitud) != crc) {
+                    break;
+                }
+
+                aplicar(idSegmento, valido, CABECERA_REGISTRO + longitud, tipo, datos);
+                valido += CABECERA_REGISTRO + longitud;
+            }
+        }
+
+        return valido;
+    }
+
+    private void aplicar(int idSegmento, long desplazamiento, int longitud, byte tipo, byte[] datos) {
+
+        String texto = new String(datos, StandardCharsets.UTF_8);
+
+        if (tipo == TIPO_CABECERA) {
+
+            Conversacion c = json.fromJson(texto, Conversacion.class);
+
+            IndiceConversacion ic = conversaciones.computeIfAbsent(c.getIdConversacion(), k -> new IndiceConversacion());
+            ic.cabecera = sinMensajes(c);
+            ic.segmentoCabecera = idSegmento;
+            return;
+        }
+
+        Mensaje m = json.fromJson(texto, Mensaje.class);
+
+        if (m.getIdConversacion() == null || m.getPosicion() < 0 || m.getPosicion() >= Integer.MAX_VALUE) {
+            return;
+        }
+
+        IndiceConversacion ic = conversaciones.computeIfAbsent(m.getIdConversacion(), k -> new IndiceConversacion());
+        ic.poner((int) m.getPosicion(), ubicacion(idSegmento, desplazamiento), longitud);
+    }
+
+    /**
+     * Importa las conversaciones de otro almacén (p. ej. al pasar de
+     * ARCHIVOS a SEGMENTOS). Solo tiene sentido con este almacén vacío.
+     */
+    public void importar(AlmacenConversaciones origen) {
+
+        for (Conversacion c : origen.cargarTodas()) {
+
+            if (c.getMensajes().isEmpty()) {
+                continue;
+            }
+
+            anadirLote(c, new ArrayList<>(c.getMensajes()));
+        }
+
+        forzar(List.of());
+    }
+
+    /**
+     * @return true si no hay ninguna conversación guardada
+     */
+    public boolean estaVacio() {
+
+        lock.readLock().lock();
+
+        try {
+            return conversaciones.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* ==========================================================
+     *                       LECTURA
+     * ========================================================== */
+
+    @Override
+    public Conversacion cargar(String id) {
+
+        PaginaHistorial todo = cargarPagina(id, 0, Long.MAX_VALUE);
+
+        if (todo == null) {
+            return null;
+        }
+
+        Conversacion c = new Conversacion(id, todo.getIpRemota(), todo.getAliasVisible());
+        c.setMensajes(todo.getMensajes());
+
+        return c;
+    }
+
+    @Override
+    public Conversacion cargarCabecera(String id) {
+
+        lock.readLock().lock();
+
+        try {
+            IndiceConversacion ic = conversaciones.get(id);
+            return (ic == null) ? null : sinMensajes(ic.cabecera);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long contarMensajes(String id) {
+
+        lock.readLock().lock();
+
+        try {
+            IndiceConversacion ic = conversaciones.get(id);
+            return (ic == null) ? 0 : ic.total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long tamanoMensajes(String id) {
+
+        lock.readLock().lock();
+
+        try {
+            IndiceConversacion ic = conversaciones.get(id);
+            return (ic == null) ? 0 : ic.bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Los registros contiguos en un mismo segmento (lo normal tras compactar)
+     * se leen con una sola lectura.
+     */
+    @Override
+    public PaginaHistorial cargarPagina(String id, long desde, long hasta) {
+
+        lock.readLock().lock();
+
+        try {
+            IndiceConversacion ic = conversaciones.get(id);
+
+            if (ic == null) {
+                return null;
+            }
+
+            int inicio = (int) Math.min(Math.max(0, desde), ic.total);
+            int fin = (int) Math.min(Math.max(inicio, hasta), ic.total);
+
+            List<Mensaje> mensajes = new ArrayList<>(fin - inicio);
+
+            int i = inicio;
+
+            while (i < fin) {
+
+                int segmento = segmentoDe(ic.ubicaciones[i]);
+                long desplazamiento = desplazamientoDe(ic.ubicaciones[i]);
+                long finTramo = desplazamiento + ic.longitudes[i];
+
+                int j = i + 1;
+
+                while (j < fin
+                        && segmentoDe(ic.ubicaciones[j]) == segmento
+                        && desplazamientoDe(ic.ubicaciones[j]) == finTramo
+                        && finTramo - desplazamiento + ic.longitudes[j] <= LECTURA_MAXIMA) {
+
+                    finTramo += ic.longitudes[j];
+                    j++;
+                }
+
+                byte[] datos = leer(segmentos.get(segmento), desplazamiento, (int) (finTramo - desplazamiento));
+                int p = 0;
+
+                for (int k = i; k < j; k++) {
+                    mensajes.add(decodificarMensaje(datos, p, ic.longitudes[k], k));
+                    p += ic.longitudes[k];
+                }
+
+                i = j;
+            }
+
+            return new PaginaHistorial(id, ic.cabecera.getIpRemota(), ic.cabecera.getAliasVisible(),
+                    inicio, ic.total, mensajes);
+
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * El JSON de cada mensaje ya está en su registro: la página se monta
+     * con la cabecera y copiando los registros (de la proyección en memoria
+     * si el segmento está sellado) uno tras otro, separados por comas.
+     * Solo se copian bytes: ni Strings ni objetos Mensaje.
+     */
+    @Override
+    public PaginaCodificada cargarPaginaCodificada(String id, long desde, long hasta) {
+
+        lock.readLock().lock();
+
+        try {
+            IndiceConversacion ic = conversaciones.get(id);
+
+            if (ic == null) {
+                return null;
+            }
+
+            int inicio = (int) Math.min(Math.max(0, desde), ic.total);
+            int fin = (int) Math.min(Math.max(inicio, hasta), ic.total);
+
+            // Mismo orden de campos que Gson usa para PaginaHistorial
+            byte[] prefijo = ("{\"idConversacion\":" + json.toJson(id) +
+                    ",\"ipRemota\":" + json.toJson(ic.cabecera.getIpRemota()) +
+                    ",\"aliasVisible\":" + json.toJson(ic.cabecera.getAliasVisible()) +
+                    ",\"primeraPosicion\":" + inicio +
+                    ",\"total\":" + ic.total +
+                    ",\"mensajes\":[").getBytes(StandardCharsets.UTF_8);
+
+            long tamano = prefijo.length + 2L + Math.max(0, fin - inicio - 1);
+
+            for (int i = inicio; i < fin; i++) {
+                tamano += ic.longitudes[i] - CABECERA_REGISTRO;
+            }
+
+            byte[] pagina = new byte[Math.toIntExact(tamano)];
+            System.arraycopy(prefijo, 0, pagina, 0, prefijo.length);
+
+            int p = prefijo.length;
+
+            for (int i = inicio; i < fin; i++) {
+
+                if (i > inicio) {
+                    pagina[p++] = ',';
+                }
+
+                int longitud = ic.longitudes[i] - CABECERA_REGISTRO;
+
+                segmentos.get(segmentoDe(ic.ubicaciones[i]))
+                        .copiar(desplazamientoDe(ic.ubicaciones[i]) + CABECERA_REGISTRO, pagina, p, longitud);
+
+                p += longitud;
+            }
+
+            pagina[p++] = ']';
+            pagina[p] = '}';
+
+            return new PaginaCodificada(pagina, fin - inicio);
+
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Conversacion> cargarTodas() {
+
+        List<String> ids;
+
+        lock.readLock().lock();
+
+        try {
+            ids = new ArrayList<>(conversaciones.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Conversacion> todas = new ArrayList<>(ids.size());
+
+        for (String id : ids) {
+
+            Conversacion c = cargar(id);
+
+            if (c != null) {
+                todas.add(c);
+            }
+        }
+
+        return todas;
+    }
+
+    /* ==========================================================
+     *                       ESCRITURA
+     * ========================================================== */
+
+    /**
+     * Añade los registros del lote (y la cabecera si la conversación es
+     * nueva) con una sola escritura al final del segmento activo.
+     */
+    @Override
+    public long anadirLote(Conversacion cabecera, List<Mensaje> mensajes) {
+
+        String id = mensajes.get(0).getIdConversacion();
+
+        if (id == null || id.isBlank()) {
+            throw new IllegalArgumentException("ID de conversación no válido: " + id);
+        }
+
+        lock.writeLock().lock();
+
+        try {
+            IndiceConversacion ic = conversaciones.get(id);
+            boolean nueva = (ic == null);
+
+            ByteArrayOutputStream lote = new ByteArrayOutputStream();
+            Conversacion datosCabecera = null;
+
+            if (nueva) {
+                datosCabecera = (cabecera != null) ? sinMensajes(cabecera) : new Conversacion(id, "", "");
+                datosCabecera.setIdConversacion(id);
+                lote.writeBytes(codificar(TIPO_CABECERA, json.toJson(datosCabecera)));
+            }
+
+            int primera = nueva ? 0 : ic.total;
+            int[] inicios = new int[mensajes.size()];
+            int[] longitudes = new int[mensajes.size()];
+
+            for (int i = 0; i < mensajes.size(); i++) {
+
+                Mensaje m = mensajes.get(i);
+                m.setPosicion(primera + i);
+
+                byte[] registro = codificar(TIPO_MENSAJE, json.toJson(m));
+
+                inicios[i] = lote.size();
+                longitudes[i] = registro.length;
+                lote.writeBytes(registro);
+            }
+
+            if (tamanoActivo > 0 && tamanoActivo + lote.size() > tamanoSegmento) {
+                rotar();
+            }
+
+            long base = tamanoActivo;
+            escribir(activo.canal, ByteBuffer.wrap(lote.toByteArray()), base);
+            tamanoActivo += lote.size();
+
+            // Solo tras escribir se publica en el índice
+            if (nueva) {
+                ic = new IndiceConversacion();
+                ic.cabecera = datosCabecera;
+                ic.segmentoCabecera = activo.id;
+                conversaciones.put(id, ic);
+            }
+
+            for (int i = 0; i < mensajes.size(); i++) {
+                ic.poner(primera + i, ubicacion(activo.id, base + inicios[i]), longitudes[i]);
+            }
+
+            return primera;
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error escribiendo en el segmento " + activo.ruta, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Todas las conversaciones comparten el segmento activo: un solo fsync
+     * vale para todas. Lo escrito en segmentos anteriores ya se forzó al
+     * cerrarlos (con el cerrojo de escritura, antes de que nadie llegue aquí).
+     */
+    @Override
+    public void forzar(Collection<String> ids) {
+
+        Segmento actual;
+
+        lock.readLock().lock();
+
+        try {
+            actual = activo;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            actual.canal.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Error forzando a disco " + actual.ruta, e);
+        }
+    }
+
+    /**
+     * Cierra el segmento activo (fsync) y abre uno nuevo.
+     * Se llama con el cerrojo de escritura cogido (o desde el constructor).
+     */
+    private void rotar() throws IOException {
+
+        if (activo != null) {
+            activo.canal.force(false);
+            activo.sellar();
+        }
+
+        int id = siguienteId.getAndIncrement();
+        Path ruta = carpeta.resolve(nombre(PREFIJO, id));
+
+        FileChannel canal = FileChannel.open(ruta, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        activo = new Segmento(id, ruta, canal, false);
+        tamanoActivo = 0;
+        segmentos.put(id, activo);
+
+        if (conversaciones != null && segmentos.size() > 1) {
+            programarCompactacion();
+        }
+    }
+
+    /* ==========================================================
+     *                       COMPACTACIÓN
+     * ========================================================== */
+
+    private void programarCompactacion() {
+
+        if (compactarCada == 0 || compactando.get()) {
+            return;
+        }
+
+        long cerrados = segmentos.values().stream().filter(s -> !s.compactado && s != activo).count();
+
+        if (cerrados >= compactarCada && compactando.compareAndSet(false, true)) {
+
+            compactador.execute(() -> {
+                try {
+                    compactar();
+                } catch (IOException | RuntimeException e) {
+                    // Se reintenta en la siguiente rotación; los originales siguen intactos
+                    compactacionesFallidas.increment();
+                    ultimoFalloCompactacion = e.toString();
+                } finally {
+                    compactando.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reescribe los segmentos cerrados sin compactar en uno solo, agrupado
+     * por conversación, y borra los originales.
+     */
+    private void compactar() throws IOException {
+
+        List<Segmento> viejos;
+        List<Traslado> traslados = new ArrayList<>();
+
+        // 1) Qué hay que mover (copia del índice, sin bloquear a nadie después)
+        lock.readLock().lock();
+
+        try {
+            viejos = segmentos.values().stream().filter(s -> !s.compactado && s != activo).toList();
+
+            if (viejos.size() < Math.max(1, compactarCada)) {
+                return;
+            }
+
+            Set<Integer> ids = new HashSet<>();
+            viejos.forEach(s -> ids.add(s.id));
+
+            List<String> orden = new ArrayList<>(conversaciones.keySet());
+            orden.sort(null);
+
+            for (String id : orden) {
+
+                IndiceConversacion ic = conversaciones.get(id);
+
+                int n = 0;
+                int[] posiciones = new int[ic.total];
+
+                for (int i = 0; i < ic.total; i++) {
+                    if (ids.contains(segmentoDe(ic.ubicaciones[i]))) {
+                        posiciones[n++] = i;
+                    }
+                }
+
+                if (n == 0 && !ids.contains(ic.segmentoCabecera)) {
+                    continue;
+                }
+
+                posiciones = Arrays.copyOf(posiciones, n);
+                long[] origen = new long[n];
+                int[] longitudes = new int[n];
+
+                for (int k = 0; k < n; k++) {
+                    origen[k] = ic.ubicaciones[posiciones[k]];
+                    longitudes[k] = ic.longitudes[posiciones[k]];
+                }
+
+                traslados.add(new Traslado(id, sinMensajes(ic.cabecera), posiciones, origen, longitudes));
+            }
+
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // 2) Escribir los compactados, ninguno mayor que tamanoSegmento (que
+        //    es como mucho Integer.MAX_VALUE: se proyectan en memoria). Los
+        //    segmentos viejos no cambian ni se borran mientras tanto: solo
+        //    este hilo los borra
+        Map<Integer, Segmento> porId = new HashMap<>();
+        viejos.forEach(s -> porId.put(s.id, s));
+
+        List<Integer> idsNuevos = new ArrayList<>();
+        List<Path> temporales = new ArrayList<>();
+
+        try {
+            escribirCompactados(traslados, porId, idsNuevos, temporales);
+        } catch (IOException | RuntimeException e) {
+
+            for (Path temporal : temporales) {
+                Files.deleteIfExists(temporal);
+            }
+
+            throw e;
+        }
+
+        List<Segmento> nuevos = new ArrayList<>();
+
+        for (int i = 0; i < idsNuevos.size(); i++) {
+
+            int idNuevo = idsNuevos.get(i);
+            Path ruta = carpeta.resolve(nombre(PREFIJO_COMPACTADO, idNuevo));
+
+            Files.move(temporales.get(i), ruta, StandardCopyOption.ATOMIC_MOVE);
+
+            Segmento nuevo = new Segmento(idNuevo, ruta, FileChannel.open(ruta, StandardOpenOption.READ), true);
+            nuevo.sellar();
+            nuevos.add(nuevo);
+        }
+
+        // 3) Cambiar el índice de golpe
+        lock.writeLock().lock();
+
+        try {
+            nuevos.forEach(n -> segmentos.put(n.id, n));
+
+            for (Traslado t : traslados) {
+
+                IndiceConversacion ic = conversaciones.get(t.id);
+
+                for (int k = 0; k < t.posiciones.length; k++) {
+                    if (ic.ubicaciones[t.posiciones[k]] == t.origen[k]) {
+                        ic.ubicaciones[t.posiciones[k]] = t.destino[k];
+                    }
+                }
+
+                ic.segmentoCabecera = t.segmentoCabecera;
+            }
+
+            viejos.forEach(s -> segmentos.remove(s.id));
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // 4) Borrar los originales. Lo liberado es la diferencia: los
+        //    registros siguen ocupando lo mismo en los compactados
+        long liberados = 0;
+
+        for (Segmento s : viejos) {
+
+            liberados += s.canal.size();
+            s.canal.close();
+            Files.deleteIfExists(s.ruta);
+        }
+
+        for (Segmento n : nuevos) {
+            liberados -= n.canal.size();
+        }
+
+        bytesLiberados.add(Math.max(0, liberados));
+        compactaciones.increment();
+    }
+
+    /**
+     * Copia los registros de los traslados en ficheros temporales de como
+     * mucho {@link #tamanoSegmento} bytes (un registro suelto más grande va
+     * solo en el suyo). Si una conversación pasa de un fichero al siguiente,
+     * su cabecera se repite al principio del nuevo para que cada compactado
+     * se pueda recorrer por sí mismo al arrancar.
+     *
+     * @param idsNuevos  ids asignados, en orden (salida)
+     * @param temporales ficheros escritos, en el mismo orden (salida)
+     */
+    private void escribirCompactados(List<Traslado> traslados, Map<Integer, Segmento> porId,
+                                     List<Integer> idsNuevos, List<Path> temporales) throws IOException {
+
+        FileChannel salida = null;
+        int idActual = 0;
+        long desplazamiento = 0;
+
+        try {
+
+            for (Traslado t : traslados) {
+
+                byte[] cabecera = codificar(TIPO_CABECERA, json.toJson(t.cabecera));
+                boolean cabeceraEscrita = false;
+                int k = 0;
+
+                do {
+
+                    int siguiente = (k < t.posiciones.length) ? t.longitudes[k] : 0;
+                    long necesario = (cabeceraEscrita ? 0 : cabecera.length) + siguiente;
+
+                    if (salida == null || (desplazamiento > 0 && desplazamiento + necesario > tamanoSegmento)) {
+
+                        if (salida != null) {
+                            salida.force(false);
+                            salida.close();
+                        }
+
+                        idActual = siguienteId.getAndIncrement();
+                        Path temporal = carpeta.resolve(nombre(PREFIJO_COMPACTADO, idActual) + ".tmp");
+
+                        idsNuevos.add(idActual);
+                        temporales.add(temporal);
+
+                        salida = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+                        desplazamiento = 0;
+                        cabeceraEscrita = false;
+                    }
+
+                    if (!cabeceraEscrita) {
+
+                        escribir(salida, ByteBuffer.wrap(cabecera), desplazamiento);
+                        desplazamiento += cabecera.length;
+                        cabeceraEscrita = true;
+
+                        if (t.segmentoCabecera == 0) {
+                            t.segmentoCabecera = idActual;
+                        }
+                    }
+
+                    if (k < t.posiciones.length) {
+
+                        byte[] registro = leer(porId.get(segmentoDe(t.origen[k])), desplazamientoDe(t.origen[k]), t.longitudes[k]);
+                        escribir(salida, ByteBuffer.wrap(registro), desplazamiento);
+
+                        t.destino[k] = ubicacion(idActual, desplazamiento);
+                        desplazamiento += registro.length;
+                    }
+
+                    k++;
+
+                } while (k < t.posiciones.length);
+            }
+
+            if (salida != null) {
+                salida.force(false);
+            }
+
+        } finally {
+
+            if (salida != null) {
+                salida.close();
+            }
+        }
+    }
+
+    /* ==========================================================
+     *                       UTILIDADES
+     * ========================================================== */
+
+    private byte[] codificar(byte tipo, String texto) {
+
+        byte[] datos = texto.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer b = ByteBuffer.allocate(CABECERA_REGISTRO + datos.length);
+        b.putInt(datos.length);
+        b.putInt(crc(tipo, datos, 0, datos.length));
+        b.put(tipo);
+        b.put(datos);
+
+        return b.array();
+    }
+
+    private Mensaje decodificarMensaje(byte[] datos, int inicio, int longitud, int posicion) {
+
+        String texto = new String(datos, inicio + CABECERA_REGISTRO, longitud - CABECERA_REGISTRO, StandardCharsets.UTF_8);
+
+        Mensaje m = json.fromJson(texto, Mensaje.class);
+        m.setPosicion(posicion);
+
+        return m;
+    }
+
+    private int crc(byte tipo, byte[] datos, int inicio, int longitud) {
+
+        CRC32 crc = new CRC32();
+        crc.update(tipo);
+        crc.update(datos, inicio, longitud);
+
+        return (int) crc.getValue();
+    }
+
+    private byte[] leer(Segmento s, long desplazamiento, int longitud) throws IOException {
+
+        byte[] datos = new byte[longitud];
+        s.copiar(desplazamiento, datos, 0, longitud);
+
+        return datos;
+    }
+
+    private void escribir(FileChannel canal, ByteBuffer datos, long desplazamiento) throws IOException {
+
+        while (datos.hasRemaining()) {
+            canal.write(datos, desplazamiento + datos.position());
+        }
+    }
+
+    private static long ubicacion(int segmento, long desplazamiento) {
+        return ((long) segmento << 32) | desplazamiento;
+    }
+
+    private static int segmentoDe(long ubicacion) {
+        return (int) (ubicacion >>> 32);
+    }
+
+    private static long desplazamientoDe(long ubicacion) {
+        return ubicacion & 0xFFFFFFFFL;
+    }
+
+    private static String nombre(String prefijo, int id) {
+        return prefijo + String.format("%06d", id) + EXTENSION;
+    }
+
+    /**
+     * @return id del segmento según su nombre, o -1 si no es un segmento
+     */
+    private static int idDe(Path ruta) {
+
+        String n = ruta.getFileName().toString();
+
+        if (!n.endsWith(EXTENSION)) {
+            return -1;
+        }
+
+        String numero;
+
+        if (n.startsWith(PREFIJO)) {
+            numero = n.substring(PREFIJO.length(), n.length() - EXTENSION.length());
+        } else if (n.startsWith(PREFIJO_COMPACTADO)) {
+            numero = n.substring(PREFIJO_COMPACTADO.length(), n.length() - EXTENSION.length());
+        } else {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(numero);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean esTemporalCompactado(Path ruta) {
+
+        String n = ruta.getFileName().toString();
+
+        return n.startsWith(PREFIJO_COMPACTADO) && n.endsWith(EXTENSION + ".tmp");
+    }
+
+    private static Conversacion sinMensajes(Conversacion c) {
+        return new Conversacion(c.getIdConversacion(), c.getIpRemota(), c.getAliasVisible());
+    }
+
+    @Override
+    public String toString() {
+
+        int n;
+        int s;
+        int idActivo;
+        long tamano;
+
+        lock.readLock().lock();
+
+        try {
+            n = conversaciones.size();
+            s = segmentos.size();
+            idActivo = activo.id;
+            tamano = tamanoActivo;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return "RepositorioConversacionSegmentos{conversaciones=" + n +
+                ", segmentos=" + s +
+                ", activo=" + idActivo + " (" + (tamano / 1024) + "KB)" +
+                ", compactaciones=" + compactaciones.sum() +
+                ", compactacionesFallidas=" + compactacionesFallidas.sum() +
+                (ultimoFalloCompactacion != null ? " (" + ultimoFalloCompactacion + ")" : "") +
+                ", liberados=" + (bytesLiberados.sum() / 1024) + "KB" +
+                ", registrosCortados=" + registrosCortados.sum() +
+                "}";
+    }
+}